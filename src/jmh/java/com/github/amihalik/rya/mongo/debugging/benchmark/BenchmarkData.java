@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.benchmark;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+import com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization;
+
+/**
+ * Synthetic statements shaped like the data we load. A fixed seed makes every
+ * run, and every fork, see exactly the same input.
+ */
+public class BenchmarkData {
+
+    public enum Shape {
+        URI, LITERAL, POINT, LINESTRING, POLYGON
+    }
+
+    /**
+     * Statements per input set. A power of two, so benchmarks can cycle
+     * through them with a mask.
+     */
+    public static final int SIZE = 1024;
+    public static final int MASK = SIZE - 1;
+
+    private static final long SEED = 20170601L;
+    private static final int LINESTRING_POINTS = 20;
+    private static final int POLYGON_POINTS = 40;
+
+    private static final ValueFactory vf = new ValueFactoryImpl();
+
+    public static Statement[] statements(Shape shape) {
+        Random random = new Random(SEED);
+        URI wkt = vf.createURI(MongoSerialization.WKT_LITERAL);
+
+        Statement[] statements = new Statement[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            URI subject = vf.createURI("http://example.com/entity/" + Long.toHexString(random.nextLong()));
+            URI predicate = vf.createURI("http://example.com/ontology#property" + random.nextInt(50));
+            switch (shape) {
+            case URI:
+                statements[i] = vf.createStatement(subject, predicate, vf.createURI("http://example.com/entity/" + Long.toHexString(random.nextLong())));
+                break;
+            case LITERAL:
+                statements[i] = vf.createStatement(subject, predicate, vf.createLiteral("value " + random.nextInt(1_000_000)));
+                break;
+            case POINT:
+                statements[i] = vf.createStatement(subject, predicate, vf.createLiteral("POINT (" + coordinate(random) + ")", wkt));
+                break;
+            case LINESTRING:
+                statements[i] = vf.createStatement(subject, predicate, vf.createLiteral(lineString(random), wkt));
+                break;
+            case POLYGON:
+                statements[i] = vf.createStatement(subject, predicate, vf.createLiteral(polygon(random), wkt));
+                break;
+            }
+        }
+        return statements;
+    }
+
+    private static String lineString(Random random) {
+        StringBuilder sb = new StringBuilder("LINESTRING (");
+        double x = lon(random);
+        double y = lat(random);
+        for (int i = 0; i < LINESTRING_POINTS; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(format(x)).append(' ').append(format(y));
+            x += random.nextDouble() * 0.01;
+            y += random.nextDouble() * 0.01;
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * A closed ring around a random center, which JTS and Mongo both accept.
+     */
+    private static String polygon(Random random) {
+        StringBuilder sb = new StringBuilder("POLYGON ((");
+        double cx = lon(random);
+        double cy = lat(random);
+        String first = null;
+        for (int i = 0; i < POLYGON_POINTS; i++) {
+            double angle = 2 * Math.PI * i / POLYGON_POINTS;
+            double r = 0.01 + random.nextDouble() * 0.01;
+            String point = format(cx + r * Math.cos(angle)) + " " + format(cy + r * Math.sin(angle));
+            if (first == null) {
+                first = point;
+            }
+            sb.append(point).append(", ");
+        }
+        return sb.append(first).append("))").toString();
+    }
+
+    private static String coordinate(Random random) {
+        return format(lon(random)) + " " + format(lat(random));
+    }
+
+    private static double lon(Random random) {
+        return random.nextDouble() * 340 - 170;
+    }
+
+    private static double lat(Random random) {
+        return random.nextDouble() * 160 - 80;
+    }
+
+    private static String format(double d) {
+        return String.format(Locale.ROOT, "%.6f", d);
+    }
+}
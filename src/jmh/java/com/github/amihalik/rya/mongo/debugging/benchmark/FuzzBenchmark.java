@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.rya.api.domain.RyaStatement;
+import org.apache.rya.api.resolver.RdfToRyaConversions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openrdf.model.Statement;
+
+import com.github.amihalik.rya.mongo.debugging.benchmark.BenchmarkData.Shape;
+import com.github.amihalik.rya.mongo.debugging.generatedata.FuzzData;
+
+/**
+ * The per-statement work in front of serialization: fuzzing a copy, and the
+ * Rya conversion {@code LoadDataFileFaster} does before {@code dao.add}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FuzzBenchmark {
+
+    @Param({ "URI", "LITERAL", "POINT", "LINESTRING", "POLYGON" })
+    public Shape shape;
+
+    private Statement[] statements;
+    private int i;
+
+    @Setup
+    public void setup() {
+        statements = BenchmarkData.statements(shape);
+    }
+
+    @Benchmark
+    public Statement fuzzStatement() throws Exception {
+        int n = i++;
+        // copy 0 is returned as is, so always ask for a real copy
+        return FuzzData.fuzzStatement(statements[n & BenchmarkData.MASK], 1 + (n & 7));
+    }
+
+    @Benchmark
+    public RyaStatement convertStatement() {
+        return RdfToRyaConversions.convertStatement(statements[i++ & BenchmarkData.MASK]);
+    }
+}
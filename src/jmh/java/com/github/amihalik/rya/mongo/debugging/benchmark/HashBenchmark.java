@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openrdf.model.Statement;
+
+import com.github.amihalik.rya.mongo.debugging.benchmark.BenchmarkData.Shape;
+import com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization;
+import com.github.amihalik.rya.mongo.debugging.serialization.StatementHasher;
+import com.github.amihalik.rya.mongo.debugging.serialization.StatementHasher.IdHash;
+
+/**
+ * The _id and term hashes computed for every statement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+    private String[] subjects;
+    private String[] predicates;
+    private String[] objects;
+
+    private StatementHasher sha256;
+    private StatementHasher murmur;
+    private int i;
+
+    @Setup
+    public void setup() {
+        Statement[] statements = BenchmarkData.statements(Shape.URI);
+        subjects = new String[statements.length];
+        predicates = new String[statements.length];
+        objects = new String[statements.length];
+        for (int n = 0; n < statements.length; n++) {
+            subjects[n] = statements[n].getSubject().stringValue();
+            predicates[n] = statements[n].getPredicate().stringValue();
+            objects[n] = statements[n].getObject().stringValue();
+        }
+        sha256 = new StatementHasher(IdHash.SHA_256, StatementHasher.DEFAULT_TERM_CACHE_SIZE);
+        murmur = new StatementHasher(IdHash.MURMUR3_128, StatementHasher.DEFAULT_TERM_CACHE_SIZE);
+    }
+
+    /**
+     * The original _id: SHA-256 of the concatenated terms.
+     */
+    @Benchmark
+    public byte[] hash256() {
+        int n = i++ & BenchmarkData.MASK;
+        return MongoSerialization.hash256(subjects[n] + " " + predicates[n] + " " + objects[n] + " ");
+    }
+
+    @Benchmark
+    public byte[] hash32() {
+        return MongoSerialization.hash32(subjects[i++ & BenchmarkData.MASK]);
+    }
+
+    @Benchmark
+    public byte[] statementIdSha256() {
+        int n = i++ & BenchmarkData.MASK;
+        return sha256.statementId(subjects[n], predicates[n], objects[n], "");
+    }
+
+    @Benchmark
+    public byte[] statementIdMurmur() {
+        int n = i++ & BenchmarkData.MASK;
+        return murmur.statementId(subjects[n], predicates[n], objects[n], "");
+    }
+
+    /**
+     * Every term is cached after the first pass, like a repeated predicate.
+     */
+    @Benchmark
+    public byte[] termHash32Cached() {
+        return sha256.termHash32(subjects[i++ & BenchmarkData.MASK]);
+    }
+}
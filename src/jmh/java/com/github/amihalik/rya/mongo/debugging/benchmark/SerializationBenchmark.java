@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openrdf.model.Statement;
+
+import com.github.amihalik.rya.mongo.debugging.benchmark.BenchmarkData.Shape;
+import com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization;
+import com.github.amihalik.rya.mongo.debugging.serialization.RawMongoSerialization;
+
+/**
+ * Statement to Mongo document, the per-statement cost of every loader.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({ "URI", "POINT", "LINESTRING", "POLYGON" })
+    public Shape shape;
+
+    @Param({ "true", "false" })
+    public boolean addHash;
+
+    @Param({ "true", "false" })
+    public boolean addGeo;
+
+    private Statement[] statements;
+    private MongoSerialization document;
+    private RawMongoSerialization raw;
+    private int i;
+
+    @Setup
+    public void setup() {
+        statements = BenchmarkData.statements(shape);
+        document = new MongoSerialization(addHash, addGeo);
+        raw = new RawMongoSerialization(addHash, addGeo);
+    }
+
+    @Benchmark
+    public Document serialize() {
+        return document.serialize(statements[i++ & BenchmarkData.MASK]);
+    }
+
+    @Benchmark
+    public RawBsonDocument serializeRaw() {
+        return raw.serialize(statements[i++ & BenchmarkData.MASK]);
+    }
+}
@@ -4,28 +4,53 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.log4j.Logger;
 import org.apache.rya.indexing.GeoRyaSailFactory;
 import org.apache.rya.mongodb.MongoDBRdfConfiguration;
+import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.sail.SailRepository;
-import org.openrdf.repository.sail.SailRepositoryConnection;
 import org.openrdf.sail.Sail;
 
+import com.mongodb.ServerAddress;
+
 public class RyaUtil {
     private static final Logger log = Logger.getLogger(RyaUtil.class);
 
     private static String collectionName = "rya_";
     private static String tablePrefix = "rya_";
-    private static String mongoInstance = "localhost";
-    private static String mongoPort = "27017";
+    // -Drya.mongo.host/-Drya.mongo.port, or setMongoServer() for an embedded mongod
+    private static String mongoInstance = System.getProperty("rya.mongo.host", "localhost");
+    private static String mongoPort = System.getProperty("rya.mongo.port", "27017");
     private static String mongoDbName = "rya";
     private static boolean displayQueryPlan = true;
 
-    public static SailRepositoryConnection getSailRepo() throws Exception {
-        final Configuration conf = getConf();
+    /**
+     * Points every loader at another mongod.
+     */
+    public static void setMongoServer(final String host, final int port) {
+        mongoInstance = host;
+        mongoPort = Integer.toString(port);
+    }
+
+    public static ServerAddress getMongoServer() {
+        return new ServerAddress(mongoInstance, Integer.parseInt(mongoPort));
+    }
 
+    /**
+     * A connection borrowed from the process-wide {@link SharedRyaRepository},
+     * which is built on the first call and shut down on exit. Closing it hands
+     * it back to the pool.
+     */
+    public static RepositoryConnection getSailRepo() throws Exception {
+        return SharedRyaRepository.get().borrow();
+    }
+
+    /**
+     * A new, unshared repository for a tweaked {@link #getConf()}, to open
+     * several connections on. The caller shuts it down.
+     */
+    public static SailRepository getSailRepository(final Configuration conf) throws Exception {
         log.info("Connecting to Indexing Sail Repository.");
         final Sail extSail = GeoRyaSailFactory.getInstance(conf);
         final SailRepository repository = new SailRepository(extSail);
-
-        return repository.getConnection();
+        return repository;
     }
 
     public static MongoDBRdfConfiguration getConf() {
@@ -43,8 +68,10 @@ public class RyaUtil {
         conf.set("sc.geo.predicates", "http://www.opengis.net/ont/geosparql#asWKT");
 
         conf.setBoolean("rya.mongodb.dao.flusheachupdate", false);
-        conf.setInt("rya.mongodb.dao.batchwriter.size", 50000);
-        conf.setLong("rya.mongodb.dao.batchwriter.flushtime", 100L);
+        // The DAO reads these once at init, so they can't adapt at runtime. Allow
+        // overriding them with -D flags to avoid re-tuning by editing source.
+        conf.setInt("rya.mongodb.dao.batchwriter.size", Integer.getInteger("rya.mongodb.dao.batchwriter.size", 50000));
+        conf.setLong("rya.mongodb.dao.batchwriter.flushtime", Long.getLong("rya.mongodb.dao.batchwriter.flushtime", 100L));
 
         return conf;
     }
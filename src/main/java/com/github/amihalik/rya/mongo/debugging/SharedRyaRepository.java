@@ -0,0 +1,217 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.base.RepositoryConnectionWrapper;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.repository.sail.SailRepositoryConnection;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * One initialized Rya Sail for the whole process, with a bounded pool of
+ * connections on it.
+ *
+ * <pre>
+ * RepositoryConnection conn = SharedRyaRepository.get().borrow();
+ * try {
+ *     ...
+ * } finally {
+ *     conn.close();
+ * }
+ * </pre>
+ *
+ * A connection must only be used by one thread at a time, but any number of
+ * them can share the Sail, its Mongo client and its indexers. Closing a
+ * borrowed connection rolls back anything uncommitted and hands it back to
+ * the pool; {@link #borrow()} blocks while {@code poolSize} are out.
+ * <p>
+ * The Sail is built and warmed up with a trivial query when the repository
+ * is created, so the first real query does not pay for it, and shut down by
+ * a JVM shutdown hook, which also flushes the DAO's buffered writes.
+ */
+public class SharedRyaRepository implements AutoCloseable {
+    private static final Logger log = Logger.getLogger(SharedRyaRepository.class);
+
+    // -Drya.pool.size to share more connections
+    public static final int DEFAULT_POOL_SIZE = Integer.getInteger("rya.pool.size", 16);
+
+    private static final String WARMUP_QUERY = "SELECT ?s WHERE { ?s ?p ?o } LIMIT 1";
+
+    private static volatile SharedRyaRepository instance;
+
+    private final SailRepository repository;
+    private final Semaphore permits;
+    private final LinkedBlockingQueue<SailRepositoryConnection> idle = new LinkedBlockingQueue<>();
+    private final Thread shutdownHook;
+    private volatile boolean shutDown;
+
+    /**
+     * @return the repository for {@link RyaUtil#getConf()}, created on first
+     *         use.
+     */
+    public static SharedRyaRepository get() throws Exception {
+        SharedRyaRepository shared = instance;
+        if (shared == null) {
+            synchronized (SharedRyaRepository.class) {
+                shared = instance;
+                if (shared == null) {
+                    shared = new SharedRyaRepository(RyaUtil.getConf(), DEFAULT_POOL_SIZE);
+                    instance = shared;
+                }
+            }
+        }
+        return shared;
+    }
+
+    public SharedRyaRepository(Configuration conf, int poolSize) throws Exception {
+        Stopwatch sw = new Stopwatch().start();
+        this.repository = RyaUtil.getSailRepository(conf);
+        this.permits = new Semaphore(poolSize, true);
+        this.shutdownHook = new Thread(this::shutDown, "rya-repository-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        warmup();
+        log.info(String.format("Rya repository ready in %,d ms, %d pooled connections", sw.elapsed(TimeUnit.MILLISECONDS), poolSize));
+    }
+
+    private void warmup() throws Exception {
+        // opens the Mongo connections and touches the DAO and the query engine
+        SailRepositoryConnection conn = repository.getConnection();
+        TupleQueryResult result = conn.prepareTupleQuery(QueryLanguage.SPARQL, WARMUP_QUERY).evaluate();
+        try {
+            result.hasNext();
+        } finally {
+            result.close();
+        }
+        idle.add(conn);
+    }
+
+    /**
+     * @return the shared repository, for connections outside the pool. Do not
+     *         shut it down.
+     */
+    public SailRepository getRepository() {
+        return repository;
+    }
+
+    /**
+     * @return a pooled connection, waiting for one to be closed if all are in
+     *         use.
+     */
+    public RepositoryConnection borrow() throws RepositoryException, InterruptedException {
+        if (shutDown) {
+            throw new RepositoryException("Rya repository is shut down");
+        }
+        permits.acquire();
+        try {
+            SailRepositoryConnection conn = idle.poll();
+            if (conn == null || !conn.isOpen()) {
+                conn = repository.getConnection();
+            }
+            return new PooledConnection(conn);
+        } catch (RepositoryException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void release(SailRepositoryConnection conn) {
+        try {
+            if (conn.isActive()) {
+                conn.rollback();
+            }
+            if (shutDown) {
+                conn.close();
+            } else {
+                idle.add(conn);
+            }
+        } catch (RepositoryException e) {
+            log.warn("Dropping a pooled connection that failed to roll back", e);
+            try {
+                conn.close();
+            } catch (RepositoryException ignored) {
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes the idle connections and the Sail. Connections still borrowed are
+     * closed as they come back.
+     */
+    public synchronized void shutDown() {
+        if (shutDown) {
+            return;
+        }
+        shutDown = true;
+        SailRepositoryConnection conn;
+        while ((conn = idle.poll()) != null) {
+            try {
+                conn.close();
+            } catch (RepositoryException e) {
+                log.warn("Failed to close a pooled connection", e);
+            }
+        }
+        try {
+            repository.shutDown();
+            log.info("Rya repository shut down");
+        } catch (RepositoryException e) {
+            log.warn("Failed to shut down the Rya repository", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        shutDown();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException alreadyShuttingDown) {
+        }
+    }
+
+    private final class PooledConnection extends RepositoryConnectionWrapper {
+        private final SailRepositoryConnection conn;
+        private boolean closed;
+
+        PooledConnection(SailRepositoryConnection conn) {
+            super(repository, conn);
+            this.conn = conn;
+        }
+
+        @Override
+        public boolean isOpen() throws RepositoryException {
+            return !closed && conn.isOpen();
+        }
+
+        @Override
+        public void close() throws RepositoryException {
+            if (!closed) {
+                closed = true;
+                release(conn);
+            }
+        }
+    }
+}
@@ -19,6 +19,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.text.NumberFormat;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
@@ -29,6 +31,7 @@ import org.openrdf.model.Value;
 import org.openrdf.model.ValueFactory;
 import org.openrdf.model.impl.ValueFactoryImpl;
 import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandler;
 import org.openrdf.rio.RDFHandlerException;
 import org.openrdf.rio.RDFParser;
 import org.openrdf.rio.RDFWriter;
@@ -46,13 +49,89 @@ public class FuzzData {
     private static final int MULTIPLIER = 12;
 
     private static final ValueFactory vf = new ValueFactoryImpl();
-    private static final WKTWriter ww = new WKTWriter();
+    // WKTWriter keeps per-call state, so each thread needs its own
+    private static final ThreadLocal<WKTWriter> ww = ThreadLocal.withInitial(WKTWriter::new);
 
     public static Statement fuzzStatement(Statement s, int id) throws Exception {
+        return fuzzStatement(s, id, ThreadLocalRandom.current());
+    }
+
+    /**
+     * Same as {@link #fuzzStatement(Statement, int)}, drawing the geometry
+     * jitter from {@code random} so a seeded caller gets reproducible output.
+     */
+    public static Statement fuzzStatement(Statement s, int id, Random random) throws Exception {
         if (id == 0) {
             return s;
         }
+        Geometry geo = isWkt(s.getObject()) ? (new WKTReader()).read(((Literal) s.getObject()).getLabel()) : null;
+        return fuzzCopy(s, id, geo, random);
+    }
+
+    /**
+     * Sends copies {@code first} to {@code multiplier - 1} of {@code s} to
+     * {@code handler}. A WKT object is parsed once for all copies instead of
+     * once per copy.
+     */
+    public static void fuzzStatements(Statement s, int first, int multiplier, Random random, RDFHandler handler) throws Exception {
+        Geometry geo = null;
+        if (multiplier > 1 && isWkt(s.getObject())) {
+            geo = (new WKTReader()).read(((Literal) s.getObject()).getLabel());
+        }
+        for (int i = first; i < multiplier; i++) {
+            handler.handleStatement(i == 0 ? s : fuzzCopy(s, i, geo, random));
+        }
+    }
+
+    /**
+     * Same as {@link #fuzzStatements(Statement, int, int, Random, RDFHandler)},
+     * but the jitter of every copy is seeded from {@code index}, the
+     * position of {@code s} in its input, and the copy number. Any copy can
+     * then be produced again on its own with the same WKT, and so the same
+     * {@code _id}, which is what makes a resumed load idempotent.
+     */
+    public static void fuzzStatements(Statement s, long index, int first, int multiplier, RDFHandler handler) throws Exception {
+        Geometry geo = null;
+        if (multiplier > 1 && isWkt(s.getObject())) {
+            geo = (new WKTReader()).read(((Literal) s.getObject()).getLabel());
+        }
+        Random random = new Random();
+        for (int i = first; i < multiplier; i++) {
+            if (i == 0) {
+                handler.handleStatement(s);
+            } else {
+                random.setSeed(copySeed(index, i));
+                handler.handleStatement(fuzzCopy(s, i, geo, random));
+            }
+        }
+    }
+
+    /**
+     * @return a well mixed seed for copy {@code copy} of statement
+     *         {@code index}; neighbouring inputs give unrelated seeds.
+     */
+    public static long copySeed(long index, int copy) {
+        // the MurmurHash3 64-bit finalizer
+        long h = index * 0x9E3779B97F4A7C15L + copy;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static boolean isWkt(Value object) {
+        return object instanceof Literal && ((Literal) object).getDatatype() != null
+                && ((Literal) object).getDatatype().toString().equals("http://www.opengis.net/ont/geosparql#wktLiteral");
+    }
 
+    /**
+     * @param geo
+     *            the parsed WKT object of {@code s}, or {@code null}. It is
+     *            not modified.
+     */
+    private static Statement fuzzCopy(Statement s, int id, Geometry geo, Random random) {
         URI subject = vf.createURI(s.getSubject().stringValue() + "_" + id);
         URI predicate = s.getPredicate();
         Value object = null;
@@ -62,13 +141,14 @@ public class FuzzData {
             object = vf.createURI(s.getObject().stringValue() + "_" + id);
         } else if (orgObject instanceof Literal) {
             Literal orgObjectLit = (Literal) orgObject;
-            if (orgObjectLit.getDatatype().toString().equals("http://www.opengis.net/ont/geosparql#wktLiteral")) {
-                Geometry geo = (new WKTReader()).read(orgObjectLit.getLabel());
-                for (Coordinate c : geo.getCoordinates()) {
-                    c.x += (Math.random() - .5);
-                    c.y += (Math.random() - .5);
+            if (geo != null) {
+                Geometry copy = (Geometry) geo.clone();
+                for (Coordinate c : copy.getCoordinates()) {
+                    c.x += (random.nextDouble() - .5);
+                    c.y += (random.nextDouble() - .5);
                 }
-                object = vf.createLiteral(ww.write(geo), orgObjectLit.getDatatype());
+                copy.geometryChanged();
+                object = vf.createLiteral(ww.get().write(copy), orgObjectLit.getDatatype());
             } else {
                 object = orgObject;
             }
@@ -0,0 +1,238 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.generatedata;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.RDFWriter;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+
+/**
+ * Multi-threaded {@link FuzzData}. One thread parses the input into batches;
+ * batch {@code k} goes to worker {@code k % shards}, which fuzzes it with its
+ * own seeded {@link Random} and writes it to its own shard file. Every shard
+ * sees the same batches in the same order on every run, so the output is
+ * identical for the same input, seed and shard count.
+ *
+ * <pre>
+ * ParallelFuzzData [input] [output prefix] [shards] [multiplier] [seed]
+ * </pre>
+ *
+ * Shards are written as {@code <prefix>_<n>.brf} and can be loaded in
+ * parallel.
+ */
+public class ParallelFuzzData {
+    private static final Logger log = Logger.getLogger(ParallelFuzzData.class);
+
+    private static final int BATCH_SIZE = 10_000;
+    private static final int QUEUE_DEPTH = 4;
+    private static final long REPORT_SECONDS = 10;
+
+    private static final List<Statement> END_OF_STATEMENTS = new ArrayList<>();
+
+    private final int shards;
+    private final int multiplier;
+    private final long seed;
+    private final RDFFormat outputFormat;
+
+    private final AtomicLong written = new AtomicLong();
+    // set when a shard writer fails, so the parser stops instead of blocking on its queue
+    private volatile Exception failure;
+
+    public ParallelFuzzData(int shards, int multiplier, long seed, RDFFormat outputFormat) {
+        this.shards = shards;
+        this.multiplier = multiplier;
+        this.seed = seed;
+        this.outputFormat = outputFormat;
+    }
+
+    public static File shardFile(String prefix, int shard, RDFFormat format) {
+        return new File(prefix + "_" + shard + "." + format.getDefaultFileExtension());
+    }
+
+    /**
+     * @return the number of statements written.
+     */
+    public long generate(File input, RDFFormat inputFormat, String outputPrefix) throws Exception {
+        List<BlockingQueue<List<Statement>>> queues = new ArrayList<>();
+        ExecutorService workers = Executors.newFixedThreadPool(shards);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            BlockingQueue<List<Statement>> queue = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+            queues.add(queue);
+            File out = shardFile(outputPrefix, i, outputFormat);
+            // a distinct, fixed stream per shard
+            Random random = new Random(seed * 31 + i);
+            results.add(workers.submit(() -> {
+                try {
+                    writeShard(queue, out, random);
+                } catch (Exception e) {
+                    // keep the first cause, not the interrupts of the writers stopped after it
+                    if (failure == null) {
+                        failure = e;
+                    }
+                    throw e;
+                }
+                return null;
+            }));
+        }
+
+        long start = System.nanoTime();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(() -> report(start), REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+
+        try {
+            try {
+                RDFParser parser = Rio.createParser(inputFormat);
+                parser.setRDFHandler(new RDFHandlerBase() {
+                    private List<Statement> batch = new ArrayList<>(BATCH_SIZE);
+                    private long batchNumber = 0;
+
+                    @Override
+                    public void handleStatement(Statement st) throws RDFHandlerException {
+                        batch.add(st);
+                        if (batch.size() == BATCH_SIZE) {
+                            dispatch();
+                        }
+                    }
+
+                    @Override
+                    public void endRDF() throws RDFHandlerException {
+                        if (!batch.isEmpty()) {
+                            dispatch();
+                        }
+                    }
+
+                    private void dispatch() throws RDFHandlerException {
+                        put(queues.get((int) (batchNumber++ % shards)), batch);
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                });
+                try (InputStream in = FileUtils.openInputStream(input)) {
+                    parser.parse(in, "");
+                }
+            } finally {
+                // each queue on its own, so one dead writer can't keep END from the others
+                for (int i = 0; i < shards && failure == null; i++) {
+                    try {
+                        put(queues.get(i), END_OF_STATEMENTS);
+                    } catch (RDFHandlerException e) {
+                        log.error("Could not stop shard writer " + i, e);
+                    }
+                }
+                if (failure != null) {
+                    // the live writers would wait for END forever on a non-daemon pool
+                    workers.shutdownNow();
+                } else {
+                    workers.shutdown();
+                }
+            }
+
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    // writers stopped by shutdownNow only report the interrupt
+                    if (failure == null) {
+                        throw e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            reporter.shutdownNow();
+        }
+        report(start);
+        return written.get();
+    }
+
+    private void writeShard(BlockingQueue<List<Statement>> queue, File file, Random random) throws Exception {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20)) {
+            RDFWriter writer = Rio.createWriter(outputFormat, out);
+            writer.startRDF();
+            while (true) {
+                List<Statement> batch = queue.take();
+                if (batch == END_OF_STATEMENTS) {
+                    break;
+                }
+                for (Statement st : batch) {
+                    FuzzData.fuzzStatements(st, 0, multiplier, random, writer);
+                }
+                written.addAndGet((long) batch.size() * multiplier);
+            }
+            writer.endRDF();
+        }
+        log.info("Finished " + file);
+    }
+
+    private void put(BlockingQueue<List<Statement>> queue, List<Statement> batch) throws RDFHandlerException {
+        try {
+            while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+                if (failure != null) {
+                    throw new RDFHandlerException("Shard writer failed", failure);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RDFHandlerException("Interrupted while handing off a batch", e);
+        }
+    }
+
+    private void report(long start) {
+        long elapsed = System.nanoTime() - start;
+        long count = written.get();
+        log.info(String.format("%,d statements written :: %,d/s", count, (long) (count * 1e9 / Math.max(elapsed, 1))));
+    }
+
+    public static void main(String[] args) throws Exception {
+        String input = args.length > 0 ? args[0] : "/mydata/one_gig_ntrip_file.n3";
+        String outputPrefix = args.length > 1 ? args[1] : "/mydata/one_gig_ntrip_file_12";
+        int shards = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int multiplier = args.length > 3 ? Integer.parseInt(args[3]) : 12;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 42L;
+
+        long start = System.nanoTime();
+        long count = new ParallelFuzzData(shards, multiplier, seed, RDFFormat.BINARY).generate(new File(input), RDFFormat.N3, outputPrefix);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        log.info(String.format("Done writing %,d statements to %d shards in %,d ms :: %,d/s", count, shards, millis,
+                (long) (count * 1000. / Math.max(millis, 1))));
+    }
+}
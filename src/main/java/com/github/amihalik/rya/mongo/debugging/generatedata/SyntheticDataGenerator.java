@@ -0,0 +1,284 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.generatedata;
+
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+
+import com.github.amihalik.rya.mongo.debugging.serialization.BatchLoadRya;
+import com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization;
+import com.github.amihalik.rya.mongo.debugging.serialization.RawMongoSerialization;
+import com.github.amihalik.rya.mongo.debugging.serialization.SynchronizedRdfHandler;
+
+/**
+ * Generates statements from a handful of distributions instead of reading a
+ * file, and feeds them to any {@link RDFHandler} chain.
+ * <p>
+ * All objects (literals, URIs, WKT geometries) and predicates are built once
+ * into pools when the generator is created, and predicates are drawn through
+ * a lookup table, so producing a statement costs one random number per choice
+ * and one or two small allocations. The output depends only on the
+ * {@link Settings} and the seed, and the choices for statement {@code n} are
+ * hashed from the seed and {@code n} alone, so the stream can be generated in
+ * any split.
+ */
+public class SyntheticDataGenerator {
+    private static final Logger log = Logger.getLogger(SyntheticDataGenerator.class);
+
+    private static final String NS = "http://example.com/synthetic/";
+    private static final int PREDICATE_TABLE_SIZE = 1 << 16;
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Workload shape. The defaults look roughly like our geo test data.
+     */
+    public static class Settings {
+        /** Distinct predicates. */
+        public int predicates = 50;
+        /** Zipf exponent of the predicate distribution, 0 is uniform. */
+        public double predicateSkew = 1.0;
+        /** Statements per subject. */
+        public int fanOut = 10;
+        /** Fraction of objects that are plain literals. */
+        public double literalFraction = 0.4;
+        /** Literal lengths are log-uniform between these. */
+        public int minLiteralLength = 4;
+        public int maxLiteralLength = 256;
+        /** Fraction of objects that are {@code geosparql#wktLiteral}s. */
+        public double geoFraction = 0.1;
+        /** Vertices per geometry, uniform between these. 1 is a point. */
+        public int minVertices = 1;
+        public int maxVertices = 64;
+        /** Size of each pre-built object pool. */
+        public int poolSize = 1 << 14;
+
+        /**
+         * @throws IllegalArgumentException
+         *             naming the first setting out of range.
+         */
+        public void validate() {
+            check(predicates > 0, "predicates must be positive :: " + predicates);
+            check(predicateSkew >= 0, "predicateSkew must not be negative :: " + predicateSkew);
+            check(fanOut > 0, "fanOut must be positive :: " + fanOut);
+            check(literalFraction >= 0 && geoFraction >= 0 && literalFraction + geoFraction <= 1,
+                    "literalFraction and geoFraction must be fractions adding up to at most 1 :: " + literalFraction + ", " + geoFraction);
+            check(minLiteralLength > 0 && minLiteralLength <= maxLiteralLength,
+                    "literal lengths must satisfy 0 < min <= max :: " + minLiteralLength + ", " + maxLiteralLength);
+            check(minVertices > 0 && minVertices <= maxVertices, "vertices must satisfy 0 < min <= max :: " + minVertices + ", " + maxVertices);
+            check(poolSize > 0, "poolSize must be positive :: " + poolSize);
+        }
+
+        private static void check(boolean valid, String message) {
+            if (!valid) {
+                throw new IllegalArgumentException(message);
+            }
+        }
+    }
+
+    private final Settings settings;
+    private final long seed;
+
+    private final URI[] predicates;
+    private final int[] predicateTable = new int[PREDICATE_TABLE_SIZE];
+    private final Value[] literals;
+    private final Value[] geometries;
+    private final URI[] objects;
+
+    public SyntheticDataGenerator(Settings settings, long seed) {
+        settings.validate();
+        this.settings = settings;
+        this.seed = seed;
+        SplittableRandom random = new SplittableRandom(seed);
+        ValueFactoryImpl vf = ValueFactoryImpl.getInstance();
+
+        predicates = new URI[settings.predicates];
+        double[] cdf = new double[settings.predicates];
+        double total = 0;
+        for (int i = 0; i < settings.predicates; i++) {
+            predicates[i] = vf.createURI(NS + "ontology#property" + i);
+            total += 1 / Math.pow(i + 1, settings.predicateSkew);
+            cdf[i] = total;
+        }
+        // slot k of the table holds the predicate covering quantile k / size
+        int p = 0;
+        for (int k = 0; k < PREDICATE_TABLE_SIZE; k++) {
+            double q = (k + 0.5) / PREDICATE_TABLE_SIZE * total;
+            while (cdf[p] < q) {
+                p++;
+            }
+            predicateTable[k] = p;
+        }
+
+        literals = new Value[settings.poolSize];
+        geometries = new Value[settings.poolSize];
+        objects = new URI[settings.poolSize];
+        URI wkt = vf.createURI(MongoSerialization.WKT_LITERAL);
+        double logMin = Math.log(settings.minLiteralLength);
+        double logMax = Math.log(settings.maxLiteralLength);
+        for (int i = 0; i < settings.poolSize; i++) {
+            int length = (int) Math.round(Math.exp(logMin + random.nextDouble() * (logMax - logMin)));
+            literals[i] = vf.createLiteral(text(random, length), XMLSchema.STRING);
+            int vertices = settings.minVertices + random.nextInt(settings.maxVertices - settings.minVertices + 1);
+            geometries[i] = vf.createLiteral(geometry(random, vertices), wkt);
+            objects[i] = vf.createURI(NS + "entity/" + Long.toHexString(random.nextLong()));
+        }
+    }
+
+    /**
+     * Sends {@code count} statements to {@code handler}, wrapped in
+     * startRDF/endRDF.
+     */
+    public void generate(long count, RDFHandler handler) throws RDFHandlerException {
+        generate(0, count, handler);
+    }
+
+    /**
+     * Sends statements {@code first} to {@code first + count - 1} of the
+     * stream. Ranges can be generated on separate threads and together give
+     * exactly the same statements as one call.
+     */
+    public void generate(long first, long count, RDFHandler handler) throws RDFHandlerException {
+        double geo = settings.geoFraction;
+        double literal = geo + settings.literalFraction;
+
+        handler.startRDF();
+        URI subject = null;
+        for (long n = first; n < first + count; n++) {
+            if (subject == null || n % settings.fanOut == 0) {
+                subject = new URIImpl(NS + "subject/" + n / settings.fanOut);
+            }
+            long bits = mix(seed + n * GOLDEN_GAMMA);
+            // low 16 bits pick the predicate, the high 32 the pool slot
+            URI predicate = predicates[predicateTable[(int) bits & (PREDICATE_TABLE_SIZE - 1)]];
+            int pick = (int) (((bits >>> 32) * settings.poolSize) >>> 32);
+            double kind = (mix(bits) >>> 11) * 0x1.0p-53;
+            Value object = kind < geo ? geometries[pick] : kind < literal ? literals[pick] : objects[pick];
+            handler.handleStatement(new StatementImpl(subject, predicate, object));
+        }
+        handler.endRDF();
+    }
+
+    /**
+     * The MurmurHash3 64-bit finalizer, as SplittableRandom uses.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    private static String text(SplittableRandom random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * A point, an open line, or a closed star-shaped polygon that JTS and
+     * Mongo both accept.
+     */
+    private static String geometry(SplittableRandom random, int vertices) {
+        double x = random.nextDouble() * 340 - 170;
+        double y = random.nextDouble() * 160 - 80;
+        if (vertices <= 1) {
+            return String.format(Locale.ROOT, "POINT (%.6f %.6f)", x, y);
+        }
+        StringBuilder sb = new StringBuilder();
+        if (vertices < 4 || random.nextBoolean()) {
+            sb.append("LINESTRING (");
+            for (int i = 0; i < vertices; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(String.format(Locale.ROOT, "%.6f %.6f", x, y));
+                x += random.nextDouble() * 0.01;
+                y += random.nextDouble() * 0.01;
+            }
+        } else {
+            sb.append("POLYGON ((");
+            String first = null;
+            // the closing vertex repeats the first one
+            for (int i = 0; i < vertices - 1; i++) {
+                double angle = 2 * Math.PI * i / (vertices - 1);
+                double r = 0.01 + random.nextDouble() * 0.01;
+                String point = String.format(Locale.ROOT, "%.6f %.6f", x + r * Math.cos(angle), y + r * Math.sin(angle));
+                if (first == null) {
+                    first = point;
+                }
+                sb.append(point).append(", ");
+            }
+            sb.append(first).append(')');
+        }
+        return sb.append(')').toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        long count = args.length > 0 ? Long.parseLong(args[0]) : 100_000_000L;
+        // --load sends the statements to BatchLoadRya, otherwise only the generator is timed
+        boolean load = args.length > 1 && args[1].equals("--load");
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        Settings settings = new Settings();
+        SyntheticDataGenerator generator = new SyntheticDataGenerator(settings, 42L);
+
+        RDFHandler handler;
+        if (load) {
+            handler = new SynchronizedRdfHandler(BatchLoadRya.newHandler("synthetic", "rya_triples", new RawMongoSerialization(true, true)));
+        } else {
+            handler = new RDFHandlerBase();
+        }
+
+        long start = System.nanoTime();
+        if (load) {
+            generator.generate(count, handler);
+        } else {
+            // one range per thread, as a multi-threaded loader would consume them
+            Thread[] workers = new Thread[threads];
+            long per = count / threads;
+            for (int t = 0; t < threads; t++) {
+                long first = t * per;
+                long n = t == threads - 1 ? count - first : per;
+                workers[t] = new Thread(() -> {
+                    try {
+                        generator.generate(first, n, new RDFHandlerBase());
+                    } catch (RDFHandlerException e) {
+                        log.error("Generator failed", e);
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread t : workers) {
+                t.join();
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        log.info(String.format("Generated %,d statements in %,d ms :: %,d/s", count, TimeUnit.NANOSECONDS.toMillis(nanos),
+                (long) (count * 1e9 / Math.max(nanos, 1))));
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.linestring;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.Query;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.QueryResults;
+import org.openrdf.query.TupleQuery;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.TupleQueryResultHandler;
+import org.openrdf.query.TupleQueryResultHandlerException;
+import org.openrdf.query.Update;
+import org.openrdf.query.UpdateExecutionException;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.base.RepositoryConnectionWrapper;
+
+import com.github.amihalik.rya.mongo.debugging.serialization.IngestEpoch;
+
+/**
+ * Answers repeated tuple queries from a {@link QueryResultCache} instead of
+ * going back to Mongo.
+ *
+ * <pre>
+ * RepositoryConnection conn = new CachingRepositoryConnection(RyaUtil.getSailRepo(), cache);
+ * </pre>
+ *
+ * Graph and boolean queries pass straight through. Statements added or removed
+ * and SPARQL updates run through this connection advance the
+ * {@link IngestEpoch}, which clears the cache for every connection sharing it.
+ */
+public class CachingRepositoryConnection extends RepositoryConnectionWrapper {
+
+    private final QueryResultCache cache;
+
+    public CachingRepositoryConnection(RepositoryConnection delegate, QueryResultCache cache) {
+        super(delegate.getRepository(), delegate);
+        this.cache = cache;
+    }
+
+    public QueryResultCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public TupleQuery prepareTupleQuery(QueryLanguage ql, String query, String baseURI) throws MalformedQueryException,
+            RepositoryException {
+        return new CachingTupleQuery(ql, query, baseURI, getDelegate().prepareTupleQuery(ql, query, baseURI));
+    }
+
+    @Override
+    public Query prepareQuery(QueryLanguage ql, String query, String baseURI) throws MalformedQueryException, RepositoryException {
+        Query prepared = getDelegate().prepareQuery(ql, query, baseURI);
+        if (prepared instanceof TupleQuery) {
+            return new CachingTupleQuery(ql, query, baseURI, (TupleQuery) prepared);
+        }
+        return prepared;
+    }
+
+    @Override
+    public Update prepareUpdate(QueryLanguage ql, String update, String baseURI) throws MalformedQueryException, RepositoryException {
+        Update prepared = getDelegate().prepareUpdate(ql, update, baseURI);
+        return new EpochUpdate(prepared);
+    }
+
+    // route every add and remove through addWithoutCommit/removeWithoutCommit so they can be seen
+    @Override
+    protected boolean isDelegatingAdd() {
+        return false;
+    }
+
+    @Override
+    protected boolean isDelegatingRemove() {
+        return false;
+    }
+
+    @Override
+    protected void addWithoutCommit(Resource subject, URI predicate, Value object, Resource... contexts) throws RepositoryException {
+        super.addWithoutCommit(subject, predicate, object, contexts);
+        IngestEpoch.advance();
+    }
+
+    @Override
+    protected void removeWithoutCommit(Resource subject, URI predicate, Value object, Resource... contexts) throws RepositoryException {
+        super.removeWithoutCommit(subject, predicate, object, contexts);
+        IngestEpoch.advance();
+    }
+
+    @Override
+    public void clear(Resource... contexts) throws RepositoryException {
+        super.clear(contexts);
+        IngestEpoch.advance();
+    }
+
+    @Override
+    public void commit() throws RepositoryException {
+        super.commit();
+        // a query between the add and the commit may have cached the old answer
+        IngestEpoch.advance();
+    }
+
+    private final class CachingTupleQuery implements TupleQuery {
+        private final QueryLanguage ql;
+        private final String query;
+        private final String baseURI;
+        private final TupleQuery delegate;
+
+        CachingTupleQuery(QueryLanguage ql, String query, String baseURI, TupleQuery delegate) {
+            this.ql = ql;
+            this.query = query;
+            this.baseURI = baseURI;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public TupleQueryResult evaluate() throws QueryEvaluationException {
+            String key = QueryResultCache.key(ql, query, baseURI, delegate.getBindings(), delegate.getDataset(),
+                    delegate.getIncludeInferred());
+            TupleQueryResult cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            long epoch = IngestEpoch.current();
+            return cache.record(key, delegate.evaluate(), epoch);
+        }
+
+        @Override
+        public void evaluate(TupleQueryResultHandler handler) throws QueryEvaluationException, TupleQueryResultHandlerException {
+            QueryResults.report(evaluate(), handler);
+        }
+
+        @Override
+        public void setMaxQueryTime(int maxQueryTime) {
+            delegate.setMaxQueryTime(maxQueryTime);
+        }
+
+        @Override
+        public int getMaxQueryTime() {
+            return delegate.getMaxQueryTime();
+        }
+
+        @Override
+        public void setBinding(String name, Value value) {
+            delegate.setBinding(name, value);
+        }
+
+        @Override
+        public void removeBinding(String name) {
+            delegate.removeBinding(name);
+        }
+
+        @Override
+        public void clearBindings() {
+            delegate.clearBindings();
+        }
+
+        @Override
+        public BindingSet getBindings() {
+            return delegate.getBindings();
+        }
+
+        @Override
+        public void setDataset(Dataset dataset) {
+            delegate.setDataset(dataset);
+        }
+
+        @Override
+        public Dataset getDataset() {
+            return delegate.getDataset();
+        }
+
+        @Override
+        public void setIncludeInferred(boolean includeInferred) {
+            delegate.setIncludeInferred(includeInferred);
+        }
+
+        @Override
+        public boolean getIncludeInferred() {
+            return delegate.getIncludeInferred();
+        }
+    }
+
+    private static final class EpochUpdate implements Update {
+        private final Update delegate;
+
+        EpochUpdate(Update delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void execute() throws UpdateExecutionException {
+            try {
+                delegate.execute();
+            } finally {
+                IngestEpoch.advance();
+            }
+        }
+
+        @Override
+        public void setBinding(String name, Value value) {
+            delegate.setBinding(name, value);
+        }
+
+        @Override
+        public void removeBinding(String name) {
+            delegate.removeBinding(name);
+        }
+
+        @Override
+        public void clearBindings() {
+            delegate.clearBindings();
+        }
+
+        @Override
+        public BindingSet getBindings() {
+            return delegate.getBindings();
+        }
+
+        @Override
+        public void setDataset(Dataset dataset) {
+            delegate.setDataset(dataset);
+        }
+
+        @Override
+        public Dataset getDataset() {
+            return delegate.getDataset();
+        }
+
+        @Override
+        public void setIncludeInferred(boolean includeInferred) {
+            delegate.setIncludeInferred(includeInferred);
+        }
+
+        @Override
+        public boolean getIncludeInferred() {
+            return delegate.getIncludeInferred();
+        }
+    }
+}
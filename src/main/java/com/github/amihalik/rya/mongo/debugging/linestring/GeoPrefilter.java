@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.linestring;
+
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.GEO;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.GEO_BBOX;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.GEO_CELLS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.github.amihalik.rya.mongo.debugging.RyaUtil;
+import com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization;
+import com.github.amihalik.rya.mongo.debugging.serialization.SpatialCells;
+import com.google.common.base.Stopwatch;
+import com.mongodb.MongoClient;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Geo queries against documents written with {@code addCells}: an
+ * {@code $in} on the {@link SpatialCells} terms walks the ordinary B-tree
+ * index on {@code location_cells}, the stored bounding boxes are compared on
+ * the fetched documents, and only the survivors get the exact
+ * {@code $geoIntersects} test. The {@code 2dsphere} index is not used, which
+ * pays off most for large LineStrings and polygons whose many-cell
+ * {@code 2dsphere} coverings make every intersection check expensive.
+ * <p>
+ * Stored and query boxes both follow the great circle edges {@code 2dsphere}
+ * uses (see {@link SpatialCells}), so the prefilter returns a superset of the
+ * {@code $geoIntersects} matches. Documents loaded without cells are not
+ * found; use a plain {@code $geoIntersects} for those collections.
+ */
+public class GeoPrefilter {
+    private static final Logger log = Logger.getLogger(GeoPrefilter.class);
+
+    // the 3.4 driver has no FindIterable.hint()
+    static final Document HINT = new Document("$hint", new Document(GEO_CELLS, 1));
+
+    private final MongoCollection<Document> coll;
+    private final int maxCells;
+
+    public GeoPrefilter(MongoCollection<Document> coll) {
+        this(coll, SpatialCells.DEFAULT_MAX_CELLS);
+    }
+
+    /**
+     * @param maxCells
+     *            cells in the query region's covering. More cells fit the
+     *            region tighter but look up more terms.
+     */
+    public GeoPrefilter(MongoCollection<Document> coll, int maxCells) {
+        this.coll = coll;
+        this.maxCells = maxCells;
+    }
+
+    /**
+     * @param exact
+     *            add the exact {@code $geoIntersects} test; without it the
+     *            filter returns every candidate whose bounding box overlaps.
+     */
+    public Bson filter(Geometry region, boolean exact) {
+        Envelope box = SpatialCells.geodesicEnvelope(region);
+        List<Bson> and = new ArrayList<>();
+        and.add(Filters.in(GEO_CELLS, SpatialCells.queryTerms(SpatialCells.covering(box, maxCells))));
+        and.add(Filters.lte(GEO_BBOX + "." + SpatialCells.MIN_X, box.getMaxX()));
+        and.add(Filters.gte(GEO_BBOX + "." + SpatialCells.MAX_X, box.getMinX()));
+        and.add(Filters.lte(GEO_BBOX + "." + SpatialCells.MIN_Y, box.getMaxY()));
+        and.add(Filters.gte(GEO_BBOX + "." + SpatialCells.MAX_Y, box.getMinY()));
+        if (exact) {
+            and.add(Filters.geoIntersects(GEO, toGeoJson(region)));
+        }
+        return Filters.and(and);
+    }
+
+    /**
+     * Statements whose geometry intersects {@code region}, found through the
+     * cell index.
+     */
+    public FindIterable<Document> find(Geometry region) {
+        // pin the plan; with $geoIntersects in the filter the planner may pick 2dsphere
+        return coll.find(filter(region, true)).modifiers(HINT);
+    }
+
+    public long count(Geometry region, boolean exact) {
+        long count = 0;
+        for (Document ignored : coll.find(filter(region, exact)).modifiers(HINT).projection(new Document("_id", 1))) {
+            count++;
+        }
+        return count;
+    }
+
+    static Document toGeoJson(Geometry geo) {
+        return geo.getNumPoints() > 1 ? MongoSerialization.getCorrespondingPoints(geo) : MongoSerialization.getDBPoint(geo);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String dbName = "04_rya_hash";
+        String colName = "all";
+        Geometry region = new WKTReader().read(args.length > 0 ? args[0] : "POLYGON((-77.5 38.5, -76.5 38.5, -76.5 39.5, -77.5 39.5, -77.5 38.5))");
+
+        try (MongoClient client = new MongoClient(RyaUtil.getMongoServer())) {
+            MongoCollection<Document> coll = client.getDatabase(dbName).getCollection(colName);
+            GeoPrefilter prefilter = new GeoPrefilter(coll);
+
+            Stopwatch sw = new Stopwatch().start();
+            long candidates = prefilter.count(region, false);
+            log.info(String.format("Prefilter candidates :: %,d in %,d ms", candidates, sw.elapsed(TimeUnit.MILLISECONDS)));
+
+            sw.reset().start();
+            long matches = prefilter.count(region, true);
+            log.info(String.format("Prefilter + exact :: %,d in %,d ms", matches, sw.elapsed(TimeUnit.MILLISECONDS)));
+
+            sw.reset().start();
+            long plain = 0;
+            for (Document ignored : coll.find(Filters.geoIntersects(GEO, toGeoJson(region))).projection(new Document("_id", 1))) {
+                plain++;
+            }
+            log.info(String.format("2dsphere only :: %,d in %,d ms", plain, sw.elapsed(TimeUnit.MILLISECONDS)));
+            if (plain != matches) {
+                log.warn("Prefiltered and 2dsphere results differ; was the collection loaded with cells?");
+            }
+        }
+    }
+}
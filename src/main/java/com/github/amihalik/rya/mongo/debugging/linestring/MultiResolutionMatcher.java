@@ -0,0 +1,192 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.linestring;
+
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.GEO;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.GEO_CELLS;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.GEO_SIMPLIFIED;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.ID;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+
+import com.github.amihalik.rya.mongo.debugging.RyaUtil;
+import com.github.amihalik.rya.mongo.debugging.serialization.GeometrySimplifier;
+import com.github.amihalik.rya.mongo.debugging.serialization.GeometrySimplifier.Level;
+import com.google.common.base.Stopwatch;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Intersects a region against documents written with a
+ * {@link GeometrySimplifier}, trying the coarse copies before the exact
+ * geometry.
+ * <p>
+ * Candidates come from the {@link GeoPrefilter} with only {@code _id} and
+ * {@code location_simplified} fetched. For each level, coarsest first, a
+ * document is out if the region is farther than the level's Hausdorff bound
+ * from it, and in if one of the level's vertices, which are vertices of the
+ * exact geometry, lies in the region, or if the region lies inside a polygon
+ * farther than the bound from its boundary. Documents no level decides, and
+ * those stored without levels, go back to the server in one
+ * {@code $geoIntersects} per chunk of ids, so the full vertex list is only
+ * read for them.
+ * <p>
+ * The collection must have been loaded with {@code addCells} as well as a
+ * simplifier: the constructor refuses a collection without the cell index,
+ * and documents written without cells are never candidates.
+ * <p>
+ * The coarse tests are planar, like JTS; they only differ from the
+ * {@code 2dsphere} answer for edges long enough to bend by more than the bound.
+ */
+public class MultiResolutionMatcher {
+    private static final Logger log = Logger.getLogger(MultiResolutionMatcher.class);
+
+    private static final int ID_CHUNK = 1000;
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    private final MongoCollection<Document> coll;
+    private final GeoPrefilter prefilter;
+
+    private long decidedOut;
+    private long decidedIn;
+    private long exact;
+
+    /**
+     * @throws IllegalStateException
+     *             if {@code coll} has no index on {@code location_cells}.
+     */
+    public MultiResolutionMatcher(MongoCollection<Document> coll) {
+        if (!hasCellIndex(coll)) {
+            throw new IllegalStateException("No " + GEO_CELLS + " index on " + coll.getNamespace()
+                    + ": load the collection with addCells, or query it with a plain $geoIntersects");
+        }
+        this.coll = coll;
+        this.prefilter = new GeoPrefilter(coll);
+    }
+
+    private static boolean hasCellIndex(MongoCollection<Document> coll) {
+        for (Document index : coll.listIndexes()) {
+            Document key = (Document) index.get("key");
+            if (key != null && key.keySet().equals(Collections.singleton(GEO_CELLS))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code TRUE} or {@code FALSE} if a level decides, {@code null}
+     *         if only the exact geometry can.
+     */
+    public static Boolean test(Geometry region, PreparedGeometry prepared, List<Level> levels) {
+        for (Level level : levels) {
+            if (region.distance(level.geometry) > level.bound) {
+                return Boolean.FALSE;
+            }
+            if (level.geometry instanceof Polygon && region.distance(level.geometry.getBoundary()) > level.bound) {
+                // the boundary is too far to matter, so the region is wholly inside
+                return Boolean.TRUE;
+            }
+            for (Coordinate c : level.geometry.getCoordinates()) {
+                if (prepared.intersects(FACTORY.createPoint(c))) {
+                    return Boolean.TRUE;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the {@code _id} of every document whose geometry intersects
+     *         {@code region}.
+     */
+    public List<Object> ids(Geometry region) {
+        PreparedGeometry prepared = PreparedGeometryFactory.prepare(region);
+        List<Object> matches = new ArrayList<>();
+        List<Object> undecided = new ArrayList<>();
+        Document projection = new Document(ID, 1).append(GEO_SIMPLIFIED, 1);
+        for (Document doc : coll.find(prefilter.filter(region, false)).modifiers(GeoPrefilter.HINT).projection(projection)) {
+            Boolean result = test(region, prepared, GeometrySimplifier.read(doc));
+            if (result == null) {
+                undecided.add(doc.get(ID));
+            } else if (result) {
+                decidedIn++;
+                matches.add(doc.get(ID));
+            } else {
+                decidedOut++;
+            }
+        }
+
+        Document geoJson = GeoPrefilter.toGeoJson(region);
+        for (int i = 0; i < undecided.size(); i += ID_CHUNK) {
+            List<Object> chunk = undecided.subList(i, Math.min(undecided.size(), i + ID_CHUNK));
+            exact += chunk.size();
+            for (Document doc : coll.find(Filters.and(Filters.in(ID, chunk), Filters.geoIntersects(GEO, geoJson))).projection(
+                    new Document(ID, 1))) {
+                matches.add(doc.get(ID));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @return documents ruled out by a simplified level so far.
+     */
+    public long getDecidedOut() {
+        return decidedOut;
+    }
+
+    /**
+     * @return documents ruled in by a simplified level so far.
+     */
+    public long getDecidedIn() {
+        return decidedIn;
+    }
+
+    /**
+     * @return documents that needed the exact geometry so far.
+     */
+    public long getExact() {
+        return exact;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String dbName = "04_rya_hash";
+        String colName = "all";
+        Geometry region = new WKTReader().read(args.length > 0 ? args[0] : "POLYGON((-77.5 38.5, -76.5 38.5, -76.5 39.5, -77.5 39.5, -77.5 38.5))");
+
+        try (MongoClient client = new MongoClient(RyaUtil.getMongoServer())) {
+            MultiResolutionMatcher matcher = new MultiResolutionMatcher(client.getDatabase(dbName).getCollection(colName));
+            Stopwatch sw = new Stopwatch().start();
+            List<Object> ids = matcher.ids(region);
+            log.info(String.format("Matches :: %,d in %,d ms\t Decided coarse in :: %,d\t out :: %,d\t Exact :: %,d", ids.size(),
+                    sw.elapsed(TimeUnit.MILLISECONDS), matcher.getDecidedIn(), matcher.getDecidedOut(), matcher.getExact()));
+        }
+    }
+}
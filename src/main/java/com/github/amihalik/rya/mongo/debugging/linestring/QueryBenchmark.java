@@ -0,0 +1,404 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.linestring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.apache.rya.mongodb.MongoDBRdfConfiguration;
+import org.openrdf.model.Statement;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.BooleanQuery;
+import org.openrdf.query.GraphQuery;
+import org.openrdf.query.Query;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQuery;
+import org.openrdf.query.TupleQueryResultHandlerBase;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.repository.sail.SailRepositoryConnection;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+
+import com.github.amihalik.rya.mongo.debugging.RyaUtil;
+import com.github.amihalik.rya.mongo.debugging.SharedRyaRepository;
+import com.github.amihalik.rya.mongo.debugging.serialization.IngestEpoch;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+
+/**
+ * Runs every SPARQL query in a directory against Rya, with warmup, repeats and
+ * several concurrent clients, and reports time to first result, latency
+ * percentiles and result counts per query.
+ *
+ * <pre>
+ * QueryBenchmark &lt;dir&gt; [--warmup 3] [--repeats 20] [--clients 1,4,16] [--cache 256]
+ * </pre>
+ *
+ * Query files end in {@code .rq}, {@code .sparql} or {@code .txt}; SELECT,
+ * CONSTRUCT/DESCRIBE and ASK are supported. Before timing, each query runs
+ * once on a separate repository with {@code displayQueryPlan} on, and the plan
+ * Rya prints is saved to {@code query-plans/<query>.txt}. A plan that differs
+ * from the saved one is logged, and the old one kept as
+ * {@code <query>.previous.txt}. The timed repository has plan display off.
+ * <p>
+ * For each client count, every client borrows its own connection from a
+ * {@link SharedRyaRepository} pool sized for the largest count, so the Sail is
+ * built once and connections are reused across queries, runs its warmup,
+ * all clients start the timed runs together, and each does {@code repeats}
+ * runs. Results are appended to {@code query-benchmark.csv} with the size of
+ * the triples collection, so runs at different data sizes line up.
+ * {@code --cache} puts a {@link QueryResultCache} of that many MB in front of
+ * the timed connections, to see what repeated dashboard queries cost. It
+ * watches the shared {@link IngestEpoch}, so loads running alongside clear it.
+ */
+public class QueryBenchmark {
+    private static final Logger log = Logger.getLogger(QueryBenchmark.class);
+
+    private static final File REPORT = new File("query-benchmark.csv");
+    private static final File PLANS = new File("query-plans");
+    private static final List<String> EXTENSIONS = Arrays.asList(".rq", ".sparql", ".txt");
+
+    private static class Execution {
+        long firstNanos;
+        long totalNanos;
+        long results;
+        boolean failed;
+
+        void result(long start) {
+            if (results++ == 0) {
+                firstNanos = System.nanoTime() - start;
+            }
+        }
+    }
+
+    private static class Result {
+        String query;
+        int clients;
+        long documents;
+        long wallNanos;
+        List<Execution> executions = new ArrayList<>();
+
+        long[] sorted(boolean first) {
+            long[] nanos = executions.stream().filter(e -> !e.failed).mapToLong(e -> first ? e.firstNanos : e.totalNanos).toArray();
+            Arrays.sort(nanos);
+            return nanos;
+        }
+
+        long errors() {
+            return executions.stream().filter(e -> e.failed).count();
+        }
+
+        long minResults() {
+            return executions.stream().filter(e -> !e.failed).mapToLong(e -> e.results).min().orElse(0);
+        }
+
+        long maxResults() {
+            return executions.stream().filter(e -> !e.failed).mapToLong(e -> e.results).max().orElse(0);
+        }
+
+        double queriesPerSecond() {
+            return executions.size() * 1e9 / Math.max(wallNanos, 1);
+        }
+    }
+
+    private final SharedRyaRepository repository;
+    private final SailRepository planRepository;
+    private final int warmup;
+    private final int repeats;
+    private final QueryResultCache cache;
+
+    /**
+     * @param cache
+     *            shared by all clients, or null to always query Mongo.
+     */
+    public QueryBenchmark(SharedRyaRepository repository, SailRepository planRepository, int warmup, int repeats, QueryResultCache cache) {
+        this.repository = repository;
+        this.planRepository = planRepository;
+        this.warmup = warmup;
+        this.repeats = repeats;
+        this.cache = cache;
+    }
+
+    private static Execution execute(RepositoryConnection conn, String sparql) {
+        Execution e = new Execution();
+        long start = System.nanoTime();
+        try {
+            Query query = conn.prepareQuery(QueryLanguage.SPARQL, sparql);
+            if (query instanceof TupleQuery) {
+                ((TupleQuery) query).evaluate(new TupleQueryResultHandlerBase() {
+                    @Override
+                    public void handleSolution(BindingSet bindingSet) {
+                        e.result(start);
+                    }
+                });
+            } else if (query instanceof GraphQuery) {
+                ((GraphQuery) query).evaluate(new RDFHandlerBase() {
+                    @Override
+                    public void handleStatement(Statement st) {
+                        e.result(start);
+                    }
+                });
+            } else if (((BooleanQuery) query).evaluate()) {
+                e.result(start);
+            }
+        } catch (Exception ex) {
+            log.error("Query failed", ex);
+            e.failed = true;
+        }
+        e.totalNanos = System.nanoTime() - start;
+        if (e.results == 0) {
+            // an empty answer arrives when the query ends
+            e.firstNanos = e.totalNanos;
+        }
+        return e;
+    }
+
+    /**
+     * Runs the query once with plan display on and returns what Rya printed.
+     */
+    private String capturePlan(String sparql) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        SailRepositoryConnection conn = planRepository.getConnection();
+        try {
+            System.setOut(new PrintStream(buffer, true, StandardCharsets.UTF_8.name()));
+            execute(conn, sparql);
+        } finally {
+            System.setOut(stdout);
+            conn.close();
+        }
+        return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void savePlan(String query, String plan) throws Exception {
+        File file = new File(PLANS, query + ".txt");
+        if (file.exists()) {
+            String previous = FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+            if (!previous.equals(plan)) {
+                log.warn("Query plan for " + query + " changed since the last run; old plan in " + query + ".previous.txt");
+                FileUtils.copyFile(file, new File(PLANS, query + ".previous.txt"));
+            }
+        }
+        FileUtils.writeStringToFile(file, plan, StandardCharsets.UTF_8);
+    }
+
+    private Result run(String query, String sparql, int clients, long documents) throws Exception {
+        log.info("==== " + query + " :: " + clients + " clients ====");
+        Result result = new Result();
+        result.query = query;
+        result.clients = clients;
+        result.documents = documents;
+
+        List<RepositoryConnection> conns = new ArrayList<>();
+        AtomicLong start = new AtomicLong();
+        CyclicBarrier warmedUp = new CyclicBarrier(clients, () -> start.set(System.nanoTime()));
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        try {
+            // borrowed up front so a failure can't leave the others waiting at the barrier
+            for (int i = 0; i < clients; i++) {
+                RepositoryConnection conn = repository.borrow();
+                conns.add(cache == null ? conn : new CachingRepositoryConnection(conn, cache));
+            }
+            List<Future<List<Execution>>> futures = new ArrayList<>();
+            for (RepositoryConnection conn : conns) {
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < warmup; i++) {
+                        execute(conn, sparql);
+                    }
+                    warmedUp.await();
+                    List<Execution> executions = new ArrayList<>(repeats);
+                    for (int i = 0; i < repeats; i++) {
+                        executions.add(execute(conn, sparql));
+                    }
+                    return executions;
+                }));
+            }
+            for (Future<List<Execution>> f : futures) {
+                result.executions.addAll(f.get());
+            }
+            result.wallNanos = System.nanoTime() - start.get();
+        } finally {
+            pool.shutdownNow();
+            for (RepositoryConnection conn : conns) {
+                conn.close();
+            }
+        }
+
+        long[] total = result.sorted(false);
+        log.info(String.format("%s :: %d clients :: p50 %.1f ms :: p99 %.1f ms :: %,d-%,d results :: %d errors", query, clients,
+                millis(percentile(total, 0.5)), millis(percentile(total, 0.99)), result.minResults(), result.maxResults(),
+                result.errors()));
+        return result;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.max(0, Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static void report(List<Result> results) throws Exception {
+        log.info("===============================================");
+        log.info(String.format("%-24s %7s %6s %6s %17s %9s %9s %9s %9s %9s %9s %9s %8s", "query", "clients", "runs", "errors", "results",
+                "first p50", "first p99", "p50 ms", "p90 ms", "p99 ms", "max ms", "mean ms", "q/s"));
+        for (Result r : results) {
+            long[] first = r.sorted(true);
+            long[] total = r.sorted(false);
+            log.info(String.format("%-24s %7d %6d %6d %,8d-%,8d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %8.1f", r.query, r.clients,
+                    r.executions.size(), r.errors(), r.minResults(), r.maxResults(), millis(percentile(first, 0.5)),
+                    millis(percentile(first, 0.99)), millis(percentile(total, 0.5)), millis(percentile(total, 0.9)),
+                    millis(percentile(total, 0.99)), millis(percentile(total, 1.0)), millis(mean(total)), r.queriesPerSecond()));
+        }
+
+        boolean newReport = !REPORT.exists();
+        try (PrintWriter out = new PrintWriter(new FileWriter(REPORT, true))) {
+            if (newReport) {
+                out.println("timestamp,query,clients,documents,executions,errors,min_results,max_results,first_p50_ms,first_p99_ms,"
+                        + "p50_ms,p90_ms,p99_ms,max_ms,mean_ms,queries_per_sec");
+            }
+            long now = System.currentTimeMillis();
+            for (Result r : results) {
+                long[] first = r.sorted(true);
+                long[] total = r.sorted(false);
+                out.println(now + "," + r.query + "," + r.clients + "," + r.documents + "," + r.executions.size() + "," + r.errors() + ","
+                        + r.minResults() + "," + r.maxResults() + "," + millis(percentile(first, 0.5)) + ","
+                        + millis(percentile(first, 0.99)) + "," + millis(percentile(total, 0.5)) + "," + millis(percentile(total, 0.9))
+                        + "," + millis(percentile(total, 0.99)) + "," + millis(percentile(total, 1.0)) + "," + millis(mean(total)) + ","
+                        + r.queriesPerSecond());
+            }
+        }
+        log.info("Results appended to " + REPORT.getAbsolutePath());
+    }
+
+    private static long mean(long[] values) {
+        return values.length == 0 ? 0 : (long) Arrays.stream(values).average().getAsDouble();
+    }
+
+    private static long countDocuments(MongoDBRdfConfiguration conf) {
+        try (MongoClient client = new MongoClient(RyaUtil.getMongoServer())) {
+            return client.getDatabase(conf.getMongoDBName()).getCollection(conf.getTriplesCollectionName()).count();
+        } catch (MongoException e) {
+            log.warn("Could not count the triples collection :: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private static String queryName(File file) {
+        String name = file.getName();
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: QueryBenchmark <dir> [--warmup 3] [--repeats 20] [--clients 1,4,16] [--cache 256]");
+            System.exit(1);
+        }
+
+        File dir = new File(args[0]);
+        int warmup = 3;
+        int repeats = 20;
+        List<Integer> clientCounts = new ArrayList<>();
+        QueryResultCache cache = null;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+            case "--warmup":
+                warmup = Integer.parseInt(args[++i]);
+                break;
+            case "--repeats":
+                repeats = Integer.parseInt(args[++i]);
+                break;
+            case "--clients":
+                for (String c : args[++i].split(",")) {
+                    clientCounts.add(Integer.parseInt(c.trim()));
+                }
+                break;
+            case "--cache":
+                long maxBytes = Long.parseLong(args[++i]) << 20;
+                cache = new QueryResultCache(maxBytes, maxBytes / 10, QueryResultCache.DEFAULT_MAX_AGE_SECONDS);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        if (clientCounts.isEmpty()) {
+            clientCounts.add(1);
+        }
+
+        File[] files = dir.listFiles((d, name) -> EXTENSIONS.stream().anyMatch(name::endsWith));
+        if (files == null || files.length == 0) {
+            throw new IllegalArgumentException("No query files in " + dir);
+        }
+        Arrays.sort(files);
+
+        MongoDBRdfConfiguration conf = RyaUtil.getConf();
+        conf.setDisplayQueryPlan(false);
+        MongoDBRdfConfiguration planConf = RyaUtil.getConf();
+        planConf.setDisplayQueryPlan(true);
+        long documents = countDocuments(conf);
+        log.info(String.format("%d queries against %,d documents", files.length, documents));
+
+        MongoClient epochClient = null;
+        if (cache != null) {
+            epochClient = new MongoClient(RyaUtil.getMongoServer());
+            IngestEpoch.watch(epochClient.getDatabase(conf.getMongoDBName()), IngestEpoch.DEFAULT_POLL_MILLIS);
+        }
+
+        SharedRyaRepository repository = new SharedRyaRepository(conf, Collections.max(clientCounts));
+        SailRepository planRepository = RyaUtil.getSailRepository(planConf);
+        try {
+            QueryBenchmark benchmark = new QueryBenchmark(repository, planRepository, warmup, repeats, cache);
+            List<Result> results = new ArrayList<>();
+            for (File file : files) {
+                String query = queryName(file);
+                String sparql = FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+                savePlan(query, benchmark.capturePlan(sparql));
+                for (int clients : clientCounts) {
+                    results.add(benchmark.run(query, sparql, clients, documents));
+                }
+            }
+            report(results);
+            if (cache != null) {
+                log.info(cache);
+            }
+        } finally {
+            repository.close();
+            planRepository.shutDown();
+            if (epochClient != null) {
+                epochClient.close();
+            }
+        }
+    }
+}
@@ -4,7 +4,7 @@ import org.apache.log4j.Logger;
 import org.openrdf.query.QueryLanguage;
 import org.openrdf.query.TupleQuery;
 import org.openrdf.query.resultio.sparqljson.SPARQLResultsJSONWriter;
-import org.openrdf.repository.sail.SailRepositoryConnection;
+import org.openrdf.repository.RepositoryConnection;
 
 import com.github.amihalik.rya.mongo.debugging.RyaUtil;
 import com.google.common.base.Charsets;
@@ -17,7 +17,7 @@ public class QueryData {
     public static void main(String[] args) throws Exception {
 
         log.info("Opening Connection to Rya");
-        SailRepositoryConnection conn = RyaUtil.getSailRepo();
+        RepositoryConnection conn = RyaUtil.getSailRepo();
         log.info("Done Opening Connection to Rya");
         
         String query = Resources.toString(Resources.getResource("query.txt"), Charsets.UTF_8);
@@ -25,6 +25,7 @@ public class QueryData {
         TupleQuery tq = conn.prepareTupleQuery(QueryLanguage.SPARQL, query);
         
         tq.evaluate(new SPARQLResultsJSONWriter(System.out));
+        conn.close();
     }
 
 
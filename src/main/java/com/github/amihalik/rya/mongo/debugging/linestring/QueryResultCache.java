@@ -0,0 +1,366 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.linestring;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.openrdf.model.Value;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.impl.MapBindingSet;
+import org.openrdf.query.impl.TupleQueryResultImpl;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.github.amihalik.rya.mongo.debugging.serialization.IngestEpoch;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+/**
+ * Bounded cache of tuple query results, shared by any number of
+ * {@link CachingRepositoryConnection}s.
+ * <p>
+ * Entries are keyed on the query with comments dropped and whitespace
+ * collapsed, plus its base URI, bindings, dataset and inference flag. The
+ * cache is bounded by the estimated heap size of the cached rows; a result
+ * bigger than {@code maxEntryBytes} is passed through and never cached. A
+ * result is only cached once the caller has read all of it.
+ * <p>
+ * Every entry records the {@link IngestEpoch} its query started in, and is
+ * dropped as soon as any loader in this process has written since. Loads by
+ * other processes are seen once {@link IngestEpoch#watch} has been called,
+ * within its poll interval. Other writes, and loads when the shared counter
+ * is not watched, are only picked up after {@code maxAgeSeconds}, so it is
+ * never unbounded by default.
+ */
+public class QueryResultCache {
+    private static final Logger log = Logger.getLogger(QueryResultCache.class);
+
+    public static final long DEFAULT_MAX_BYTES = 256L << 20;
+    public static final long DEFAULT_MAX_AGE_SECONDS = 60;
+
+    private static final class Entry {
+        final List<String> bindingNames;
+        final List<BindingSet> rows;
+        final long epoch;
+        final int bytes;
+
+        Entry(List<String> bindingNames, List<BindingSet> rows, long epoch, int bytes) {
+            this.bindingNames = bindingNames;
+            this.rows = rows;
+            this.epoch = epoch;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Cache<String, Entry> cache;
+    private final long maxEntryBytes;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong uncacheable = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private volatile long epoch = IngestEpoch.current();
+
+    public QueryResultCache() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_BYTES / 10, DEFAULT_MAX_AGE_SECONDS);
+    }
+
+    /**
+     * @param maxAgeSeconds
+     *            drop entries this long after they were cached; 0 keeps them
+     *            until evicted or invalidated.
+     */
+    public QueryResultCache(long maxBytes, long maxEntryBytes, long maxAgeSeconds) {
+        this.maxEntryBytes = Math.min(maxEntryBytes, Integer.MAX_VALUE);
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumWeight(maxBytes).recordStats();
+        if (maxAgeSeconds > 0) {
+            builder.expireAfterWrite(maxAgeSeconds, TimeUnit.SECONDS);
+        }
+        this.cache = builder.weigher(new Weigher<String, Entry>() {
+            @Override
+            public int weigh(String key, Entry entry) {
+                return entry.bytes;
+            }
+        }).removalListener(new RemovalListener<String, Entry>() {
+            @Override
+            public void onRemoval(RemovalNotification<String, Entry> notification) {
+                bytes.addAndGet(-notification.getValue().bytes);
+            }
+        }).build();
+    }
+
+    /**
+     * @return the normalized key of a query evaluation.
+     */
+    public static String key(QueryLanguage language, String query, String baseURI, BindingSet bindings, Dataset dataset,
+            boolean includeInferred) {
+        StringBuilder key = new StringBuilder();
+        key.append(language).append('\n').append(normalize(query)).append('\n').append(baseURI).append('\n');
+        // bindings in name order, so the order they were set in does not matter
+        TreeMap<String, Value> sorted = new TreeMap<>();
+        for (Binding b : bindings) {
+            sorted.put(b.getName(), b.getValue());
+        }
+        key.append(sorted).append('\n').append(dataset).append('\n').append(includeInferred);
+        return key.toString();
+    }
+
+    /**
+     * Drops comments and collapses whitespace outside of string literals and
+     * IRIs.
+     */
+    static String normalize(String query) {
+        StringBuilder out = new StringBuilder(query.length());
+        int i = 0;
+        int n = query.length();
+        boolean space = false;
+        while (i < n) {
+            char c = query.charAt(i);
+            if (c == '#') {
+                while (i < n && query.charAt(i) != '\n' && query.charAt(i) != '\r') {
+                    i++;
+                }
+                space = true;
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                space = true;
+                i++;
+                continue;
+            }
+            if (space && out.length() > 0) {
+                out.append(' ');
+            }
+            space = false;
+            int end = i + 1;
+            if (c == '"' || c == '\'') {
+                end = endOfString(query, i);
+            } else if (c == '<') {
+                // an IRI, or a less-than kept verbatim up to the next '>', which is just as safe
+                int close = query.indexOf('>', i);
+                end = close < 0 ? i + 1 : close + 1;
+            }
+            out.append(query, i, end);
+            i = end;
+        }
+        return out.toString();
+    }
+
+    private static int endOfString(String query, int start) {
+        char quote = query.charAt(start);
+        String triple = new String(new char[] { quote, quote, quote });
+        if (query.startsWith(triple, start)) {
+            int close = query.indexOf(triple, start + 3);
+            return close < 0 ? query.length() : close + 3;
+        }
+        int i = start + 1;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == quote) {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+        return query.length();
+    }
+
+    /**
+     * @return the cached result, or null on a miss.
+     */
+    public TupleQueryResult get(String key) {
+        checkEpoch();
+        Entry entry = cache.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.epoch != epoch) {
+            // computed before a write that landed while it was being read
+            cache.invalidate(key);
+            return null;
+        }
+        return new TupleQueryResultImpl(entry.bindingNames, entry.rows);
+    }
+
+    /**
+     * Wraps a freshly evaluated result so it is cached once fully read.
+     *
+     * @param startEpoch
+     *            {@link IngestEpoch#current()} from before the query was
+     *            evaluated.
+     */
+    public TupleQueryResult record(String key, TupleQueryResult result, long startEpoch) throws QueryEvaluationException {
+        return new RecordingResult(key, result, startEpoch);
+    }
+
+    private void checkEpoch() {
+        long current = IngestEpoch.current();
+        if (current != epoch) {
+            synchronized (this) {
+                if (current != epoch) {
+                    epoch = current;
+                    invalidations.incrementAndGet();
+                    cache.invalidateAll();
+                    log.debug("Statements were written, query cache cleared");
+                }
+            }
+        }
+    }
+
+    private static int estimateBytes(BindingSet row) {
+        int size = 48;
+        for (Binding b : row) {
+            size += 64 + 2 * b.getName().length() + 2 * b.getValue().stringValue().length();
+        }
+        return size;
+    }
+
+    private final class RecordingResult implements TupleQueryResult {
+        private final String key;
+        private final TupleQueryResult inner;
+        private final long startEpoch;
+        private final List<String> bindingNames;
+        private List<BindingSet> rows = new ArrayList<>();
+        private long size;
+
+        RecordingResult(String key, TupleQueryResult inner, long startEpoch) throws QueryEvaluationException {
+            this.key = key;
+            this.inner = inner;
+            this.startEpoch = startEpoch;
+            this.bindingNames = inner.getBindingNames();
+        }
+
+        @Override
+        public List<String> getBindingNames() {
+            return bindingNames;
+        }
+
+        @Override
+        public boolean hasNext() throws QueryEvaluationException {
+            boolean hasNext = inner.hasNext();
+            if (!hasNext && rows != null) {
+                if (startEpoch == IngestEpoch.current()) {
+                    bytes.addAndGet(size);
+                    cache.put(key, new Entry(bindingNames, rows, startEpoch, (int) size));
+                }
+                rows = null;
+            }
+            return hasNext;
+        }
+
+        @Override
+        public BindingSet next() throws QueryEvaluationException {
+            BindingSet row = inner.next();
+            if (rows != null) {
+                // copied, the evaluation may reuse its binding sets
+                MapBindingSet copy = new MapBindingSet(row.size());
+                for (Binding b : row) {
+                    copy.addBinding(b.getName(), b.getValue());
+                }
+                rows.add(copy);
+                size += estimateBytes(copy);
+                if (size > maxEntryBytes) {
+                    uncacheable.incrementAndGet();
+                    rows = null;
+                }
+            }
+            return row;
+        }
+
+        @Override
+        public void remove() throws QueryEvaluationException {
+            inner.remove();
+        }
+
+        @Override
+        public void close() throws QueryEvaluationException {
+            rows = null;
+            inner.close();
+        }
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * @return the estimated heap size of the cached rows.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * @return results that were too big to cache.
+     */
+    public long getUncacheable() {
+        return uncacheable.get();
+    }
+
+    /**
+     * @return times the whole cache was cleared because statements were
+     *         written.
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Exposes the hit and memory figures as gauges named
+     * {@code <prefix>.hits}, {@code <prefix>.bytes}, ..., e.g. in
+     * {@link com.github.amihalik.rya.mongo.debugging.metrics.IngestMetrics#REGISTRY}
+     * to have them on JMX.
+     */
+    public void registerMetrics(MetricRegistry registry, String prefix) {
+        registry.register(prefix + ".hits", (Gauge<Long>) () -> stats().hitCount());
+        registry.register(prefix + ".misses", (Gauge<Long>) () -> stats().missCount());
+        registry.register(prefix + ".hit-rate", (Gauge<Double>) () -> stats().hitRate());
+        registry.register(prefix + ".evictions", (Gauge<Long>) () -> stats().evictionCount());
+        registry.register(prefix + ".entries", (Gauge<Long>) this::size);
+        registry.register(prefix + ".bytes", (Gauge<Long>) this::getBytes);
+        registry.register(prefix + ".uncacheable", (Gauge<Long>) this::getUncacheable);
+        registry.register(prefix + ".invalidations", (Gauge<Long>) this::getInvalidations);
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = stats();
+        return String.format("Query cache :: %,d hits\t %,d misses\t hit rate %.2f\t %,d entries\t %,d KB\t %,d evictions\t %,d too big\t"
+                + " %,d invalidations", stats.hitCount(), stats.missCount(), stats.hitRate(), size(), getBytes() >> 10,
+                stats.evictionCount(), getUncacheable(), getInvalidations());
+    }
+}
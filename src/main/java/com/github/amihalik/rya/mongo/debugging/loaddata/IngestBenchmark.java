@@ -0,0 +1,383 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.loaddata;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.apache.rya.api.domain.RyaStatement;
+import org.apache.rya.api.persist.RyaDAOException;
+import org.apache.rya.api.resolver.RdfToRyaConversions;
+import org.apache.rya.indexing.OptionalConfigUtils;
+import org.apache.rya.mongodb.EmbeddedMongoFactory;
+import org.apache.rya.mongodb.MongoDBRdfConfiguration;
+import org.apache.rya.mongodb.MongoDBRyaDAO;
+import org.bson.Document;
+import org.openrdf.model.Statement;
+import org.openrdf.repository.sail.SailRepositoryConnection;
+import org.openrdf.repository.util.RDFInserter;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+import org.openrdf.rio.helpers.RDFHandlerWrapper;
+
+import com.github.amihalik.rya.mongo.debugging.RyaUtil;
+import com.github.amihalik.rya.mongo.debugging.serialization.BatchLoadRya;
+import com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization;
+import com.github.amihalik.rya.mongo.debugging.serialization.PipelineLoadRya;
+import com.github.amihalik.rya.mongo.debugging.serialization.RawMongoSerialization;
+import com.github.amihalik.rya.mongo.debugging.serialization.RdfHandlerFuzzer;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Runs the load paths of {@link LoadDataFile} (Sail), {@link LoadDataFileFaster}
+ * (DAO) and {@link BatchLoadRya} / {@link PipelineLoadRya} (raw driver) on the
+ * same input, one after the other, each against a freshly dropped database,
+ * and prints a comparison.
+ *
+ * <pre>
+ * IngestBenchmark &lt;file&gt; [--format N3] [--modes sail,dao,document,raw,pipeline]
+ *                 [--fuzz 1] [--repeats 1] [--embedded]
+ * </pre>
+ *
+ * {@code --embedded} starts a throwaway mongod instead of using the one from
+ * {@code -Drya.mongo.host}/{@code -Drya.mongo.port}. Every mode writes to the
+ * Rya triples collection, so the reported collection and index sizes are
+ * directly comparable; only the Sail and DAO modes create Rya's indexes.
+ * Results are also appended to {@code ingest-benchmark.csv}.
+ */
+public class IngestBenchmark {
+    private static final Logger log = Logger.getLogger(IngestBenchmark.class);
+
+    public enum Mode {
+        /** Sesame repository, as {@link LoadDataFile}. */
+        sail,
+        /** {@link MongoDBRyaDAO} in batches, as {@link LoadDataFileFaster}. */
+        dao,
+        /** {@link BatchLoadRya} with {@link MongoSerialization}. */
+        document,
+        /** {@link BatchLoadRya} with {@link RawMongoSerialization}. */
+        raw,
+        /** {@link PipelineLoadRya} with {@link RawMongoSerialization}. */
+        pipeline
+    }
+
+    private static final int DAO_BATCH_SIZE = 100_000;
+    private static final long HEAP_SAMPLE_MILLIS = 50;
+    private static final File REPORT = new File("ingest-benchmark.csv");
+
+    private static class Result {
+        Mode mode;
+        int run;
+        long statements;
+        long wallNanos;
+        long peakHeap;
+        long count;
+        long dataSize;
+        long storageSize;
+        long indexSize;
+
+        long throughput() {
+            return (long) (statements * 1e9 / Math.max(wallNanos, 1));
+        }
+    }
+
+    private final File file;
+    private final RDFFormat format;
+    private final int fuzz;
+    private final MongoClient admin;
+    private final String dbName;
+    private final String colName;
+
+    public IngestBenchmark(File file, RDFFormat format, int fuzz, MongoClient admin) {
+        this.file = file;
+        this.format = format;
+        this.fuzz = fuzz;
+        this.admin = admin;
+        MongoDBRdfConfiguration conf = RyaUtil.getConf();
+        this.dbName = conf.getMongoDBName();
+        this.colName = conf.getTriplesCollectionName();
+    }
+
+    private Result run(Mode mode, int run) throws Exception {
+        log.info("==== " + mode + " run " + run + " ====");
+        MongoDatabase db = admin.getDatabase(dbName);
+        db.drop();
+        System.gc();
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        AtomicLong peakHeap = new AtomicLong(memory.getHeapMemoryUsage().getUsed());
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(() -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max), 0,
+                HEAP_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+
+        Result result = new Result();
+        result.mode = mode;
+        result.run = run;
+
+        long start = System.nanoTime();
+        try {
+            result.statements = load(mode);
+        } finally {
+            result.wallNanos = System.nanoTime() - start;
+            sampler.shutdownNow();
+        }
+        result.peakHeap = peakHeap.get();
+
+        try {
+            Document stats = db.runCommand(new Document("collStats", colName));
+            result.count = longValue(stats, "count");
+            result.dataSize = longValue(stats, "size");
+            result.storageSize = longValue(stats, "storageSize");
+            result.indexSize = longValue(stats, "totalIndexSize");
+        } catch (MongoException e) {
+            log.warn("No collection stats for " + dbName + "." + colName + " :: " + e.getMessage());
+        }
+
+        log.info(String.format("%s run %d :: %,d statements in %,d ms :: %,d/s :: peak heap %,d MB", mode, run, result.statements,
+                TimeUnit.NANOSECONDS.toMillis(result.wallNanos), result.throughput(), result.peakHeap >> 20));
+        return result;
+    }
+
+    private static long longValue(Document doc, String key) {
+        Object value = doc.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    /**
+     * @return the number of statements handed to the load path.
+     */
+    private long load(Mode mode) throws Exception {
+        switch (mode) {
+        case sail: {
+            // its own Sail, so the shutdown that flushes the DAO is part of the timing
+            SailRepositoryConnection conn = RyaUtil.getSailRepository(RyaUtil.getConf()).getConnection();
+            try {
+                return parse(new RDFInserter(conn));
+            } finally {
+                conn.close();
+                conn.getRepository().shutDown();
+            }
+        }
+        case dao:
+            return loadDao();
+        case document:
+            return parse(BatchLoadRya.newHandler(dbName, colName, new MongoSerialization(true, true)));
+        case raw:
+            return parse(BatchLoadRya.newHandler(dbName, colName, new RawMongoSerialization(true, true)));
+        case pipeline:
+            int cores = Runtime.getRuntime().availableProcessors();
+            return parse(BatchLoadRya.newHandler(new PipelineLoadRya<>(dbName, colName, new RawMongoSerialization(true, true), 100_000,
+                    cores, 4, 4)));
+        default:
+            throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+    }
+
+    private long loadDao() throws Exception {
+        MongoDBRdfConfiguration config = RyaUtil.getConf();
+        OptionalConfigUtils.setIndexers(config);
+        MongoClient client = new MongoClient(RyaUtil.getMongoServer());
+        MongoDBRyaDAO dao = new MongoDBRyaDAO(config, client);
+        dao.init();
+        try {
+            return parse(new RDFHandlerBase() {
+                private final List<RyaStatement> statements = new ArrayList<>(DAO_BATCH_SIZE);
+
+                @Override
+                public void handleStatement(Statement st) throws RDFHandlerException {
+                    statements.add(RdfToRyaConversions.convertStatement(st));
+                    if (statements.size() == DAO_BATCH_SIZE) {
+                        flush();
+                    }
+                }
+
+                @Override
+                public void endRDF() throws RDFHandlerException {
+                    flush();
+                    try {
+                        dao.flush();
+                    } catch (RyaDAOException e) {
+                        throw new RDFHandlerException(e);
+                    }
+                }
+
+                private void flush() throws RDFHandlerException {
+                    try {
+                        dao.add(statements.iterator());
+                    } catch (RyaDAOException e) {
+                        throw new RDFHandlerException(e);
+                    }
+                    statements.clear();
+                }
+            });
+        } finally {
+            dao.destroy();
+            client.close();
+        }
+    }
+
+    private long parse(RDFHandler sink) throws Exception {
+        AtomicLong count = new AtomicLong();
+        RDFHandler counter = new RDFHandlerWrapper(sink) {
+            @Override
+            public void handleStatement(Statement st) throws RDFHandlerException {
+                count.incrementAndGet();
+                super.handleStatement(st);
+            }
+        };
+
+        RDFParser parser = Rio.createParser(format);
+        parser.setRDFHandler(new RdfHandlerFuzzer(counter, fuzz));
+        try (InputStream in = FileUtils.openInputStream(file)) {
+            parser.parse(in, "");
+        }
+        return count.get();
+    }
+
+    private static void report(List<Result> results) throws Exception {
+        log.info("===============================================");
+        String header = String.format("%-9s %4s %14s %10s %12s %10s %14s %10s %10s %10s", "mode", "run", "statements", "wall ms",
+                "stmts/s", "heap MB", "documents", "data MB", "store MB", "index MB");
+        log.info(header);
+        for (Result r : results) {
+            log.info(String.format("%-9s %4d %,14d %,10d %,12d %,10d %,14d %,10d %,10d %,10d", r.mode, r.run, r.statements,
+                    TimeUnit.NANOSECONDS.toMillis(r.wallNanos), r.throughput(), r.peakHeap >> 20, r.count, r.dataSize >> 20,
+                    r.storageSize >> 20, r.indexSize >> 20));
+        }
+
+        Map<Mode, List<Result>> byMode = new LinkedHashMap<>();
+        for (Result r : results) {
+            byMode.computeIfAbsent(r.mode, m -> new ArrayList<>()).add(r);
+        }
+        log.info("-----------------------------------------------");
+        for (Map.Entry<Mode, List<Result>> e : byMode.entrySet()) {
+            long best = 0;
+            long sum = 0;
+            for (Result r : e.getValue()) {
+                best = Math.max(best, r.throughput());
+                sum += r.throughput();
+            }
+            log.info(String.format("%-9s mean %,d stmts/s :: best %,d stmts/s over %d runs", e.getKey(), sum / e.getValue().size(), best,
+                    e.getValue().size()));
+        }
+
+        boolean newReport = !REPORT.exists();
+        try (PrintWriter out = new PrintWriter(new FileWriter(REPORT, true))) {
+            if (newReport) {
+                out.println("timestamp,mode,run,statements,wall_ms,statements_per_sec,peak_heap_bytes,documents,data_bytes,storage_bytes,index_bytes");
+            }
+            long now = System.currentTimeMillis();
+            for (Result r : results) {
+                out.println(now + "," + r.mode + "," + r.run + "," + r.statements + "," + TimeUnit.NANOSECONDS.toMillis(r.wallNanos) + ","
+                        + r.throughput() + "," + r.peakHeap + "," + r.count + "," + r.dataSize + "," + r.storageSize + "," + r.indexSize);
+            }
+        }
+        log.info("Results appended to " + REPORT.getAbsolutePath());
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: IngestBenchmark <file> [--format N3] [--modes sail,dao,document,raw,pipeline] [--fuzz 1] [--repeats 1] [--embedded]");
+            System.exit(1);
+        }
+
+        File file = new File(args[0]);
+        RDFFormat format = RDFFormat.N3;
+        List<Mode> modes = new ArrayList<>();
+        int fuzz = 1;
+        int repeats = 1;
+        boolean embedded = false;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+            case "--format":
+                format = RDFFormat.valueOf(args[++i]);
+                if (format == null) {
+                    throw new IllegalArgumentException("Unknown format " + args[i]);
+                }
+                break;
+            case "--modes":
+                for (String m : args[++i].split(",")) {
+                    modes.add(Mode.valueOf(m.trim()));
+                }
+                break;
+            case "--fuzz":
+                fuzz = Integer.parseInt(args[++i]);
+                break;
+            case "--repeats":
+                repeats = Integer.parseInt(args[++i]);
+                break;
+            case "--embedded":
+                embedded = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        if (modes.isEmpty()) {
+            for (Mode m : Mode.values()) {
+                modes.add(m);
+            }
+        }
+
+        EmbeddedMongoFactory factory = null;
+        MongoClient admin;
+        if (embedded) {
+            log.info("Starting embedded mongod");
+            factory = EmbeddedMongoFactory.newFactory();
+            admin = factory.newMongoClient();
+            ServerAddress address = admin.getAddress();
+            RyaUtil.setMongoServer(address.getHost(), address.getPort());
+        } else {
+            admin = new MongoClient(RyaUtil.getMongoServer());
+        }
+
+        try {
+            IngestBenchmark benchmark = new IngestBenchmark(file, format, fuzz, admin);
+            List<Result> results = new ArrayList<>();
+            for (int run = 1; run <= repeats; run++) {
+                for (Mode mode : modes) {
+                    results.add(benchmark.run(mode, run));
+                }
+            }
+            report(results);
+        } finally {
+            admin.close();
+            if (factory != null) {
+                factory.shutdown();
+            }
+        }
+    }
+}
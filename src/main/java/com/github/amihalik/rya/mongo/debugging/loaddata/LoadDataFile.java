@@ -17,7 +17,7 @@ package com.github.amihalik.rya.mongo.debugging.loaddata;
 import java.io.File;
 
 import org.apache.log4j.Logger;
-import org.openrdf.repository.sail.SailRepositoryConnection;
+import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.rio.RDFFormat;
 
 import com.github.amihalik.rya.mongo.debugging.RyaUtil;
@@ -30,11 +30,12 @@ public class LoadDataFile {
 
     public static void main(final String[] args) throws Exception {
         log.info("Opening Connection to Rya");
-        final SailRepositoryConnection conn = RyaUtil.getSailRepo();
+        final RepositoryConnection conn = RyaUtil.getSailRepo();
         log.info("Done Opening Connection to Rya");
 
         log.info("Starting loading data into Rya");
         conn.add(new File("/mydata/one_gig_ntrip_file.n3"), null, RDFFormat.N3);
         log.info("Done loading data into Rya");
+        conn.close();
     }
 }
@@ -15,9 +15,11 @@
 package com.github.amihalik.rya.mongo.debugging.loaddata;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.time.DurationFormatUtils;
@@ -25,6 +27,7 @@ import org.apache.log4j.Logger;
 import org.apache.rya.api.domain.RyaStatement;
 import org.apache.rya.api.persist.RyaDAOException;
 import org.apache.rya.api.resolver.RdfToRyaConversions;
+import org.apache.rya.api.resolver.RyaToRdfConversions;
 import org.apache.rya.indexing.OptionalConfigUtils;
 import org.apache.rya.mongodb.MongoConnectorFactory;
 import org.apache.rya.mongodb.MongoDBRdfConfiguration;
@@ -38,6 +41,16 @@ import org.openrdf.rio.Rio;
 import org.openrdf.rio.helpers.RDFHandlerBase;
 
 import com.github.amihalik.rya.mongo.debugging.RyaUtil;
+import com.github.amihalik.rya.mongo.debugging.metrics.IngestMetrics;
+import com.github.amihalik.rya.mongo.debugging.serialization.CheckpointTracker;
+import com.github.amihalik.rya.mongo.debugging.serialization.DeadLetterFile;
+import com.github.amihalik.rya.mongo.debugging.serialization.IndexDeferral;
+import com.github.amihalik.rya.mongo.debugging.serialization.IngestEpoch;
+import com.github.amihalik.rya.mongo.debugging.serialization.LoadCheckpoint;
+import com.github.amihalik.rya.mongo.debugging.serialization.ParallelRdfFileParser;
+import com.github.amihalik.rya.mongo.debugging.serialization.RdfHandlerParseTimer;
+import com.github.amihalik.rya.mongo.debugging.serialization.RdfHandlerSkipper;
+import com.github.amihalik.rya.mongo.debugging.serialization.SynchronizedRdfHandler;
 import com.mongodb.MongoClient;
 
 /**
@@ -47,7 +60,9 @@ import com.mongodb.MongoClient;
  * method
  *
  * (2) The DAO has bad error handling. Basically, if there is an error inserting
- * one triple, the entire load may break.
+ * one triple, the entire load may break. To work around this a failed batch is
+ * added again one statement at a time, and the statements that still fail are
+ * written to a dead letter file instead of stopping the load.
  *
  * However, this seems to be significantly faster. I'm getting 10k trip/sec
  * using the DAO and 2k trip/sec using the sail layer.
@@ -55,7 +70,28 @@ import com.mongodb.MongoClient;
 public class LoadDataFileFaster {
     private static final Logger log = Logger.getLogger(LoadDataFileFaster.class);
 
+    // Parse line-oriented input on several threads
+    private static final boolean PARALLEL_PARSE = true;
+    private static final int PARSE_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // Drop the DAO's indexes for the load and build them once at the end
+    private static final boolean DEFER_INDEXES = false;
+
     public static void main(final String[] args) throws Exception {
+        final String filename = "/mydata/one_gig_ntrip_file.n3";
+
+        // --checkpoint records progress after every batch, --resume continues from it
+        final List<String> flags = Arrays.asList(args);
+        final boolean resume = flags.contains("--resume");
+        final boolean checkpoint = resume || flags.contains("--checkpoint");
+        final File checkpointFile = new File(filename + ".checkpoint");
+        final LoadCheckpoint resumeFrom = resume ? LoadCheckpoint.load(checkpointFile) : null;
+        if (resume) {
+            log.info(resumeFrom == null ? "No checkpoint found, starting from the beginning" : "Resuming from " + resumeFrom);
+        }
+        final CheckpointTracker checkpoints = checkpoint ? new CheckpointTracker(checkpointFile, filename, 1, resumeFrom) : null;
+        final DeadLetterFile deadLetters = new DeadLetterFile(new File(filename + ".deadletter.nq"));
+
         log.info("Opening Connection to Rya");
         final MongoDBRdfConfiguration config = RyaUtil.getConf();
         final MongoClient client = MongoConnectorFactory.getMongoClient(config);
@@ -65,23 +101,31 @@ public class LoadDataFileFaster {
         dao.init();
         log.info("Done Opening Connection to Rya");
 
+        // dao.init() has just created the indexes, take them off again for the load
+        final IndexDeferral indexes = DEFER_INDEXES ? new IndexDeferral(client, config.getMongoDBName(), config.getTriplesCollectionName(),
+                new File(filename + ".indexes.json")) : null;
+        if (indexes != null) {
+            indexes.suspend();
+        }
+
         log.info("Starting loading data into Rya");
-        final RDFParser fileParser = Rio.createParser(RDFFormat.N3);
 
         final RDFHandler countingRdfHandler = new RDFHandlerBase() {
             private long rdfStartTime = 0L;
             private long batchStartTime = 0L;
             private final int batchSize = 100_000;
 
-            private int batchCounter = 0;
-            private long statementCounter = 0L;
+            private long batchCounter = resumeFrom == null ? 0 : resumeFrom.getBatchCounter();
+            private long statementCounter = resumeFrom == null ? 0L : resumeFrom.getStatementOffset();
 
             private final List<RyaStatement> statements = new ArrayList<>();
 
             @Override
             public void handleStatement(final Statement st) throws RDFHandlerException {
                 statementCounter++;
+                final long start = IngestMetrics.startSample();
                 statements.add(RdfToRyaConversions.convertStatement(st));
+                IngestMetrics.endSample(IngestMetrics.CONVERT, start);
                 if (statements.size() == batchSize) {
                     loadBatchRya();
                 }
@@ -100,7 +144,7 @@ public class LoadDataFileFaster {
                 // Final report
                 final long endTime = System.currentTimeMillis();
                 final long duration = endTime - rdfStartTime;
-                final double tripPerSec = statementCounter / (duration / 1000);
+                final double tripPerSec = statementCounter * 1000. / Math.max(duration, 1);
                 log.info("===============================================");
                 log.info("Total Statements : " + statementCounter + " :: Total Batches : " + batchCounter + " :: Average Rate : " + Math.round(tripPerSec));
                 log.info("Total Time Elapsed : " + DurationFormatUtils.formatDurationWords(duration, true, true));
@@ -111,10 +155,27 @@ public class LoadDataFileFaster {
                     batchCounter++;
                     final int currentBatchSize = statements.size();
                     log.info("Loading Batch #" + batchCounter + ".  Size : " + currentBatchSize);
-                    dao.add(statements.iterator());
+                    final long insertStart = System.nanoTime();
+                    int failed = 0;
+                    try {
+                        dao.add(statements.iterator());
+                    } catch (final RyaDAOException e) {
+                        log.warn("Batch #" + batchCounter + " failed, adding it one statement at a time", e);
+                        failed = addEach();
+                    }
+                    IngestMetrics.INSERT.update(System.nanoTime() - insertStart, TimeUnit.NANOSECONDS);
+                    IngestMetrics.STATEMENTS.mark(currentBatchSize - failed);
+                    IngestEpoch.advance(client.getDatabase(config.getMongoDBName()));
+
+                    if (checkpoints != null) {
+                        // the DAO queues writes, so only checkpoint what it has flushed
+                        final long batch = checkpoints.nextBatch(currentBatchSize);
+                        dao.flush();
+                        checkpoints.acknowledge(batch);
+                    }
 
                     final long currentTime = System.currentTimeMillis();
-                    final double tripPerSec = currentBatchSize / ((currentTime - batchStartTime) / 1000.);
+                    final double tripPerSec = currentBatchSize * 1000. / Math.max(currentTime - batchStartTime, 1);
                     log.info("Size : " + statementCounter + " :: Rate : " + Math.round(tripPerSec));
                     batchStartTime = currentTime;
                 } catch (final RyaDAOException e) {
@@ -122,13 +183,53 @@ public class LoadDataFileFaster {
                 }
                 statements.clear();
             }
-        };
 
-        fileParser.setRDFHandler(countingRdfHandler);
+            /**
+             * @return the number of statements dead-lettered.
+             */
+            private int addEach() {
+                int failed = 0;
+                for (final RyaStatement statement : statements) {
+                    try {
+                        dao.add(statement);
+                    } catch (final RyaDAOException | RuntimeException e) {
+                        deadLetters.write(RyaToRdfConversions.convertStatement(statement), String.valueOf(e.getMessage()));
+                        IngestMetrics.ERRORS.inc();
+                        failed++;
+                    }
+                }
+                return failed;
+            }
+        };
 
-        final String filename = "/mydata/one_gig_ntrip_file.n3";
-        try (final FileInputStream fin = FileUtils.openInputStream(new File(filename))) {
-            fileParser.parse(fin, "");
+        RDFHandler handler = new RdfHandlerParseTimer(countingRdfHandler);
+
+        // JMX, plus CSV and JSON snapshots of the per-stage metrics
+        IngestMetrics.startReporting(new File("metrics"), 10);
+
+        // batches must be cut from the input in order to be checkpointed
+        if (PARALLEL_PARSE && !checkpoint) {
+            // time the parser threads outside the lock
+            handler = new RdfHandlerParseTimer(new SynchronizedRdfHandler(countingRdfHandler));
+            new ParallelRdfFileParser(RDFFormat.N3, PARSE_THREADS).parse(new File(filename), "", handler);
+        } else {
+            InputStream fin = null;
+            if (resumeFrom != null) {
+                fin = LoadCheckpoint.openAfter(new File(filename), RDFFormat.N3, resumeFrom.getStatementOffset());
+                if (fin == null) {
+                    handler = new RdfHandlerSkipper(handler, resumeFrom.getStatementOffset());
+                }
+            }
+            if (fin == null) {
+                fin = FileUtils.openInputStream(new File(filename));
+            }
+            final RDFParser fileParser = Rio.createParser(RDFFormat.N3);
+            fileParser.setRDFHandler(handler);
+            try {
+                fileParser.parse(fin, "");
+            } finally {
+                fin.close();
+            }
         }
 
         log.info("Done loading data into Rya");
@@ -136,6 +237,17 @@ public class LoadDataFileFaster {
         // Allow things to flush out
         Thread.sleep(5000);
 
+        if (indexes != null) {
+            dao.flush();
+            // the geo indexer keeps its own collection, which is left alone
+            indexes.restore(IndexDeferral.RYA_INDEXES);
+        }
+
         dao.destroy();
+        IngestMetrics.stopReporting();
+        deadLetters.close();
+        if (deadLetters.getCount() > 0) {
+            log.warn(deadLetters.getCount() + " statements could not be loaded, see " + deadLetters.getFile());
+        }
     }
 }
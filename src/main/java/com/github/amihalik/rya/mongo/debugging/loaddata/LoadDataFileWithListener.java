@@ -21,7 +21,7 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.time.DurationFormatUtils;
 import org.apache.log4j.Logger;
 import org.openrdf.model.Statement;
-import org.openrdf.repository.sail.SailRepositoryConnection;
+import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.util.RDFInserter;
 import org.openrdf.rio.RDFFormat;
 import org.openrdf.rio.RDFHandler;
@@ -32,6 +32,8 @@ import org.openrdf.rio.helpers.RDFHandlerBase;
 import org.openrdf.rio.helpers.RDFHandlerWrapper;
 
 import com.github.amihalik.rya.mongo.debugging.RyaUtil;
+import com.github.amihalik.rya.mongo.debugging.serialization.ParallelRdfFileParser;
+import com.github.amihalik.rya.mongo.debugging.serialization.SynchronizedRdfHandler;
 
 /**
  * Uses the sail layer to load a N3 file. Prints out the loading progress to the
@@ -40,13 +42,16 @@ import com.github.amihalik.rya.mongo.debugging.RyaUtil;
 public class LoadDataFileWithListener {
     private static final Logger log = Logger.getLogger(LoadDataFileWithListener.class);
 
+    // Parse line-oriented input on several threads
+    private static final boolean PARALLEL_PARSE = true;
+    private static final int PARSE_THREADS = Runtime.getRuntime().availableProcessors();
+
     public static void main(final String[] args) throws Exception {
         log.info("Opening Connection to Rya");
-        final SailRepositoryConnection conn = RyaUtil.getSailRepo();
+        final RepositoryConnection conn = RyaUtil.getSailRepo();
         log.info("Done Opening Connection to Rya");
 
         log.info("Starting loading data into Rya");
-        final RDFParser fileParser = Rio.createParser(RDFFormat.N3);
 
         final RDFInserter rdfInserter = new RDFInserter(conn);
 
@@ -66,7 +71,7 @@ public class LoadDataFileWithListener {
                     log.info("Loading Batch #" + batchCounter + ".  Size : " + batchSize);
 
                     final long currentTime = System.currentTimeMillis();
-                    final double tripPerSec = batchSize / ((currentTime - batchStartTime) / 1000.);
+                    final double tripPerSec = batchSize * 1000. / Math.max(currentTime - batchStartTime, 1);
                     log.info("Size : " + statementCounter + " :: Rate : " + Math.round(tripPerSec));
                     batchStartTime = currentTime;
                 }
@@ -86,7 +91,7 @@ public class LoadDataFileWithListener {
                     log.info("Loading Batch #" + batchCounter + ".  Size : " + remainingStatements);
 
                     final long currentTime = System.currentTimeMillis();
-                    final double tripPerSec = remainingStatements / ((currentTime - batchStartTime) / 1000.);
+                    final double tripPerSec = remainingStatements * 1000. / Math.max(currentTime - batchStartTime, 1);
                     log.info("Size : " + statementCounter + " :: Rate : " + Math.round(tripPerSec));
                     batchStartTime = currentTime;
                 }
@@ -94,18 +99,24 @@ public class LoadDataFileWithListener {
                 // Final report
                 final long endTime = System.currentTimeMillis();
                 final long duration = endTime - rdfStartTime;
-                final double tripPerSec = statementCounter / (duration / 1000);
+                final double tripPerSec = statementCounter * 1000. / Math.max(duration, 1);
                 log.info("===============================================");
                 log.info("Total Statements : " + statementCounter + " :: Total Batches : " + batchCounter + " :: Average Rate : " + Math.round(tripPerSec));
                 log.info("Total Time Elapsed : " + DurationFormatUtils.formatDurationWords(duration, true, true));
             }
         };
 
-        fileParser.setRDFHandler(new RDFHandlerWrapper(rdfInserter, countingRdfHandler));
+        final RDFHandler handler = new RDFHandlerWrapper(rdfInserter, countingRdfHandler);
 
         final String filename = "/mydata/one_gig_ntrip_file.n3";
-        try (final FileInputStream fin = FileUtils.openInputStream(new File(filename))) {
-            fileParser.parse(fin, "");
+        if (PARALLEL_PARSE) {
+            new ParallelRdfFileParser(RDFFormat.N3, PARSE_THREADS).parse(new File(filename), "", new SynchronizedRdfHandler(handler));
+        } else {
+            final RDFParser fileParser = Rio.createParser(RDFFormat.N3);
+            fileParser.setRDFHandler(handler);
+            try (final FileInputStream fin = FileUtils.openInputStream(new File(filename))) {
+                fileParser.parse(fin, "");
+            }
         }
 
         log.info("Done loading data into Rya");
@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.metrics;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.CsvReporter;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Process wide ingest metrics shared by all loaders, so one load can be
+ * compared stage by stage with another.
+ * <p>
+ * Timers keep a decaying sample and report percentiles. {@link #QUEUE_WAIT}
+ * and {@link #INSERT} are timed per batch. The per-statement stages
+ * ({@link #PARSE}, {@link #CONVERT}, {@link #SERIALIZE}) only time about one
+ * statement in {@link #SAMPLE_EVERY}: a timer update costs about as much as
+ * serializing a statement, and a sample gives the same percentiles. Their
+ * counts are therefore not statement counts; use {@link #STATEMENTS} for
+ * throughput. Nothing is exported until {@link #startReporting} is called.
+ */
+public final class IngestMetrics {
+    private static final Logger log = Logger.getLogger(IngestMetrics.class);
+
+    public static final String DOMAIN = "rya.ingest";
+
+    public static final int SAMPLE_EVERY = 64;
+    private static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    public static final MetricRegistry REGISTRY = new MetricRegistry();
+
+    /** Parser time between two statements, excluding everything downstream. */
+    public static final Timer PARSE = REGISTRY.timer("parse");
+    /** Statement to {@code RyaStatement} for the DAO loaders. */
+    public static final Timer CONVERT = REGISTRY.timer("convert");
+    /** Statement to Mongo document. */
+    public static final Timer SERIALIZE = REGISTRY.timer("serialize");
+    /** Time a batch waits for a free writer or a queue slot. */
+    public static final Timer QUEUE_WAIT = REGISTRY.timer("queue-wait");
+    /** One insertMany or DAO add, including retries. */
+    public static final Timer INSERT = REGISTRY.timer("insert");
+
+    /** Statements stored. */
+    public static final Meter STATEMENTS = REGISTRY.meter("statements");
+    /** Serialized document bytes sent to Mongo, where the serializer knows them. */
+    public static final Meter BYTES = REGISTRY.meter("bytes");
+    /** Statements that were already stored, or dropped as repeats before insert. */
+    public static final Counter DUPLICATES = REGISTRY.counter("duplicates");
+    /** Statements that could not be stored. */
+    public static final Counter ERRORS = REGISTRY.counter("errors");
+
+    private static JmxReporter jmx;
+    private static CsvReporter csv;
+    private static JsonSnapshotReporter json;
+
+    private IngestMetrics() {
+    }
+
+    /**
+     * Exports the metrics over JMX under {@link #DOMAIN} and, every
+     * {@code periodSeconds}, as CSV files and a JSON snapshot in
+     * {@code directory}.
+     */
+    public static synchronized void startReporting(File directory, long periodSeconds) {
+        if (jmx != null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Can not create metrics directory " + directory);
+        }
+
+        jmx = JmxReporter.forRegistry(REGISTRY).inDomain(DOMAIN).convertDurationsTo(TimeUnit.MILLISECONDS).build();
+        jmx.start();
+
+        csv = CsvReporter.forRegistry(REGISTRY).formatFor(Locale.US).convertDurationsTo(TimeUnit.MILLISECONDS).build(directory);
+        csv.start(periodSeconds, TimeUnit.SECONDS);
+
+        json = new JsonSnapshotReporter(REGISTRY, new File(directory, "ingest-metrics.json"));
+        json.start(periodSeconds, TimeUnit.SECONDS);
+
+        log.info("Reporting ingest metrics over JMX (" + DOMAIN + ") and to " + directory + " every " + periodSeconds + "s");
+    }
+
+    /**
+     * Writes a last snapshot and stops exporting.
+     */
+    public static synchronized void stopReporting() {
+        if (jmx == null) {
+            return;
+        }
+        csv.report();
+        json.report();
+        csv.stop();
+        json.stop();
+        jmx.stop();
+        jmx = null;
+        csv = null;
+        json = null;
+    }
+
+    /**
+     * @return {@code true} for about one call in {@link #SAMPLE_EVERY}.
+     */
+    public static boolean sampled() {
+        return ThreadLocalRandom.current().nextInt(SAMPLE_EVERY) == 0;
+    }
+
+    /**
+     * Starts timing a per-statement stage if this call is sampled.
+     *
+     * @return the value to pass to {@link #endSample}.
+     */
+    public static long startSample() {
+        return sampled() ? System.nanoTime() : NOT_SAMPLED;
+    }
+
+    public static void endSample(Timer timer, long start) {
+        if (start != NOT_SAMPLED) {
+            timer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @return statements per second over {@code nanos}, safe for very short
+     *         intervals.
+     */
+    public static long rate(long count, long nanos) {
+        return (long) (count * 1e9 / Math.max(nanos, 1));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * Overwrites one JSON file with the current value of every metric, so a
+ * script can poll a running load without parsing logs. Durations are in
+ * milliseconds, rates per second, and gauges and histograms in their own
+ * units. The file is replaced atomically and is
+ * never seen half written.
+ */
+public class JsonSnapshotReporter extends ScheduledReporter {
+    private static final Logger log = Logger.getLogger(JsonSnapshotReporter.class);
+
+    private final File file;
+
+    public JsonSnapshotReporter(MetricRegistry registry, File file) {
+        super(registry, "json-snapshot-reporter", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS);
+        this.file = file;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters, SortedMap<String, Histogram> histograms,
+            SortedMap<String, Meter> meters, SortedMap<String, Timer> timers) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"timestamp\" : ").append(System.currentTimeMillis());
+
+        sb.append(",\n  \"gauges\" : {");
+        String sep = "\n";
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            sb.append(sep).append("    \"").append(e.getKey()).append("\" : ").append(value(e.getValue()));
+            sep = ",\n";
+        }
+        sb.append("\n  },\n  \"counters\" : {");
+        sep = "\n";
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            sb.append(sep).append("    \"").append(e.getKey()).append("\" : ").append(e.getValue().getCount());
+            sep = ",\n";
+        }
+        sb.append("\n  },\n  \"histograms\" : {");
+        sep = "\n";
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            Histogram h = e.getValue();
+            Snapshot s = h.getSnapshot();
+            sb.append(sep).append("    \"").append(e.getKey()).append("\" : { \"count\" : ").append(h.getCount());
+            sb.append(", \"mean\" : ").append(num(s.getMean()));
+            sb.append(", \"p50\" : ").append(num(s.getMedian()));
+            sb.append(", \"p95\" : ").append(num(s.get95thPercentile()));
+            sb.append(", \"p99\" : ").append(num(s.get99thPercentile()));
+            sb.append(", \"max\" : ").append(s.getMax()).append(" }");
+            sep = ",\n";
+        }
+        sb.append("\n  },\n  \"meters\" : {");
+        sep = "\n";
+        for (Map.Entry<String, Meter> e : meters.entrySet()) {
+            Meter m = e.getValue();
+            sb.append(sep).append("    \"").append(e.getKey()).append("\" : { \"count\" : ").append(m.getCount());
+            sb.append(", \"mean_rate\" : ").append(num(convertRate(m.getMeanRate())));
+            sb.append(", \"m1_rate\" : ").append(num(convertRate(m.getOneMinuteRate()))).append(" }");
+            sep = ",\n";
+        }
+        sb.append("\n  },\n  \"timers\" : {");
+        sep = "\n";
+        for (Map.Entry<String, Timer> e : timers.entrySet()) {
+            Timer t = e.getValue();
+            Snapshot s = t.getSnapshot();
+            sb.append(sep).append("    \"").append(e.getKey()).append("\" : { \"count\" : ").append(t.getCount());
+            sb.append(", \"m1_rate\" : ").append(num(convertRate(t.getOneMinuteRate())));
+            sb.append(", \"mean\" : ").append(num(convertDuration(s.getMean())));
+            sb.append(", \"p50\" : ").append(num(convertDuration(s.getMedian())));
+            sb.append(", \"p95\" : ").append(num(convertDuration(s.get95thPercentile())));
+            sb.append(", \"p99\" : ").append(num(convertDuration(s.get99thPercentile())));
+            sb.append(", \"max\" : ").append(num(convertDuration(s.getMax()))).append(" }");
+            sep = ",\n";
+        }
+        sb.append("\n  }\n}\n");
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            Files.write(tmp.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Could not write metrics snapshot to " + file, e);
+        }
+    }
+
+    /**
+     * @return a gauge's value as a JSON number, boolean or string, or null if
+     *         it can't be read.
+     */
+    @SuppressWarnings("rawtypes")
+    private static String value(Gauge gauge) {
+        Object v;
+        try {
+            v = gauge.getValue();
+        } catch (RuntimeException e) {
+            return "null";
+        }
+        if (v == null) {
+            return "null";
+        }
+        if (v instanceof Double || v instanceof Float) {
+            double d = ((Number) v).doubleValue();
+            return Double.isNaN(d) || Double.isInfinite(d) ? "null" : num(d);
+        }
+        if (v instanceof Number || v instanceof Boolean) {
+            return v.toString();
+        }
+        return "\"" + v.toString().replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    private static String num(double d) {
+        return String.format(Locale.ROOT, "%.4f", d);
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Chooses the batch size and the number of in-flight batches for
+ * {@link BatchLoadRya} at runtime instead of hard-coding them.
+ * <p>
+ * Every completed batch reports its size, serialization time and insertMany
+ * latency. After each window of batches the controller compares sustained
+ * throughput with the previous window and hill-climbs: a change that helped is
+ * repeated, a change that hurt is reverted and the other knob is tried next.
+ * Two guards override the search: when heap usage after the last collection
+ * passes {@link #HEAP_HIGH_WATER} batches and in-flight count are cut (the
+ * raw used-heap figure includes garbage not yet collected and would trip on
+ * every busy window), and when a
+ * single insert takes longer than {@link #MAX_INSERT_MILLIS} the batch size is
+ * cut. Every decision is logged with the measurements that caused it.
+ */
+public class AdaptiveBatchController {
+    private static final Logger log = Logger.getLogger(AdaptiveBatchController.class);
+
+    public static final double HEAP_HIGH_WATER = 0.80;
+    public static final long MAX_INSERT_MILLIS = 30_000;
+
+    private static final double GROWTH = 1.5;
+    // throughput changes smaller than this are treated as noise
+    private static final double SIGNIFICANT = 0.05;
+
+    private enum Knob {
+        BATCH_SIZE, IN_FLIGHT
+    }
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int maxInFlight;
+    private final boolean adaptive;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private volatile int batchSize;
+    private int inFlightLimit;
+    private int inFlight = 0;
+
+    // measurements for the current window
+    private long windowStart = System.nanoTime();
+    private int windowBatches = 0;
+    private long windowStatements = 0;
+    private long windowSerializeNanos = 0;
+    private long windowInsertNanos = 0;
+    private long windowMaxInsertNanos = 0;
+
+    private double lastThroughput = 0;
+    private Knob knob = Knob.BATCH_SIZE;
+    private int direction = 1;
+
+    public AdaptiveBatchController(int initialBatchSize, int minBatchSize, int maxBatchSize, int initialInFlight, int maxInFlight) {
+        this(initialBatchSize, minBatchSize, maxBatchSize, initialInFlight, maxInFlight, true);
+    }
+
+    private AdaptiveBatchController(int initialBatchSize, int minBatchSize, int maxBatchSize, int initialInFlight, int maxInFlight,
+            boolean adaptive) {
+        this.batchSize = initialBatchSize;
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.inFlightLimit = initialInFlight;
+        this.maxInFlight = maxInFlight;
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * @return a controller that never changes the given settings.
+     */
+    public static AdaptiveBatchController fixed(int batchSize, int inFlight) {
+        return new AdaptiveBatchController(batchSize, batchSize, batchSize, inFlight, inFlight, false);
+    }
+
+    /**
+     * @return the live heap as a fraction of the maximum: the heap pools'
+     *         usage right after their last collection, or the raw usage if
+     *         the collector does not report it.
+     */
+    static double heapUsedAfterGc() {
+        long used = 0;
+        boolean reported = false;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage afterGc = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+            if (afterGc != null) {
+                used += afterGc.getUsed();
+                reported = true;
+            }
+        }
+        Runtime rt = Runtime.getRuntime();
+        if (!reported) {
+            used = rt.totalMemory() - rt.freeMemory();
+        }
+        return (double) used / rt.maxMemory();
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getInFlightLimit() {
+        lock.lock();
+        try {
+            return inFlightLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until another batch may be started.
+     */
+    public void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight >= inFlightLimit) {
+                changed.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until every started batch has released its slot.
+     */
+    public void awaitIdle() throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight > 0) {
+                changed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a batch that was serialized and acknowledged by the server.
+     */
+    public void recordBatch(int statements, long serializeNanos, long insertNanos) {
+        if (!adaptive) {
+            return;
+        }
+        lock.lock();
+        try {
+            windowBatches++;
+            windowStatements += statements;
+            windowSerializeNanos += serializeNanos;
+            windowInsertNanos += insertNanos;
+            windowMaxInsertNanos = Math.max(windowMaxInsertNanos, insertNanos);
+
+            // let every in-flight slot contribute before judging the window
+            if (windowBatches >= Math.max(2, inFlightLimit)) {
+                evaluate();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evaluate() {
+        long now = System.nanoTime();
+        double seconds = Math.max(now - windowStart, 1) / 1e9;
+        double throughput = windowStatements / seconds;
+        double serializeRate = windowStatements / Math.max(windowSerializeNanos / 1e9, 1e-9);
+        long avgInsertMillis = TimeUnit.NANOSECONDS.toMillis(windowInsertNanos / windowBatches);
+        long maxInsertMillis = TimeUnit.NANOSECONDS.toMillis(windowMaxInsertNanos);
+
+        double heapUsed = heapUsedAfterGc();
+
+        int oldBatchSize = batchSize;
+        int oldInFlight = inFlightLimit;
+        String reason;
+
+        if (heapUsed > HEAP_HIGH_WATER) {
+            batchSize = clamp(batchSize / 2, minBatchSize, maxBatchSize);
+            inFlightLimit = Math.max(1, inFlightLimit - 1);
+            direction = -1;
+            reason = "heap above " + (int) (HEAP_HIGH_WATER * 100) + "%";
+        } else if (maxInsertMillis > MAX_INSERT_MILLIS) {
+            batchSize = clamp((int) (batchSize / GROWTH), minBatchSize, maxBatchSize);
+            knob = Knob.BATCH_SIZE;
+            direction = -1;
+            reason = "insert latency above " + MAX_INSERT_MILLIS + " ms";
+        } else {
+            double change = lastThroughput == 0 ? 1 : (throughput - lastThroughput) / lastThroughput;
+            if (change < -SIGNIFICANT) {
+                // the last step hurt: undo it and try the other knob
+                step(knob, -direction);
+                knob = knob == Knob.BATCH_SIZE ? Knob.IN_FLIGHT : Knob.BATCH_SIZE;
+                direction = 1;
+                reason = String.format("throughput fell %.1f%%, reverting", -change * 100);
+            } else if (change > SIGNIFICANT) {
+                step(knob, direction);
+                reason = String.format("throughput rose %.1f%%, continuing", change * 100);
+            } else {
+                // flat: serialization bound loads gain from more parallel workers, insert bound ones from bigger batches
+                knob = windowSerializeNanos > windowInsertNanos ? Knob.IN_FLIGHT : Knob.BATCH_SIZE;
+                direction = 1;
+                step(knob, direction);
+                reason = "throughput flat, probing " + knob;
+            }
+        }
+
+        log.info(String.format(
+                "ADAPT :: batchSize %,d -> %,d\t inFlight %d -> %d\t reason :: %s\t throughput :: %,d/s\t serialization rate :: %,d/s\t insert latency avg/max :: %,d/%,d ms\t heap used :: %d%%",
+                oldBatchSize, batchSize, oldInFlight, inFlightLimit, reason, (long) throughput, (long) serializeRate, avgInsertMillis,
+                maxInsertMillis, (int) (heapUsed * 100)));
+
+        if (inFlightLimit != oldInFlight) {
+            changed.signalAll();
+        }
+
+        lastThroughput = throughput;
+        windowStart = now;
+        windowBatches = 0;
+        windowStatements = 0;
+        windowSerializeNanos = 0;
+        windowInsertNanos = 0;
+        windowMaxInsertNanos = 0;
+    }
+
+    private void step(Knob k, int dir) {
+        direction = dir;
+        if (k == Knob.BATCH_SIZE) {
+            int next = dir > 0 ? (int) (batchSize * GROWTH) : (int) (batchSize / GROWTH);
+            batchSize = clamp(next, minBatchSize, maxBatchSize);
+        } else {
+            inFlightLimit = clamp(inFlightLimit + dir, 1, maxInFlight);
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
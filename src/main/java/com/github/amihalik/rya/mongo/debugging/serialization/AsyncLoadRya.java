@@ -0,0 +1,404 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.openrdf.model.Statement;
+
+import com.github.amihalik.rya.mongo.debugging.RyaUtil;
+import com.github.amihalik.rya.mongo.debugging.metrics.IngestMetrics;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoClientSettings;
+import com.mongodb.async.client.MongoClients;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.async.client.MongoDatabase;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.connection.ClusterSettings;
+import com.mongodb.connection.ConnectionPoolSettings;
+
+/**
+ * {@link BatchLoadRya} on the asynchronous MongoDB driver. Instead of parking
+ * a thread on every {@code insertMany}, batches are handed to the driver and
+ * finish in a callback, so a couple of threads can keep {@code maxInFlight}
+ * bulk writes going at once:
+ *
+ * <pre>
+ * parser --> serialize threads --> insertMany(callback) ... callback releases the batch
+ * </pre>
+ *
+ * A batch holds one of {@code maxInFlight} permits from the moment it is cut
+ * until its last document is acknowledged, so {@link #loadStatement} blocks
+ * the parser once that many batches are serializing or in flight. With a
+ * {@link #setHeapBudget(HeapBudget) heap budget}, batches are also cut by
+ * estimated heap and hold their reservation for as long as their permit.
+ * <p>
+ * Failures are handled the way {@link BulkWriteRecovery} handles them:
+ * duplicate keys are counted and ignored, documents that can never be stored
+ * go straight to the dead letter file, transient failures are retried in
+ * halves with exponential backoff (scheduled, not slept), and what still
+ * fails after {@code maxRetries} rounds goes to the dead letter file.
+ */
+public class AsyncLoadRya<T> implements StatementLoader {
+    private static final Logger log = Logger.getLogger(AsyncLoadRya.class);
+
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    private final int batchSize;
+    private final int maxInFlight;
+    private final int maxRetries;
+    private final Semaphore inFlight;
+
+    private final StatementSerializer<T> serializer;
+    private final ExecutorService serializeExecutor;
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private final MongoClient client;
+    private final MongoDatabase db;
+    private final MongoCollection<T> coll;
+    private final InsertManyOptions bws;
+    private final DeadLetterFile deadLetters;
+
+    private final AtomicInteger totalstatements = new AtomicInteger();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+
+    private List<Statement> statements;
+    private long statementBytes;
+
+    private HeapBudget budget;
+    private long maxBatchReservation;
+
+    /**
+     * One cut batch, released once every part of it has been stored or dead
+     * lettered.
+     */
+    private final class Batch {
+        final int size;
+        final long bytes;
+        final long reserved;
+        final long start = System.nanoTime();
+        final AtomicInteger outstanding = new AtomicInteger();
+
+        Batch(int size, long bytes, long reserved) {
+            this.size = size;
+            this.bytes = bytes;
+            this.reserved = reserved;
+        }
+
+        void done() {
+            if (outstanding.decrementAndGet() == 0) {
+                long insertNanos = System.nanoTime() - start;
+                IngestMetrics.INSERT.update(insertNanos, TimeUnit.NANOSECONDS);
+                IngestMetrics.BYTES.mark(bytes);
+                IngestEpoch.advance(db);
+                release(reserved);
+                inFlight.release();
+                int totalsize = totalstatements.addAndGet(size);
+                log.info(String.format("TOTAL STATEMENTS :: %,d\t Insert Rate :: %,d\t In Flight :: %d/%d", totalsize,
+                        IngestMetrics.rate(size, insertNanos), getInFlight(), maxInFlight));
+            }
+        }
+    }
+
+    public AsyncLoadRya(String dbName, String colName, StatementSerializer<T> serializer, int batchSize, int serializeThreads,
+            int maxInFlight) {
+        this(dbName, colName, serializer, batchSize, serializeThreads, maxInFlight, BulkWriteRecovery.DEFAULT_MAX_RETRIES);
+    }
+
+    public AsyncLoadRya(String dbName, String colName, StatementSerializer<T> serializer, int batchSize, int serializeThreads,
+            int maxInFlight, int maxRetries) {
+        this.serializer = serializer;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+        this.maxRetries = maxRetries;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.serializeExecutor = Executors.newFixedThreadPool(serializeThreads);
+
+        log.info("Opening Async Connection to Mongo");
+
+        MongoClientSettings settings = MongoClientSettings.builder()
+                .clusterSettings(ClusterSettings.builder().hosts(Collections.singletonList(RyaUtil.getMongoServer())).build())
+                // a connection per in-flight write, retries wait for one instead of failing
+                .connectionPoolSettings(ConnectionPoolSettings.builder().maxSize(maxInFlight).maxWaitQueueSize(Integer.MAX_VALUE).build())
+                .build();
+        client = MongoClients.create(settings);
+        db = client.getDatabase(dbName);
+        coll = db.getCollection(colName, serializer.getDocumentClass());
+
+        bws = new InsertManyOptions();
+        bws.ordered(false);
+
+        deadLetters = new DeadLetterFile(new File(dbName + "." + colName + ".deadletter.nq"));
+        statements = new ArrayList<>(batchSize);
+
+        log.info("Done Opening Connection to Rya");
+    }
+
+    /**
+     * @return batches cut but not yet fully acknowledged.
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Cuts batches by estimated heap as well as by count, and holds back the
+     * parser while the batches in flight would go over the budget. Each batch
+     * may use the budget's share of one in-flight permit, plus one share for
+     * the batch being filled.
+     * Off when null.
+     */
+    public void setHeapBudget(HeapBudget budget) {
+        this.budget = budget;
+        if (budget != null) {
+            maxBatchReservation = budget.getLimit() / (maxInFlight + 1);
+        }
+    }
+
+    @Override
+    public void loadStatement(Statement s) {
+        statements.add(s);
+        if (budget != null) {
+            statementBytes += HeapBudget.estimate(s);
+        }
+        if (statements.size() >= batchSize || (budget != null && HeapBudget.reservation(statementBytes) >= maxBatchReservation)) {
+            submit(statements, statementBytes);
+            statements = new ArrayList<>(batchSize);
+            statementBytes = 0;
+        }
+    }
+
+    private void submit(List<Statement> sts, long stsBytes) {
+        if (sts.isEmpty()) {
+            return;
+        }
+        long reserved = budget != null ? HeapBudget.reservation(stsBytes) : 0;
+        long waitStart = System.nanoTime();
+        // the budget first, so an interrupt can't strand a permit that close() waits for
+        if (budget != null) {
+            try {
+                budget.acquire(reserved);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for heap budget", e);
+            }
+        }
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            release(reserved);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for an insert to finish", e);
+        }
+        IngestMetrics.QUEUE_WAIT.update(System.nanoTime() - waitStart, TimeUnit.NANOSECONDS);
+        serializeExecutor.execute(() -> serializeAndInsert(sts, reserved));
+    }
+
+    private void release(long reserved) {
+        if (budget != null) {
+            budget.release(reserved);
+        }
+    }
+
+    private void serializeAndInsert(List<Statement> sts, long reserved) {
+        List<T> documents = new ArrayList<>(sts.size());
+        List<Statement> sources = new ArrayList<>(sts.size());
+        long bytes = 0;
+        try {
+            serializer.prepare(sts);
+            for (Statement s : sts) {
+                long start = IngestMetrics.startSample();
+                T d = serializer.serialize(s);
+                IngestMetrics.endSample(IngestMetrics.SERIALIZE, start);
+                if (d != null) {
+                    documents.add(d);
+                    sources.add(s);
+                    bytes += Math.max(serializer.byteSize(d), 0);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Error serializing a batch", e);
+            deadLetter(sts, "serialization failed :: " + e);
+            release(reserved);
+            inFlight.release();
+            return;
+        }
+
+        Batch batch = new Batch(sts.size(), bytes, reserved);
+        batch.outstanding.incrementAndGet();
+        if (documents.isEmpty()) {
+            batch.done();
+        } else {
+            insert(batch, documents, sources, 0);
+        }
+    }
+
+    /**
+     * Sends one part of a batch; the callback settles it, possibly by sending
+     * smaller parts, before counting it done.
+     */
+    private void insert(Batch batch, List<T> documents, List<Statement> sources, int attempt) {
+        try {
+            coll.insertMany(documents, bws, (result, t) -> {
+                try {
+                    if (t == null) {
+                        IngestMetrics.STATEMENTS.mark(documents.size());
+                    } else {
+                        failed(batch, documents, sources, attempt, t);
+                    }
+                } finally {
+                    batch.done();
+                }
+            });
+        } catch (RuntimeException e) {
+            // rejected before it was sent, e.g. the client is closed
+            deadLetter(sources, "not sent :: " + e.getMessage());
+            batch.done();
+        }
+    }
+
+    private void failed(Batch batch, List<T> documents, List<Statement> sources, int attempt, Throwable t) {
+        if (t instanceof MongoBulkWriteException) {
+            MongoBulkWriteException e = (MongoBulkWriteException) t;
+            List<T> failedDocs = new ArrayList<>();
+            List<Statement> failedSources = new ArrayList<>();
+            String firstError = null;
+            String firstRejected = null;
+            int dups = 0;
+            int rejected = 0;
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (error.getCode() == BulkWriteRecovery.DUPLICATE_KEY) {
+                    dups++;
+                    continue;
+                }
+                String reason = "code " + error.getCode() + " :: " + error.getMessage();
+                if (!BulkWriteRecovery.isTransient(error.getCode())) {
+                    // would fail the same way on every attempt
+                    deadLetters.write(sources.get(error.getIndex()), reason);
+                    rejected++;
+                    if (firstRejected == null) {
+                        firstRejected = reason;
+                    }
+                    continue;
+                }
+                if (firstError == null) {
+                    firstError = reason;
+                }
+                failedDocs.add(documents.get(error.getIndex()));
+                failedSources.add(sources.get(error.getIndex()));
+            }
+            if (e.getWriteConcernError() != null) {
+                log.warn("Write concern error :: " + e.getWriteConcernError().getMessage());
+            }
+            duplicates.addAndGet(dups);
+            IngestMetrics.DUPLICATES.inc(dups);
+            IngestMetrics.ERRORS.inc(rejected);
+            IngestMetrics.STATEMENTS.mark(documents.size() - failedDocs.size() - dups - rejected);
+            if (rejected > 0) {
+                log.warn(String.format("%,d of %,d documents rejected, see %s.  First Message :: %s", rejected, documents.size(),
+                        deadLetters.getFile(), firstRejected));
+            }
+            if (!failedDocs.isEmpty()) {
+                log.warn(String.format("%,d of %,d documents failed (attempt %d).  First Message :: %s", failedDocs.size(),
+                        documents.size(), attempt + 1, firstError));
+                retry(batch, failedDocs, failedSources, attempt, firstError);
+            }
+        } else if (BulkWriteRecovery.isTransient(t)) {
+            log.warn(String.format("Insert of %,d documents failed (attempt %d) :: %s", documents.size(), attempt + 1, t.getMessage()));
+            retry(batch, documents, sources, attempt, "code " + ((MongoException) t).getCode() + " :: " + t.getMessage());
+        } else {
+            log.error("Error loading data into Mongo", t);
+            deadLetter(sources, t.toString());
+        }
+    }
+
+    private void retry(Batch batch, List<T> documents, List<Statement> sources, int attempt, String reason) {
+        if (attempt >= maxRetries) {
+            log.error(String.format("Giving up on %,d documents after %d attempts, see %s", documents.size(), attempt + 1,
+                    deadLetters.getFile()));
+            deadLetter(sources, reason);
+            return;
+        }
+
+        retried.addAndGet(documents.size());
+        int half = (documents.size() + 1) / 2;
+        // held open until both halves are settled
+        batch.outstanding.addAndGet(half < documents.size() ? 2 : 1);
+        retryScheduler.schedule(() -> {
+            insert(batch, documents.subList(0, half), sources.subList(0, half), attempt + 1);
+            if (half < documents.size()) {
+                insert(batch, documents.subList(half, documents.size()), sources.subList(half, sources.size()), attempt + 1);
+            }
+        }, Math.min(BulkWriteRecovery.DEFAULT_BACKOFF_MILLIS << attempt, MAX_BACKOFF_MILLIS), TimeUnit.MILLISECONDS);
+    }
+
+    private void deadLetter(List<Statement> sources, String reason) {
+        for (Statement st : sources) {
+            deadLetters.write(st, reason);
+        }
+        IngestMetrics.ERRORS.inc(sources.size());
+    }
+
+    /**
+     * @return documents that were already stored.
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return documents sent again after a failure, counted once per retry.
+     */
+    public long getRetried() {
+        return retried.get();
+    }
+
+    @Override
+    public void close() {
+        submit(statements, statementBytes);
+        statements = new ArrayList<>();
+        statementBytes = 0;
+        try {
+            // every permit back means every batch has been acknowledged or dead lettered
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } catch (InterruptedException e) {
+            log.error("Mongo Client not closed properly");
+            Thread.currentThread().interrupt();
+        } finally {
+            serializeExecutor.shutdown();
+            retryScheduler.shutdown();
+            log.info(String.format("Duplicates :: %,d\t Retried :: %,d\t Dead Lettered :: %,d", getDuplicates(), getRetried(),
+                    deadLetters.getCount()));
+            deadLetters.close();
+            client.close();
+        }
+    }
+}
@@ -16,11 +16,16 @@ package com.github.amihalik.rya.mongo.debugging.serialization;
 
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -28,6 +33,7 @@ import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 import org.bson.Document;
 import org.openrdf.model.Statement;
+import org.openrdf.model.vocabulary.RDF;
 import org.openrdf.rio.RDFFormat;
 import org.openrdf.rio.RDFHandler;
 import org.openrdf.rio.RDFHandlerException;
@@ -35,28 +41,24 @@ import org.openrdf.rio.RDFParser;
 import org.openrdf.rio.Rio;
 import org.openrdf.rio.helpers.RDFHandlerBase;
 
+import com.github.amihalik.rya.mongo.debugging.RyaUtil;
+import com.github.amihalik.rya.mongo.debugging.metrics.IngestMetrics;
 import com.google.common.base.Stopwatch;
-import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientOptions;
-import com.mongodb.MongoException;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.InsertManyOptions;
 
-public class BatchLoadRya {
+public class BatchLoadRya<T> implements StatementLoader {
     private static final Logger log = Logger.getLogger(BatchLoadRya.class);
 
-    private static final String HOST = "localhost";
-    private static final int PORT = 27017;
-
     private static final int THREAD_COUNT = 4;
 
-    private final int BATCH_SIZE = 1_000_000;
+    private static final int BATCH_SIZE = 1_000_000;
 
-    private final ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
-    private final Semaphore semaphore = new Semaphore(THREAD_COUNT);
+    private final ExecutorService executor;
+    private final AdaptiveBatchController controller;
 
     private final InsertManyOptions bws;
     final AtomicInteger totalstatements = new AtomicInteger();
@@ -66,84 +68,198 @@ public class BatchLoadRya {
     private final String dbName;
     private final String colName;
 
-    private final MongoSerialization serializer;
+    private final StatementSerializer<T> serializer;
+
+    private final BulkWriteRecovery<T> recovery;
+
+    private CheckpointTracker checkpoints;
+
+    private HeapBudget budget;
 
-    public BatchLoadRya(String dbName, String colName, MongoSerialization serializer) throws Exception {
+    public BatchLoadRya(String dbName, String colName, StatementSerializer<T> serializer) throws Exception {
+        this(dbName, colName, serializer, AdaptiveBatchController.fixed(BATCH_SIZE, THREAD_COUNT));
+    }
+
+    public BatchLoadRya(String dbName, String colName, StatementSerializer<T> serializer, AdaptiveBatchController controller)
+            throws Exception {
         this.serializer = serializer;
         this.dbName = dbName;
         this.colName = colName;
+        this.controller = controller;
+        this.executor = Executors.newFixedThreadPool(controller.getMaxInFlight());
 
         log.info("Opening Connection to Mongo");
 
-        ServerAddress server = new ServerAddress(HOST, PORT);
-        client = new MongoClient(server, MongoClientOptions.builder().minConnectionsPerHost(THREAD_COUNT).build());
+        ServerAddress server = RyaUtil.getMongoServer();
+        client = new MongoClient(server, MongoClientOptions.builder().minConnectionsPerHost(controller.getInFlightLimit()).build());
 
         bws = new InsertManyOptions();
         bws.ordered(false);
 
+        MongoCollection<T> coll = client.getDatabase(dbName).getCollection(colName, serializer.getDocumentClass());
+        recovery = new BulkWriteRecovery<>(client.getDatabase(dbName), coll, bws, new DeadLetterFile(new File(dbName + "." + colName + ".deadletter.nq")));
+
         log.info("Done Opening Connection to Rya");
     }
 
-    private final List<Statement> statements = new ArrayList<>();
+    /**
+     * Records a checkpoint after every acknowledged batch.
+     */
+    public void setCheckpointTracker(CheckpointTracker checkpoints) {
+        this.checkpoints = checkpoints;
+    }
+
+    /**
+     * Cuts batches by estimated heap as well as by count, and holds back the
+     * parser while the batches in flight would go over the budget. Each batch
+     * may use the budget's share of one in-flight slot, plus one slot for the
+     * batch being filled.
+     * Off when null.
+     */
+    public void setHeapBudget(HeapBudget budget) {
+        this.budget = budget;
+    }
+
+    private List<Statement> statements = new ArrayList<>();
+    private long statementBytes = 0;
 
+    @Override
     public void loadStatement(Statement s) {
         statements.add(s);
-        if (statements.size() >= BATCH_SIZE) {
-            loadintorya(new ArrayList<>(statements));
-            statements.clear();
+        if (budget != null) {
+            statementBytes += HeapBudget.estimate(s);
+        }
+        if (statements.size() >= controller.getBatchSize()
+                || (budget != null && HeapBudget.reservation(statementBytes) >= budget.getLimit() / (controller.getMaxInFlight() + 1))) {
+            // hand the list off instead of copying it
+            loadintorya(statements, statementBytes);
+            statements = new ArrayList<>();
+            statementBytes = 0;
         }
     }
 
-    private void loadintorya(final List<Statement> sts) {
+    private void loadintorya(final List<Statement> sts, final long stsBytes) {
+        if (sts.isEmpty()) {
+            return;
+        }
+        final long batch = checkpoints != null ? checkpoints.nextBatch(sts.size()) : -1;
+        final long reserved = budget != null ? HeapBudget.reservation(stsBytes) : 0;
+        long waitStart = System.nanoTime();
+        // the budget first, so an interrupt can't strand an in-flight permit that awaitIdle waits for
+        if (budget != null) {
+            try {
+                budget.acquire(reserved);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for heap budget", e);
+            }
+        }
         try {
-            semaphore.acquire();
-            executor.execute(() -> {
-                MongoDatabase db = client.getDatabase(dbName);
-                final MongoCollection<Document> coll = db.getCollection(colName);
-
-                Stopwatch sw = new Stopwatch();
-                sw.start();
-                List<Document> documents = new ArrayList<>();
-                for (Statement s : sts) {
-                    Document d = serializer.serialize(s);
-                    documents.add(d);
+            controller.acquire();
+        } catch (InterruptedException e) {
+            if (budget != null) {
+                budget.release(reserved);
+            }
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for an in-flight slot", e);
+        }
+        IngestMetrics.QUEUE_WAIT.update(System.nanoTime() - waitStart, TimeUnit.NANOSECONDS);
+        executor.execute(() -> {
+            long held = reserved;
+            try {
+                held = insertBatch(sts, stsBytes, reserved, batch);
+            } finally {
+                if (budget != null) {
+                    budget.release(held);
                 }
+                controller.release();
+            }
+        });
+    }
 
-                long serMilli = sw.elapsed(TimeUnit.MILLISECONDS);
-
-                sw.reset();
-                sw.start();
-                try {
-                    coll.insertMany(documents, bws);
-                    long insertMilli = sw.elapsed(TimeUnit.MILLISECONDS);
-
-                    int totalsize = totalstatements.addAndGet(sts.size());
-                    int insertsize = sts.size();
-                    log.info(String.format("TOTAL STATEMENTS :: %,d\t Serialization Rate :: %,d\t Insert Rate :: %,d\t", totalsize,
-                            (int) (insertsize * 1000. / serMilli), (int) (insertsize * 1000. / insertMilli)));
-                } catch (MongoBulkWriteException e) {
-                    log.error("Bulk Write Error loading data into Mongo.  First Message :: " + e.getWriteErrors().get(0).getMessage() + ". "
-                            + e.getWriteErrors().size() + " total errors");
-                } catch (MongoException e) {
-                    log.error("Error loading data into Mongo");
-                    e.printStackTrace();
+    /**
+     * @return the budget reservation the batch holds once its real size is
+     *         known.
+     */
+    private long insertBatch(final List<Statement> sts, final long stsBytes, final long reserved, final long batch) {
+        Stopwatch sw = new Stopwatch();
+        sw.start();
+        List<T> documents = new ArrayList<>(sts.size());
+        // the statement behind each document, for the dead letter file
+        List<Statement> sources = new ArrayList<>(sts.size());
+        long bytes = 0;
+        long documentHeap = 0;
+        try {
+            serializer.prepare(sts);
+            for (Statement s : sts) {
+                long start = IngestMetrics.startSample();
+                T d = serializer.serialize(s);
+                IngestMetrics.endSample(IngestMetrics.SERIALIZE, start);
+                if (d != null) {
+                    documents.add(d);
+                    sources.add(s);
+                    int byteSize = serializer.byteSize(d);
+                    bytes += Math.max(byteSize, 0);
+                    if (budget != null && byteSize >= 0) {
+                        documentHeap += HeapBudget.documentBytes(byteSize);
+                    }
                 }
+            }
+        } catch (RuntimeException e) {
+            // a bad statement costs its batch, not the load
+            log.error(String.format("Error serializing a batch of %,d statements, dead lettering it", sts.size()), e);
+            recovery.deadLetter(sts, "serialization failed :: " + e);
+            if (checkpoints != null) {
+                // it would fail the same way on resume, and the dead letter file has it
+                checkpoints.acknowledge(batch);
+            }
+            return reserved;
+        }
 
-                semaphore.release();
-            });
-        } catch (InterruptedException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        long held = reserved;
+        if (budget != null && documentHeap > 0) {
+            // encoded documents are usually far smaller than the reservation assumed
+            held = stsBytes + documentHeap;
+            budget.adjust(held - reserved);
         }
 
+        long serNanos = sw.elapsed(TimeUnit.NANOSECONDS);
+
+        sw.reset();
+        sw.start();
+        try {
+            recovery.insert(documents, sources);
+            long insertNanos = sw.elapsed(TimeUnit.NANOSECONDS);
+            IngestMetrics.INSERT.update(insertNanos, TimeUnit.NANOSECONDS);
+            IngestMetrics.BYTES.mark(bytes);
+            controller.recordBatch(sts.size(), serNanos, insertNanos);
+            if (checkpoints != null) {
+                checkpoints.acknowledge(batch);
+            }
+
+            int totalsize = totalstatements.addAndGet(sts.size());
+            int insertsize = sts.size();
+            log.info(String.format("TOTAL STATEMENTS :: %,d\t Serialization Rate :: %,d\t Insert Rate :: %,d\t%s", totalsize,
+                    IngestMetrics.rate(insertsize, serNanos), IngestMetrics.rate(insertsize, insertNanos),
+                    budget != null ? " " + budget : ""));
+        } catch (RuntimeException e) {
+            IngestMetrics.ERRORS.inc(sts.size());
+            // not acknowledged, so a resumed load will insert this batch again
+            log.error("Error loading data into Mongo", e);
+        }
+        return held;
     }
 
+    @Override
     public void close() {
-        loadintorya(new ArrayList<>(statements));
-        statements.clear();
+        loadintorya(statements, statementBytes);
+        statements = new ArrayList<>();
+        statementBytes = 0;
         // wait until all threads have finished writing
         try {
-            semaphore.acquire(THREAD_COUNT);
+            controller.awaitIdle();
+            executor.shutdown();
+            recovery.close();
             client.close();
         } catch (InterruptedException e) {
             log.error("Mongo Client not closed properly");
@@ -151,8 +267,11 @@ public class BatchLoadRya {
         }
     }
 
-    public static RDFHandler newHandler(String dbName, String colName, MongoSerialization serializer) throws Exception {
-        BatchLoadRya rya = new BatchLoadRya(dbName, colName, serializer);
+    public static RDFHandler newHandler(String dbName, String colName, StatementSerializer<?> serializer) throws Exception {
+        return newHandler(new BatchLoadRya<>(dbName, colName, serializer));
+    }
+
+    public static RDFHandler newHandler(final StatementLoader rya) {
         return new RDFHandlerBase() {
             @Override
             public void handleStatement(Statement st) throws RDFHandlerException {
@@ -166,26 +285,224 @@ public class BatchLoadRya {
         };
     }
 
+    private static AdaptiveBatchController newAdaptiveController() {
+        return new AdaptiveBatchController(100_000, 10_000, 2_000_000, THREAD_COUNT, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
     public static void main(String[] args) throws Exception {
         String filename = "/Users/mihalik/Downloads/ntm_output1.n3";
 
         boolean addHash = true;
         boolean addGeo = true;
+        // Bounding box and quadtree cell terms next to each geometry, see GeoPrefilter
+        boolean addCells = false;
+        // Simplified copies of large LineStrings and polygons, see MultiResolutionMatcher
+        boolean simplify = false;
         String dbName = "04_rya_hash";
         String colName = "all";
 
-        MongoSerialization serializer = new MongoSerialization(addHash, addGeo);
+        // Staged parse -> serialize -> insert pipeline instead of the fixed pool
+        boolean pipeline = true;
+        int serializeThreads = Runtime.getRuntime().availableProcessors();
+        int insertThreads = 4;
+        int queueDepth = 4;
+        int pipelineBatchSize = 100_000;
+
+        // Async driver inserts completing in callbacks instead of a thread per batch
+        boolean async = false;
+        int asyncInFlight = 16;
+
+        // Parse line-oriented input on several threads
+        boolean parallelParse = true;
+        int parseThreads = Runtime.getRuntime().availableProcessors();
+
+        // Tune batch size and in-flight batches from observed throughput, BatchLoadRya only so needs pipeline = false
+        boolean adaptive = false;
+
+        // Cut batches by estimated heap too, and cap what every loader holds; 0 to count statements only
+        double heapBudgetFraction = 0.5;
+
+        // --checkpoint records progress after every batch, --resume continues from it
+        List<String> flags = Arrays.asList(args);
+        boolean resume = flags.contains("--resume");
+        boolean checkpoint = resume || flags.contains("--checkpoint");
+        File checkpointFile = new File(filename + ".checkpoint");
+        int multiplier = 12;
+
+        // Drop repeated statements before they reach Mongo as duplicate key errors
+        boolean dedup = false;
+        int expectedStatements = 100_000_000;
+
+        // Drop the secondary indexes for the load and build them once at the end
+        boolean deferIndexes = false;
+
+        // One collection per predicate group, rare predicates in a catch-all
+        boolean partitioned = false;
+        Map<String, String> partitionGroups = new HashMap<>();
+        partitionGroups.put("http://www.opengis.net/ont/geosparql#asWKT", "geo");
+        partitionGroups.put(RDF.TYPE.stringValue(), "type");
+
+        // Encode straight to BSON instead of building org.bson.Document graphs
+        boolean rawBson = true;
+
+        // SHA_256 keeps _id compatible with existing collections
+        StatementHasher hasher = new StatementHasher(StatementHasher.IdHash.SHA_256, StatementHasher.DEFAULT_TERM_CACHE_SIZE);
+
+        // Store term ids from a dictionary collection instead of the terms themselves
+        boolean dictionaryEncoding = false;
+
+        StatementSerializer<?> serializer;
+        MongoClient dictionaryClient = null;
+        if (dictionaryEncoding) {
+            dictionaryClient = new MongoClient(RyaUtil.getMongoServer());
+            TermDictionary dictionary = new TermDictionary(dictionaryClient.getDatabase(dbName).getCollection(colName + "_terms"));
+            DictionarySerialization.createIndexes(dictionaryClient.getDatabase(dbName).getCollection(colName));
+            serializer = new DictionarySerialization(dictionary, addGeo, hasher);
+        } else if (rawBson) {
+            RawMongoSerialization raw = new RawMongoSerialization(addHash, addGeo, addCells, hasher);
+            raw.setSimplifier(simplify ? new GeometrySimplifier() : null);
+            serializer = raw;
+        } else {
+            MongoSerialization doc = new MongoSerialization(addHash, addGeo, addCells, hasher);
+            doc.setSimplifier(simplify ? new GeometrySimplifier() : null);
+            serializer = doc;
+        }
 
-        RDFParser fileParser = Rio.createParser(RDFFormat.N3);
+        // MultiResolutionMatcher finds candidates through the cell index only
+        if (simplify && !addCells) {
+            throw new IllegalArgumentException("simplify needs addCells: documents without cells are never matched by MultiResolutionMatcher");
+        }
 
-        RDFHandler rya = BatchLoadRya.newHandler(dbName, colName, serializer);
-        RDFHandler counter = new RdfHandlerCounter(rya);
-        RDFHandler fuzzer = new RdfHandlerFuzzer(counter, 12);
+        // the checkpoint path always uses BatchLoadRya, so it can adapt too
+        if (adaptive && !checkpoint && (pipeline || async || partitioned)) {
+            throw new IllegalArgumentException("adaptive batching needs BatchLoadRya: set pipeline, async and partitioned to false, or load with --checkpoint");
+        }
+
+        LoadCheckpoint resumeFrom = null;
+        if (resume) {
+            resumeFrom = LoadCheckpoint.load(checkpointFile);
+            log.info(resumeFrom == null ? "No checkpoint found, starting from the beginning" : "Resuming from " + resumeFrom);
+        }
+
+        HeapBudget budget = null;
+        if (heapBudgetFraction > 0) {
+            budget = HeapBudget.ofMaxHeap(heapBudgetFraction);
+            budget.registerMetrics(IngestMetrics.REGISTRY, "heap-budget");
+            log.info(budget);
+        }
+
+        StatementLoader loader;
+        if (checkpoint) {
+            // batches must be cut from the input in order, so no pipeline and no parallel parse
+            BatchLoadRya<?> batchLoader = adaptive ? new BatchLoadRya<>(dbName, colName, serializer, newAdaptiveController())
+                    : new BatchLoadRya<>(dbName, colName, serializer);
+            batchLoader.setCheckpointTracker(new CheckpointTracker(checkpointFile, filename, multiplier, resumeFrom));
+            batchLoader.setHeapBudget(budget);
+            loader = batchLoader;
+            parallelParse = false;
+        } else if (partitioned) {
+            PartitionedLoadRya<?> partitionedLoader = new PartitionedLoadRya<>(dbName, new PartitionCatalog(colName, partitionGroups), serializer,
+                    pipelineBatchSize, queueDepth, insertThreads);
+            partitionedLoader.setHeapBudget(budget);
+            loader = partitionedLoader;
+        } else if (async) {
+            AsyncLoadRya<?> asyncLoader = new AsyncLoadRya<>(dbName, colName, serializer, pipelineBatchSize, serializeThreads, asyncInFlight);
+            asyncLoader.setHeapBudget(budget);
+            loader = asyncLoader;
+        } else if (pipeline) {
+            PipelineLoadRya<?> pipelineLoader = new PipelineLoadRya<>(dbName, colName, serializer, pipelineBatchSize, serializeThreads,
+                    insertThreads, queueDepth);
+            pipelineLoader.setHeapBudget(budget);
+            loader = pipelineLoader;
+        } else {
+            BatchLoadRya<?> batchLoader = adaptive ? new BatchLoadRya<>(dbName, colName, serializer, newAdaptiveController())
+                    : new BatchLoadRya<>(dbName, colName, serializer);
+            batchLoader.setHeapBudget(budget);
+            loader = batchLoader;
+        }
 
-        fileParser.setRDFHandler(fuzzer);
+        Collection<String> targets = partitioned ? ((PartitionedLoadRya<?>) loader).getCatalog().getCollections()
+                : Collections.singleton(colName);
+
+        RDFHandler rya = new SynchronizedRdfHandler(BatchLoadRya.newHandler(loader));
+        MongoClient dedupClient = null;
+        if (dedup) {
+            // probable repeats older than the exact set are looked up by _id in the target collections
+            dedupClient = new MongoClient(RyaUtil.getMongoServer());
+            List<MongoCollection<?>> confirm = new ArrayList<>();
+            for (String target : targets) {
+                confirm.add(dedupClient.getDatabase(dbName).getCollection(target));
+            }
+            RdfHandlerDedup dedupHandler = new RdfHandlerDedup(rya, hasher, expectedStatements);
+            dedupHandler.setConfirmCollections(confirm);
+            rya = dedupHandler;
+        }
+        RDFHandler counter = new RdfHandlerCounter(rya);
+        RdfHandlerFuzzer fuzzer = new RdfHandlerFuzzer(counter, multiplier);
+        RDFHandler timer = new RdfHandlerParseTimer(fuzzer);
+
+        List<IndexDeferral> indexes = new ArrayList<>();
+        MongoClient indexClient = null;
+        List<Document> expectedIndexes = IndexDeferral.expectedIndexes(addGeo);
+        if (addCells && !dictionaryEncoding) {
+            // created before a suspend so the deferral records it with its options
+            try (MongoClient client = new MongoClient(RyaUtil.getMongoServer())) {
+                for (String target : targets) {
+                    SpatialCells.createIndexes(client.getDatabase(dbName).getCollection(target));
+                }
+            }
+            expectedIndexes.add(IndexDeferral.CELLS_INDEX);
+        }
+        if (deferIndexes) {
+            indexClient = new MongoClient(RyaUtil.getMongoServer());
+            for (String target : targets) {
+                IndexDeferral deferral = new IndexDeferral(indexClient, dbName, target, new File(dbName + "." + target + ".indexes.json"));
+                deferral.suspend();
+                indexes.add(deferral);
+            }
+        }
 
-        fileParser.parse(new BufferedInputStream(FileUtils.openInputStream(new File(filename))), "");
+        // JMX, plus CSV and JSON snapshots of the per-stage metrics
+        IngestMetrics.startReporting(new File("metrics"), 10);
+
+        if (parallelParse) {
+            new ParallelRdfFileParser(RDFFormat.N3, parseThreads).parse(new File(filename), "", timer);
+        } else {
+            RDFParser fileParser = Rio.createParser(RDFFormat.N3);
+            RDFHandler handler = timer;
+            InputStream in = null;
+            if (resumeFrom != null) {
+                fuzzer.resumeAt(resumeFrom.getStatementOffset(), resumeFrom.getFuzzIndex());
+                in = LoadCheckpoint.openAfter(new File(filename), RDFFormat.N3, resumeFrom.getStatementOffset());
+                if (in == null) {
+                    handler = new RdfHandlerSkipper(timer, resumeFrom.getStatementOffset());
+                }
+            }
+            if (in == null) {
+                in = new BufferedInputStream(FileUtils.openInputStream(new File(filename)));
+            }
+            fileParser.setRDFHandler(handler);
+            try {
+                fileParser.parse(in, "");
+            } finally {
+                in.close();
+            }
+        }
 
+        IngestMetrics.stopReporting();
+        for (IndexDeferral deferral : indexes) {
+            // the dictionary layout is indexed by DictionarySerialization.createIndexes instead
+            deferral.restore(dictionaryEncoding ? Collections.emptyList() : expectedIndexes);
+        }
+        if (indexClient != null) {
+            indexClient.close();
+        }
+        if (dictionaryClient != null) {
+            dictionaryClient.close();
+        }
+        if (dedupClient != null) {
+            dedupClient.close();
+        }
         log.info("Done loading data into Rya");
 
     }
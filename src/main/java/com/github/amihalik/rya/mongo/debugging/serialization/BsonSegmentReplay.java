@@ -0,0 +1,253 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.CONTEXT;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.OBJECT;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.OBJECT_LANGUAGE;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.OBJECT_TYPE;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.OBJECT_TYPE_VALUE;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.PREDICATE;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.SUBJECT;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.bson.RawBsonDocument;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+import com.github.amihalik.rya.mongo.debugging.RyaUtil;
+import com.github.amihalik.rya.mongo.debugging.metrics.IngestMetrics;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Loads segments written by {@link BsonSegmentWriter}.
+ * <p>
+ * Each segment is memory mapped and walked by its length prefixes only.
+ * Every batch is copied out of the mapping in one piece and its documents are
+ * {@link RawBsonDocument} views onto that array, which the driver writes to
+ * the socket as is: nothing is parsed, decoded or encoded again. Inserts go
+ * through {@link BulkWriteRecovery}; the statement behind a document is only
+ * rebuilt if it has to be dead-lettered.
+ *
+ * <pre>
+ * BsonSegmentReplay [segment prefix] [db] [collection]
+ * </pre>
+ */
+public class BsonSegmentReplay {
+    private static final Logger log = Logger.getLogger(BsonSegmentReplay.class);
+
+    private static final int BATCH_SIZE = 100_000;
+    /** The driver splits bigger batches into 48MB messages anyway. */
+    private static final int MAX_BATCH_BYTES = 32 << 20;
+
+    private final BulkWriteRecovery<RawBsonDocument> recovery;
+    private final ExecutorService executor;
+    // bounds the batches copied out of the mapping but not inserted yet
+    private final Semaphore permits;
+
+    private volatile RuntimeException failure;
+
+    public BsonSegmentReplay(BulkWriteRecovery<RawBsonDocument> recovery, int insertThreads) {
+        this.recovery = recovery;
+        this.executor = Executors.newFixedThreadPool(insertThreads);
+        this.permits = new Semaphore(insertThreads + 1);
+    }
+
+    /**
+     * Inserts every document in {@code segments} and waits for the inserts
+     * to finish.
+     *
+     * @return the number of documents read.
+     */
+    public long replay(List<File> segments) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long read = 0;
+        long bytes = 0;
+        try {
+            for (File file : segments) {
+                read += replay(file);
+                bytes += file.length();
+                log.info(String.format("Replayed %s :: %,d documents so far", file, read));
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        long nanos = System.nanoTime() - start;
+        log.info(String.format("Replayed %,d documents (%,d bytes) in %,d ms :: %,d docs/s :: %,d MB/s", read, bytes,
+                TimeUnit.NANOSECONDS.toMillis(nanos), IngestMetrics.rate(read, nanos), IngestMetrics.rate(bytes >> 20, nanos)));
+        recovery.logSummary();
+        return read;
+    }
+
+    private long replay(File file) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to map, rewrite it with smaller segments");
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+
+            long read = 0;
+            int batchStart = 0;
+            int count = 0;
+            int position = 0;
+            while (position < size) {
+                int length = position + 4 <= size ? map.getInt(position) : -1;
+                if (length < 5 || position + (long) length > size) {
+                    throw new IOException(String.format("Corrupt segment %s at offset %,d", file, position));
+                }
+                position += length;
+                count++;
+                if (count == BATCH_SIZE || position - batchStart >= MAX_BATCH_BYTES) {
+                    submit(map, batchStart, position);
+                    read += count;
+                    batchStart = position;
+                    count = 0;
+                }
+            }
+            if (count > 0) {
+                submit(map, batchStart, position);
+                read += count;
+            }
+            return read;
+        }
+    }
+
+    private void submit(MappedByteBuffer map, int from, int to) throws InterruptedException {
+        if (failure != null) {
+            throw failure;
+        }
+        permits.acquire();
+        byte[] batch = new byte[to - from];
+        ByteBuffer view = map.duplicate();
+        view.position(from);
+        view.get(batch);
+        executor.execute(() -> {
+            try {
+                insert(batch);
+            } catch (RuntimeException e) {
+                log.error("Replay insert failed", e);
+                failure = e;
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    private void insert(byte[] batch) {
+        List<RawBsonDocument> docs = new ArrayList<>();
+        for (int offset = 0; offset < batch.length;) {
+            int length = (batch[offset] & 0xff) | (batch[offset + 1] & 0xff) << 8 | (batch[offset + 2] & 0xff) << 16
+                    | (batch[offset + 3] & 0xff) << 24;
+            docs.add(new RawBsonDocument(batch, offset, length));
+            offset += length;
+        }
+        long start = System.nanoTime();
+        recovery.insert(docs, new AbstractList<Statement>() {
+            @Override
+            public Statement get(int index) {
+                return toStatement(docs.get(index));
+            }
+
+            @Override
+            public int size() {
+                return docs.size();
+            }
+        });
+        IngestMetrics.INSERT.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        IngestMetrics.BYTES.mark(batch.length);
+    }
+
+    /**
+     * @return the statement a Rya document was serialized from.
+     */
+    static Statement toStatement(RawBsonDocument doc) {
+        ValueFactory vf = ValueFactoryImpl.getInstance();
+        Resource subject = resource(vf, doc.getString(SUBJECT).getValue());
+        String object = doc.getString(OBJECT).getValue();
+        String objectType = doc.getString(OBJECT_TYPE).getValue();
+        Value value;
+        if (objectType.equals(OBJECT_TYPE_VALUE)) {
+            value = resource(vf, object);
+        } else if (doc.containsKey(OBJECT_LANGUAGE)) {
+            value = vf.createLiteral(object, doc.getString(OBJECT_LANGUAGE).getValue());
+        } else {
+            value = vf.createLiteral(object, vf.createURI(objectType));
+        }
+        String context = doc.containsKey(CONTEXT) ? doc.getString(CONTEXT).getValue() : "";
+        if (context.isEmpty()) {
+            return vf.createStatement(subject, vf.createURI(doc.getString(PREDICATE).getValue()), value);
+        }
+        return vf.createStatement(subject, vf.createURI(doc.getString(PREDICATE).getValue()), value, resource(vf, context));
+    }
+
+    /**
+     * Blank nodes are stored by their bare id, which is not an absolute IRI.
+     */
+    private static Resource resource(ValueFactory vf, String value) {
+        return value.indexOf(':') > 0 ? vf.createURI(value) : vf.createBNode(value);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String prefix = args.length > 0 ? args[0] : "/mydata/one_gig_ntrip_file_segment";
+        String dbName = args.length > 1 ? args[1] : "04_rya_hash";
+        String colName = args.length > 2 ? args[2] : "all";
+        int insertThreads = 4;
+
+        List<File> segments = BsonSegmentWriter.segments(prefix);
+        if (segments.isEmpty()) {
+            log.error("No segments found for " + prefix);
+            return;
+        }
+
+        MongoClient client = new MongoClient(RyaUtil.getMongoServer());
+        try {
+            MongoCollection<RawBsonDocument> coll = client.getDatabase(dbName).getCollection(colName, RawBsonDocument.class);
+            BulkWriteRecovery<RawBsonDocument> recovery = new BulkWriteRecovery<>(client.getDatabase(dbName), coll, new InsertManyOptions().ordered(false),
+                    new DeadLetterFile(new File(dbName + "." + colName + ".deadletter.nq")));
+            IngestMetrics.startReporting(new File("metrics"), 10);
+            new BsonSegmentReplay(recovery, insertThreads).replay(segments);
+            recovery.close();
+        } finally {
+            IngestMetrics.stopReporting();
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.bson.RawBsonDocument;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandler;
+
+import com.github.amihalik.rya.mongo.debugging.metrics.IngestMetrics;
+
+/**
+ * Serializes statements once and stores the documents in segment files, so
+ * the same data can be reloaded with {@link BsonSegmentReplay} without
+ * parsing, fuzzing or serializing again.
+ * <p>
+ * A segment is plain concatenated BSON: every document starts with its own
+ * int32 length, which is the only framing needed (and what
+ * {@code mongorestore} reads as well). Segments are named
+ * {@code <prefix>_<n>.bson} and are rolled before they pass
+ * {@code segmentBytes} so each one can be memory mapped in one piece. Any
+ * segments already under the prefix are deleted when the writer is created,
+ * so a replay never picks up the tail of an earlier, longer run.
+ * <p>
+ * Batches are serialized on {@code threads} threads and appended as they
+ * finish, so documents are not stored in input order.
+ *
+ * <pre>
+ * BsonSegmentWriter [input] [output prefix] [multiplier]
+ * </pre>
+ */
+public class BsonSegmentWriter implements StatementLoader {
+    private static final Logger log = Logger.getLogger(BsonSegmentWriter.class);
+
+    public static final String EXTENSION = ".bson";
+    /** Well under the 2GB a single mapping can cover. */
+    public static final long DEFAULT_SEGMENT_BYTES = 1L << 30;
+
+    private static final int BATCH_SIZE = 10_000;
+
+    private static final ThreadLocal<ByteArrayOutputStream> buffers = ThreadLocal.withInitial(() -> new ByteArrayOutputStream(1 << 20));
+
+    private final StatementSerializer<RawBsonDocument> serializer;
+    private final String prefix;
+    private final long segmentBytes;
+    private final ExecutorService executor;
+    // bounds the batches waiting to be serialized
+    private final Semaphore permits;
+
+    private List<Statement> statements = new ArrayList<>(BATCH_SIZE);
+
+    // guarded by this
+    private OutputStream out;
+    private int segment = -1;
+    private long segmentSize;
+    private long documents;
+    private long bytes;
+
+    private volatile Exception failure;
+
+    public BsonSegmentWriter(StatementSerializer<RawBsonDocument> serializer, String prefix, int threads) {
+        this(serializer, prefix, threads, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public BsonSegmentWriter(StatementSerializer<RawBsonDocument> serializer, String prefix, int threads, long segmentBytes) {
+        this.serializer = serializer;
+        this.prefix = prefix;
+        this.segmentBytes = segmentBytes;
+        deleteSegments(prefix);
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.permits = new Semaphore(2 * threads);
+    }
+
+    public static File segmentFile(String prefix, int segment) {
+        return new File(String.format("%s_%05d%s", prefix, segment, EXTENSION));
+    }
+
+    /**
+     * @return the segments written under {@code prefix}, in order.
+     */
+    public static List<File> segments(String prefix) {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; segmentFile(prefix, i).exists(); i++) {
+            files.add(segmentFile(prefix, i));
+        }
+        return files;
+    }
+
+    private static void deleteSegments(String prefix) {
+        List<File> stale = segments(prefix);
+        for (File file : stale) {
+            if (!file.delete()) {
+                throw new IllegalStateException("Could not delete stale segment " + file);
+            }
+        }
+        if (!stale.isEmpty()) {
+            log.info(String.format("Deleted %d existing segments under %s", stale.size(), prefix));
+        }
+    }
+
+    @Override
+    public void loadStatement(Statement s) {
+        statements.add(s);
+        if (statements.size() >= BATCH_SIZE) {
+            submit();
+        }
+    }
+
+    private void submit() {
+        checkFailure();
+        if (statements.isEmpty()) {
+            return;
+        }
+        final List<Statement> batch = statements;
+        statements = new ArrayList<>(BATCH_SIZE);
+        try {
+            long waitStart = System.nanoTime();
+            permits.acquire();
+            IngestMetrics.QUEUE_WAIT.update(System.nanoTime() - waitStart, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while handing off a batch", e);
+        }
+        executor.execute(() -> {
+            try {
+                writeBatch(batch);
+            } catch (Exception e) {
+                log.error("Could not write segment batch", e);
+                failure = e;
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    private void writeBatch(List<Statement> batch) throws IOException {
+        ByteArrayOutputStream buffer = buffers.get();
+        buffer.reset();
+        int count = 0;
+        serializer.prepare(batch);
+        for (Statement s : batch) {
+            long start = IngestMetrics.startSample();
+            RawBsonDocument d = serializer.serialize(s);
+            IngestMetrics.endSample(IngestMetrics.SERIALIZE, start);
+            if (d == null) {
+                continue;
+            }
+            ByteBuffer b = d.getByteBuffer().asNIO();
+            if (b.hasArray()) {
+                buffer.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+            } else {
+                byte[] copy = new byte[b.remaining()];
+                b.get(copy);
+                buffer.write(copy);
+            }
+            count++;
+        }
+        append(buffer, count);
+    }
+
+    private synchronized void append(ByteArrayOutputStream buffer, int count) throws IOException {
+        if (out == null || (segmentSize > 0 && segmentSize + buffer.size() > segmentBytes)) {
+            roll();
+        }
+        buffer.writeTo(out);
+        segmentSize += buffer.size();
+        documents += count;
+        bytes += buffer.size();
+        IngestMetrics.STATEMENTS.mark(count);
+        IngestMetrics.BYTES.mark(buffer.size());
+    }
+
+    private void roll() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+        segment++;
+        segmentSize = 0;
+        File file = segmentFile(prefix, segment);
+        log.info("Writing segment " + file);
+        out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20);
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            executor.shutdownNow();
+            throw new IllegalStateException("Segment writer failed", failure);
+        }
+    }
+
+    @Override
+    public void close() {
+        submit();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            synchronized (this) {
+                if (out != null) {
+                    out.close();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted before all segments were written");
+        } catch (IOException e) {
+            log.error("Could not close segment " + segmentFile(prefix, segment), e);
+        }
+        checkFailure();
+        log.info(String.format("Wrote %,d documents (%,d bytes) to %d segments", documents, bytes, segment + 1));
+    }
+
+    public static void main(String[] args) throws Exception {
+        String filename = args.length > 0 ? args[0] : "/mydata/one_gig_ntrip_file.n3";
+        String prefix = args.length > 1 ? args[1] : "/mydata/one_gig_ntrip_file_segment";
+        int multiplier = args.length > 2 ? Integer.parseInt(args[2]) : 12;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        // the same documents BatchLoadRya would insert
+        StatementSerializer<RawBsonDocument> serializer = new RawMongoSerialization(true, true);
+        BsonSegmentWriter writer = new BsonSegmentWriter(serializer, prefix, threads);
+
+        RDFHandler handler = new SynchronizedRdfHandler(BatchLoadRya.newHandler(writer));
+        RDFHandler counter = new RdfHandlerCounter(handler);
+        RDFHandler fuzzer = new RdfHandlerFuzzer(counter, multiplier);
+
+        long start = System.nanoTime();
+        new ParallelRdfFileParser(RDFFormat.N3, threads).parse(new File(filename), "", new RdfHandlerParseTimer(fuzzer));
+        log.info(String.format("Done writing segments in %,d ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+}
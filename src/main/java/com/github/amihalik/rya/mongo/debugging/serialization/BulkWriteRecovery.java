@@ -0,0 +1,296 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.openrdf.model.Statement;
+
+import com.github.amihalik.rya.mongo.debugging.metrics.IngestMetrics;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWaitQueueFullException;
+import com.mongodb.MongoWriteConcernException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Unordered insertMany that accounts for every document.
+ * <p>
+ * An unordered bulk write applies every document it can and reports the rest
+ * by index, so only the failed documents are retried, never the whole batch.
+ * Duplicate key errors mean the statement is already stored (the _id is a hash
+ * of the statement) and are counted but otherwise ignored. Errors that would
+ * fail the same way every time (a geometry the index can't take, a key or
+ * document that is too large, ...) are dead-lettered at once. Only
+ * {@link #isTransient transient} failures are retried, in halves with
+ * exponential backoff; a transient error that is not tied to a document
+ * (network, timeout, failover, ...) retries the whole batch the same way, which
+ * is safe because documents that did make it come back as duplicates.
+ * Whatever still fails after {@code maxRetries} rounds is written with its
+ * original statement to the {@link DeadLetterFile}.
+ * <p>
+ * Every batch advances the {@link IngestEpoch} shared through {@code db}.
+ */
+public class BulkWriteRecovery<T> {
+    private static final Logger log = Logger.getLogger(BulkWriteRecovery.class);
+
+    public static final int DUPLICATE_KEY = 11000;
+
+    /** Server error codes that may succeed on a later attempt. */
+    private static final Set<Integer> TRANSIENT_CODES = new HashSet<>(Arrays.asList(
+            6, // HostUnreachable
+            7, // HostNotFound
+            50, // ExceededTimeLimit
+            64, // WriteConcernFailed
+            89, // NetworkTimeout
+            91, // ShutdownInProgress
+            112, // WriteConflict
+            189, // PrimarySteppedDown
+            262, // ExceededTimeLimit
+            9001, // SocketException
+            10107, // NotMaster
+            11600, // InterruptedAtShutdown
+            11602, // InterruptedDueToReplStateChange
+            13435, // NotMasterNoSlaveOk
+            13436)); // NotMasterOrSecondary
+
+    public static final int DEFAULT_MAX_RETRIES = 5;
+    public static final long DEFAULT_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    private final MongoDatabase db;
+    private final MongoCollection<T> coll;
+    private final InsertManyOptions options;
+    private final DeadLetterFile deadLetters;
+    private final int maxRetries;
+    private final long backoffMillis;
+
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong recovered = new AtomicLong();
+
+    public BulkWriteRecovery(MongoDatabase db, MongoCollection<T> coll, InsertManyOptions options, DeadLetterFile deadLetters) {
+        this(db, coll, options, deadLetters, DEFAULT_MAX_RETRIES, DEFAULT_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @param db
+     *            the database of {@code coll}, which holds the shared
+     *            {@link IngestEpoch} counter.
+     */
+    public BulkWriteRecovery(MongoDatabase db, MongoCollection<T> coll, InsertManyOptions options, DeadLetterFile deadLetters,
+            int maxRetries, long backoffMillis) {
+        this.db = db;
+        this.coll = coll;
+        this.options = options;
+        this.deadLetters = deadLetters;
+        this.maxRetries = maxRetries;
+        this.backoffMillis = backoffMillis;
+    }
+
+    /**
+     * @return whether a write error with this code may succeed if retried.
+     */
+    public static boolean isTransient(int code) {
+        return TRANSIENT_CODES.contains(code);
+    }
+
+    /**
+     * @return whether a failed insert may succeed if retried: network
+     *         errors, timeouts, failovers and write concern errors. The
+     *         write errors of a {@link MongoBulkWriteException} are judged
+     *         one by one instead.
+     */
+    public static boolean isTransient(Throwable t) {
+        if (t instanceof MongoSocketException || t instanceof MongoTimeoutException || t instanceof MongoWaitQueueFullException
+                || t instanceof MongoExecutionTimeoutException || t instanceof MongoNotPrimaryException
+                || t instanceof MongoNodeIsRecoveringException || t instanceof MongoWriteConcernException) {
+            return true;
+        }
+        return t instanceof MongoException && !(t instanceof MongoBulkWriteException) && isTransient(((MongoException) t).getCode());
+    }
+
+    /**
+     * Inserts {@code documents}, retrying and dead-lettering as needed. Returns
+     * once every document is either stored or in the dead letter file.
+     *
+     * @param sources
+     *            the statement each document was serialized from, index for
+     *            index.
+     */
+    public void insert(List<T> documents, List<Statement> sources) {
+        if (!documents.isEmpty()) {
+            try {
+                insert(documents, sources, 0);
+            } finally {
+                IngestEpoch.advance(db);
+            }
+        }
+    }
+
+    private void insert(List<T> documents, List<Statement> sources, int attempt) {
+        try {
+            coll.insertMany(documents, options);
+            IngestMetrics.STATEMENTS.mark(documents.size());
+            if (attempt > 0) {
+                recovered.addAndGet(documents.size());
+            }
+        } catch (MongoBulkWriteException e) {
+            List<T> failedDocs = new ArrayList<>();
+            List<Statement> failedSources = new ArrayList<>();
+            String firstError = null;
+            String firstRejected = null;
+            int dups = 0;
+            int rejected = 0;
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (error.getCode() == DUPLICATE_KEY) {
+                    dups++;
+                    continue;
+                }
+                String reason = "code " + error.getCode() + " :: " + error.getMessage();
+                if (!isTransient(error.getCode())) {
+                    // would fail the same way on every attempt
+                    deadLetters.write(sources.get(error.getIndex()), reason);
+                    rejected++;
+                    if (firstRejected == null) {
+                        firstRejected = reason;
+                    }
+                    continue;
+                }
+                if (firstError == null) {
+                    firstError = reason;
+                }
+                failedDocs.add(documents.get(error.getIndex()));
+                failedSources.add(sources.get(error.getIndex()));
+            }
+            if (e.getWriteConcernError() != null) {
+                log.warn("Write concern error :: " + e.getWriteConcernError().getMessage());
+            }
+            duplicates.addAndGet(dups);
+            IngestMetrics.DUPLICATES.inc(dups);
+            IngestMetrics.ERRORS.inc(rejected);
+            IngestMetrics.STATEMENTS.mark(documents.size() - failedDocs.size() - dups - rejected);
+            if (attempt > 0) {
+                recovered.addAndGet(documents.size() - failedDocs.size() - dups - rejected);
+            }
+            if (rejected > 0) {
+                log.warn(String.format("%,d of %,d documents rejected, see %s.  First Message :: %s", rejected, documents.size(),
+                        deadLetters.getFile(), firstRejected));
+            }
+            if (!failedDocs.isEmpty()) {
+                log.warn(String.format("%,d of %,d documents failed (attempt %d).  First Message :: %s", failedDocs.size(),
+                        documents.size(), attempt + 1, firstError));
+                retry(failedDocs, failedSources, attempt, firstError);
+            }
+        } catch (MongoException e) {
+            String reason = "code " + e.getCode() + " :: " + e.getMessage();
+            if (!isTransient(e)) {
+                log.error(String.format("Insert of %,d documents failed and can't be retried, see %s :: %s", documents.size(),
+                        deadLetters.getFile(), e.getMessage()));
+                deadLetter(sources, reason);
+                return;
+            }
+            log.warn(String.format("Insert of %,d documents failed (attempt %d) :: %s", documents.size(), attempt + 1, e.getMessage()));
+            retry(documents, sources, attempt, reason);
+        }
+    }
+
+    private void retry(List<T> documents, List<Statement> sources, int attempt, String reason) {
+        if (attempt >= maxRetries) {
+            log.error(String.format("Giving up on %,d documents after %d attempts, see %s", documents.size(), attempt + 1,
+                    deadLetters.getFile()));
+            deadLetter(sources, reason);
+            return;
+        }
+
+        retried.addAndGet(documents.size());
+        try {
+            Thread.sleep(Math.min(backoffMillis << attempt, MAX_BACKOFF_MILLIS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrying a failed insert", e);
+        }
+
+        // smaller batches isolate the bad documents and put less load on a struggling server
+        int half = (documents.size() + 1) / 2;
+        insert(documents.subList(0, half), sources.subList(0, half), attempt + 1);
+        if (half < documents.size()) {
+            insert(documents.subList(half, documents.size()), sources.subList(half, sources.size()), attempt + 1);
+        }
+    }
+
+    /**
+     * Writes statements that never got as far as an insert, e.g. because
+     * they could not be serialized, to the dead letter file.
+     */
+    public void deadLetter(List<Statement> sources, String reason) {
+        for (Statement st : sources) {
+            deadLetters.write(st, reason);
+        }
+        IngestMetrics.ERRORS.inc(sources.size());
+    }
+
+    /**
+     * @return documents that were already stored.
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return documents sent again after a failure, counted once per retry.
+     */
+    public long getRetried() {
+        return retried.get();
+    }
+
+    /**
+     * @return documents stored by a retry.
+     */
+    public long getRecovered() {
+        return recovered.get();
+    }
+
+    public long getDeadLettered() {
+        return deadLetters.getCount();
+    }
+
+    public void logSummary() {
+        log.info(String.format("Duplicates :: %,d\t Retried :: %,d\t Recovered :: %,d\t Dead Lettered :: %,d", getDuplicates(), getRetried(),
+                getRecovered(), getDeadLettered()));
+    }
+
+    /**
+     * Logs the summary and closes the dead letter file.
+     */
+    public void close() {
+        logSummary();
+        deadLetters.close();
+    }
+}
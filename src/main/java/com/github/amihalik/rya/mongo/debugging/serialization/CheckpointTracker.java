@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Turns batch acknowledgements into {@link LoadCheckpoint}s. Batches are
+ * numbered in the order they are cut from the statement stream but may be
+ * acknowledged out of order by concurrent writers, so the checkpoint only
+ * advances over a contiguous run of acknowledged batches. A batch that fails
+ * holds the checkpoint back and is loaded again on resume.
+ */
+public class CheckpointTracker {
+    private static final Logger log = Logger.getLogger(CheckpointTracker.class);
+
+    private final File checkpointFile;
+    private final String inputFile;
+    private final int multiplier;
+
+    // batches cut but not yet covered by a checkpoint -> statements loaded once that batch is in
+    private final TreeMap<Long, Long> batchEnds = new TreeMap<>();
+    private final Set<Long> acknowledged = new HashSet<>();
+    private long nextBatch;
+    private long statementsCut;
+
+    /**
+     * @param resumeFrom
+     *            the checkpoint this load resumes from, or {@code null} for a
+     *            fresh load.
+     */
+    public CheckpointTracker(File checkpointFile, String inputFile, int multiplier, LoadCheckpoint resumeFrom) {
+        this.checkpointFile = checkpointFile;
+        this.inputFile = inputFile;
+        this.multiplier = multiplier;
+        if (resumeFrom != null) {
+            this.nextBatch = resumeFrom.getBatchCounter();
+            this.statementsCut = resumeFrom.getLoadedStatements();
+        }
+    }
+
+    /**
+     * Registers the next batch cut from the statement stream.
+     *
+     * @return the batch number to pass to {@link #acknowledge(long)}.
+     */
+    public synchronized long nextBatch(int statements) {
+        statementsCut += statements;
+        batchEnds.put(nextBatch, statementsCut);
+        return nextBatch++;
+    }
+
+    /**
+     * Marks a batch as durably written and saves a checkpoint if that extends
+     * the contiguous run of written batches.
+     */
+    public synchronized void acknowledge(long batch) {
+        acknowledged.add(batch);
+
+        long loaded = -1;
+        long batches = 0;
+        while (!batchEnds.isEmpty() && acknowledged.remove(batchEnds.firstKey())) {
+            batches = batchEnds.firstKey() + 1;
+            loaded = batchEnds.pollFirstEntry().getValue();
+        }
+        if (loaded < 0) {
+            return;
+        }
+
+        LoadCheckpoint checkpoint = new LoadCheckpoint(inputFile, loaded / multiplier, (int) (loaded % multiplier), multiplier, batches);
+        try {
+            checkpoint.save(checkpointFile);
+            log.debug("Checkpoint :: " + checkpoint);
+        } catch (IOException e) {
+            log.error("Unable to write checkpoint " + checkpointFile, e);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.ntriples.NTriplesUtil;
+
+/**
+ * Statements that could not be written, one N-Quads line each, preceded by a
+ * comment with the error that rejected them. Once the cause is fixed the file
+ * can be loaded again like any other N-Quads input.
+ * <p>
+ * The file is only created when the first statement is rejected and is
+ * appended to, so a resumed load keeps the earlier rejects.
+ */
+public class DeadLetterFile {
+    private static final Logger log = Logger.getLogger(DeadLetterFile.class);
+
+    private final File file;
+    private final AtomicLong count = new AtomicLong();
+    private Writer out;
+
+    public DeadLetterFile(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of statements written by this instance.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    public synchronized void write(Statement st, String reason) {
+        try {
+            if (out == null) {
+                log.warn("Writing rejected statements to " + file);
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            }
+            out.write("# ");
+            out.write(reason.replace('\n', ' ').replace('\r', ' '));
+            out.write('\n');
+            out.write(NTriplesUtil.toNTriplesString(st.getSubject()));
+            out.write(' ');
+            out.write(NTriplesUtil.toNTriplesString(st.getPredicate()));
+            out.write(' ');
+            out.write(NTriplesUtil.toNTriplesString(st.getObject()));
+            if (st.getContext() != null) {
+                out.write(' ');
+                out.write(NTriplesUtil.toNTriplesString(st.getContext()));
+            }
+            out.write(" .\n");
+            // rejects are rare, and must survive a crash that follows them
+            out.flush();
+            count.incrementAndGet();
+        } catch (IOException e) {
+            log.error("Could not write rejected statement to " + file + " :: " + st, e);
+        }
+    }
+
+    public synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            log.error("Error closing " + file, e);
+        }
+        out = null;
+    }
+}
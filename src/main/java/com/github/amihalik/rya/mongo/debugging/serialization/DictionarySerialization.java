@@ -0,0 +1,268 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.GEO;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.ID;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.OBJECT_TYPE_VALUE;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.WKT_LITERAL;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BsonBinary;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.RawBsonDocument;
+import org.bson.io.BasicOutputBuffer;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Alternative storage layout that keeps every term once, in a
+ * {@link TermDictionary}, and stores statements as
+ * {@code {_id, s, p, o, t[, c][, location]}} where {@code s}, {@code p},
+ * {@code o}, the object type {@code t} and the context {@code c} are term ids.
+ * Terms too long for the dictionary and all WKT literals, which are rarely
+ * repeated, are stored as strings in {@code sv}, {@code pv}, {@code ov} or
+ * {@code cv} instead of their id field, and the language of a tagged literal
+ * in {@code l}. Inlined terms are not indexed. A typical statement shrinks from several hundred bytes of repeated URIs and
+ * hashes to under a hundred, and the indexes on the id fields shrink with it.
+ * <p>
+ * The {@code _id} is still the statement hash, so reloading the same data is
+ * idempotent. Documents are not readable by the standard Rya DAO; use
+ * {@link #deserialize(List)} to turn them back into statements.
+ * <p>
+ * {@link #prepare(List)} resolves the ids of a whole batch with one query, so
+ * {@link #serialize(Statement)} never goes to the server for terms of a
+ * prepared batch.
+ */
+public class DictionarySerialization implements StatementSerializer<RawBsonDocument> {
+
+    public static final String SUBJECT_ID = "s";
+    public static final String PREDICATE_ID = "p";
+    public static final String OBJECT_ID = "o";
+    public static final String OBJECT_TYPE_ID = "t";
+    public static final String CONTEXT_ID = "c";
+    public static final String SUBJECT_VALUE = "sv";
+    public static final String PREDICATE_VALUE = "pv";
+    public static final String OBJECT_VALUE = "ov";
+    public static final String CONTEXT_VALUE = "cv";
+    public static final String LANGUAGE = "l";
+
+    private static final ThreadLocal<BasicOutputBuffer> buffers = ThreadLocal.withInitial(() -> new BasicOutputBuffer(1024));
+    private static final ThreadLocal<StreamingWktReader> wktReaders = ThreadLocal.withInitial(StreamingWktReader::new);
+    // ids of the batch this thread last prepared
+    private static final ThreadLocal<Map<String, Long>> batchIds = ThreadLocal.withInitial(Collections::emptyMap);
+
+    private final TermDictionary dictionary;
+    private final boolean addGeo;
+    private final StatementHasher hasher;
+
+    public DictionarySerialization(TermDictionary dictionary, boolean addGeo, StatementHasher hasher) {
+        this.dictionary = dictionary;
+        this.addGeo = addGeo;
+        this.hasher = hasher;
+    }
+
+    public TermDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Creates the indexes this layout is queried by.
+     */
+    public static void createIndexes(MongoCollection<?> coll) {
+        coll.createIndex(Indexes.ascending(SUBJECT_ID, PREDICATE_ID));
+        coll.createIndex(Indexes.ascending(PREDICATE_ID, OBJECT_ID));
+        coll.createIndex(Indexes.ascending(OBJECT_ID, SUBJECT_ID));
+        coll.createIndex(Indexes.geo2dsphere(GEO), new IndexOptions().sparse(true));
+    }
+
+    @Override
+    public Class<RawBsonDocument> getDocumentClass() {
+        return RawBsonDocument.class;
+    }
+
+    @Override
+    public int byteSize(RawBsonDocument document) {
+        return document.getByteBuffer().remaining();
+    }
+
+    @Override
+    public void prepare(List<Statement> batch) {
+        Set<String> terms = new HashSet<>();
+        for (Statement s : batch) {
+            addTerm(terms, s.getSubject().stringValue());
+            addTerm(terms, s.getPredicate().stringValue());
+            if (s.getObject() instanceof URI) {
+                addTerm(terms, s.getObject().stringValue());
+            } else {
+                Literal lit = (Literal) s.getObject();
+                String objectType = MongoSerialization.literalType(lit);
+                if (!objectType.equals(WKT_LITERAL)) {
+                    addTerm(terms, lit.getLabel());
+                }
+                terms.add(objectType);
+            }
+            if (s.getContext() != null) {
+                addTerm(terms, s.getContext().stringValue());
+            }
+        }
+        terms.add(OBJECT_TYPE_VALUE);
+        batchIds.set(dictionary.resolve(terms));
+    }
+
+    private static void addTerm(Set<String> terms, String term) {
+        if (TermDictionary.fits(term)) {
+            terms.add(term);
+        }
+    }
+
+    private long id(String term) {
+        Long id = batchIds.get().get(term);
+        return id != null ? id : dictionary.id(term);
+    }
+
+    @Override
+    public RawBsonDocument serialize(Statement statement) {
+        String context = "";
+        if (statement.getContext() != null) {
+            context = statement.getContext().stringValue();
+        }
+        String subject = statement.getSubject().stringValue();
+        String predicate = statement.getPredicate().stringValue();
+        String object;
+        String objectType;
+        String language = null;
+        if (statement.getObject() instanceof URI) {
+            object = statement.getObject().stringValue();
+            objectType = OBJECT_TYPE_VALUE;
+        } else {
+            Literal lit = ((Literal) statement.getObject());
+            object = lit.getLabel();
+            objectType = MongoSerialization.literalType(lit);
+            language = lit.getLanguage();
+        }
+
+        StreamingWktReader wkt = null;
+        Geometry geo = null;
+        if (addGeo && objectType.equals(WKT_LITERAL)) {
+            wkt = wktReaders.get();
+            if (!wkt.read(object)) {
+                wkt = null;
+                geo = RawMongoSerialization.parseGeometry(statement, object);
+            }
+        }
+
+        BasicOutputBuffer buffer = buffers.get();
+        buffer.truncateToPosition(0);
+        try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+            writer.writeStartDocument();
+            writer.writeBinaryData(ID, new BsonBinary(hasher.statementId(subject, predicate, object, context)));
+            writeTerm(writer, SUBJECT_ID, SUBJECT_VALUE, subject, false);
+            writeTerm(writer, PREDICATE_ID, PREDICATE_VALUE, predicate, false);
+            writeTerm(writer, OBJECT_ID, OBJECT_VALUE, object, objectType.equals(WKT_LITERAL));
+            writer.writeInt64(OBJECT_TYPE_ID, id(objectType));
+            if (language != null) {
+                writer.writeString(LANGUAGE, language);
+            }
+            if (!context.isEmpty()) {
+                writeTerm(writer, CONTEXT_ID, CONTEXT_VALUE, context, false);
+            }
+            if (wkt != null) {
+                writer.writeName(GEO);
+                wkt.write(writer);
+            } else if (geo != null) {
+                writer.writeName(GEO);
+                RawMongoSerialization.writeGeometry(writer, geo);
+            }
+            writer.writeEndDocument();
+        }
+        return new RawBsonDocument(Arrays.copyOf(buffer.getInternalBuffer(), buffer.getPosition()));
+    }
+
+    private void writeTerm(BsonBinaryWriter writer, String idField, String valueField, String term, boolean inline) {
+        if (inline || !TermDictionary.fits(term)) {
+            writer.writeString(valueField, term);
+        } else {
+            writer.writeInt64(idField, id(term));
+        }
+    }
+
+    /**
+     * Decodes documents written by this layout, looking up all their term ids
+     * in one batch.
+     */
+    public List<Statement> deserialize(List<? extends BsonDocument> docs) {
+        Set<Long> ids = new HashSet<>();
+        for (BsonDocument doc : docs) {
+            for (String field : Arrays.asList(SUBJECT_ID, PREDICATE_ID, OBJECT_ID, OBJECT_TYPE_ID, CONTEXT_ID)) {
+                if (doc.containsKey(field)) {
+                    ids.add(doc.getInt64(field).getValue());
+                }
+            }
+        }
+        Map<Long, String> terms = dictionary.terms(ids);
+
+        ValueFactory vf = ValueFactoryImpl.getInstance();
+        List<Statement> statements = new ArrayList<>(docs.size());
+        for (BsonDocument doc : docs) {
+            URI subject = vf.createURI(term(doc, SUBJECT_ID, SUBJECT_VALUE, terms));
+            URI predicate = vf.createURI(term(doc, PREDICATE_ID, PREDICATE_VALUE, terms));
+            String object = term(doc, OBJECT_ID, OBJECT_VALUE, terms);
+            String objectType = terms.get(doc.getInt64(OBJECT_TYPE_ID).getValue());
+            Value value;
+            if (objectType.equals(OBJECT_TYPE_VALUE)) {
+                value = vf.createURI(object);
+            } else if (doc.containsKey(LANGUAGE)) {
+                value = vf.createLiteral(object, doc.getString(LANGUAGE).getValue());
+            } else {
+                value = vf.createLiteral(object, vf.createURI(objectType));
+            }
+            if (doc.containsKey(CONTEXT_ID) || doc.containsKey(CONTEXT_VALUE)) {
+                statements.add(vf.createStatement(subject, predicate, value, vf.createURI(term(doc, CONTEXT_ID, CONTEXT_VALUE, terms))));
+            } else {
+                statements.add(vf.createStatement(subject, predicate, value));
+            }
+        }
+        return statements;
+    }
+
+    private static String term(BsonDocument doc, String idField, String valueField, Map<Long, String> terms) {
+        if (doc.containsKey(valueField)) {
+            return doc.getString(valueField).getValue();
+        }
+        return terms.get(doc.getInt64(idField).getValue());
+    }
+
+    public Statement deserialize(BsonDocument doc) {
+        return deserialize(Collections.singletonList(doc)).get(0);
+    }
+}
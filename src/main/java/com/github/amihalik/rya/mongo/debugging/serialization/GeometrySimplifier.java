@@ -0,0 +1,206 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.GEO_SIMPLIFIED;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+
+import com.vividsolutions.jts.algorithm.distance.DiscreteHausdorffDistance;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+/**
+ * Stores coarse copies of large LineStrings and polygons next to the exact
+ * geometry, so a spatial test can usually be decided without the full
+ * vertex list.
+ * <p>
+ * Each level is the geometry simplified with {@link TopologyPreservingSimplifier}
+ * at one tolerance, written to {@code location_simplified} coarsest first as
+ * {@code {tolerance, bound, points, geometry}}. {@code bound} is a Hausdorff
+ * bound between the level and the exact geometry: the larger of the tolerance
+ * (every original vertex lies within it of the simplified shape) and the
+ * densified discrete Hausdorff distance. The simplifier only drops vertices,
+ * so every vertex of a level is a vertex of the exact geometry. Levels that do
+ * not remove points are left out, and geometries with fewer than
+ * {@code minPoints} vertices get no levels at all.
+ */
+public class GeometrySimplifier {
+
+    public static final double[] DEFAULT_TOLERANCES = { 0.1, 0.01, 0.001 };
+    public static final int DEFAULT_MIN_POINTS = 64;
+
+    public static final String TOLERANCE = "tolerance";
+    public static final String BOUND = "bound";
+    public static final String POINTS = "points";
+    public static final String GEOMETRY = "geometry";
+
+    private static final double DENSIFY_FRACTION = 0.25;
+
+    /**
+     * One simplified copy.
+     */
+    public static class Level {
+        public final double tolerance;
+        public final double bound;
+        public final Geometry geometry;
+
+        public Level(double tolerance, double bound, Geometry geometry) {
+            this.tolerance = tolerance;
+            this.bound = bound;
+            this.geometry = geometry;
+        }
+    }
+
+    private final double[] tolerances;
+    private final int minPoints;
+
+    public GeometrySimplifier() {
+        this(DEFAULT_TOLERANCES, DEFAULT_MIN_POINTS);
+    }
+
+    /**
+     * @param tolerances
+     *            in degrees, any order.
+     */
+    public GeometrySimplifier(double[] tolerances, int minPoints) {
+        this.tolerances = tolerances.clone();
+        Arrays.sort(this.tolerances);
+        this.minPoints = minPoints;
+    }
+
+    public int getMinPoints() {
+        return minPoints;
+    }
+
+    /**
+     * @return the levels worth storing for {@code geo}, coarsest first.
+     */
+    public List<Level> simplify(Geometry geo) {
+        List<Level> levels = new ArrayList<>();
+        if (geo.getNumPoints() < minPoints || !(geo instanceof LineString || geo instanceof Polygon)) {
+            return levels;
+        }
+        // finest first, so each level must beat the one below it
+        int finerPoints = geo.getNumPoints();
+        for (double tolerance : tolerances) {
+            Geometry simple = TopologyPreservingSimplifier.simplify(geo, tolerance);
+            if (simple.isEmpty() || simple.getNumPoints() >= finerPoints || simple.getClass() != geo.getClass()) {
+                continue;
+            }
+            double hausdorff = DiscreteHausdorffDistance.distance(geo, simple, DENSIFY_FRACTION);
+            levels.add(0, new Level(tolerance, Math.max(tolerance, hausdorff), simple));
+            finerPoints = simple.getNumPoints();
+        }
+        return levels;
+    }
+
+    /**
+     * Writes {@code location_simplified} if there are any levels.
+     */
+    public static void write(BsonBinaryWriter writer, List<Level> levels) {
+        if (levels.isEmpty()) {
+            return;
+        }
+        writer.writeStartArray(GEO_SIMPLIFIED);
+        for (Level level : levels) {
+            writer.writeStartDocument();
+            writer.writeDouble(TOLERANCE, level.tolerance);
+            writer.writeDouble(BOUND, level.bound);
+            writer.writeInt32(POINTS, level.geometry.getNumPoints());
+            writer.writeName(GEOMETRY);
+            RawMongoSerialization.writeGeometry(writer, level.geometry);
+            writer.writeEndDocument();
+        }
+        writer.writeEndArray();
+    }
+
+    /**
+     * Appends {@code location_simplified} if there are any levels.
+     */
+    public static void append(Document doc, List<Level> levels) {
+        if (levels.isEmpty()) {
+            return;
+        }
+        List<Document> docs = new ArrayList<>(levels.size());
+        for (Level level : levels) {
+            docs.add(new Document(TOLERANCE, level.tolerance).append(BOUND, level.bound).append(POINTS, level.geometry.getNumPoints())
+                    .append(GEOMETRY, MongoSerialization.getCorrespondingPoints(level.geometry)));
+        }
+        doc.append(GEO_SIMPLIFIED, docs);
+    }
+
+    /**
+     * Reads the levels back from a fetched document, coarsest first.
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Level> read(Document doc) {
+        List<Level> levels = new ArrayList<>();
+        List<Document> docs = (List<Document>) doc.get(GEO_SIMPLIFIED);
+        if (docs != null) {
+            for (Document level : docs) {
+                levels.add(new Level(level.getDouble(TOLERANCE), level.getDouble(BOUND), fromGeoJson((Document) level.get(GEOMETRY))));
+            }
+        }
+        return levels;
+    }
+
+    /**
+     * Parses the GeoJSON Point, LineString and Polygon documents the
+     * serializers write.
+     */
+    @SuppressWarnings("unchecked")
+    public static Geometry fromGeoJson(Document geoJson) {
+        String type = geoJson.getString("type");
+        List<?> coordinates = (List<?>) geoJson.get("coordinates");
+        switch (type) {
+        case "Point":
+            return MongoSerialization.GEOMETRY_FACTORY.createPoint(toCoordinate((List<Number>) coordinates));
+        case "LineString":
+            return MongoSerialization.GEOMETRY_FACTORY.createLineString(toCoordinates((List<List<Number>>) coordinates));
+        case "Polygon":
+            List<List<List<Number>>> rings = (List<List<List<Number>>>) coordinates;
+            LinearRing shell = MongoSerialization.GEOMETRY_FACTORY.createLinearRing(toCoordinates(rings.get(0)));
+            LinearRing[] holes = new LinearRing[rings.size() - 1];
+            for (int i = 1; i < rings.size(); i++) {
+                holes[i - 1] = MongoSerialization.GEOMETRY_FACTORY.createLinearRing(toCoordinates(rings.get(i)));
+            }
+            return MongoSerialization.GEOMETRY_FACTORY.createPolygon(shell, holes);
+        default:
+            throw new IllegalArgumentException("Unsupported GeoJSON type :: " + type);
+        }
+    }
+
+    private static Coordinate[] toCoordinates(List<List<Number>> points) {
+        Coordinate[] coords = new Coordinate[points.size()];
+        for (int i = 0; i < coords.length; i++) {
+            coords[i] = toCoordinate(points.get(i));
+        }
+        return coords;
+    }
+
+    private static Coordinate toCoordinate(List<Number> point) {
+        return new Coordinate(point.get(0).doubleValue(), point.get(1).doubleValue());
+    }
+}
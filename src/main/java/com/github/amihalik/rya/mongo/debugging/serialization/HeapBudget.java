@@ -0,0 +1,211 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Bounds the estimated heap held by a loader's batches, instead of counting
+ * statements.
+ * <p>
+ * A batch reserves its estimate before it is handed off and gives it back once
+ * inserted. {@link #acquire} blocks while the reservations would go over the
+ * limit, except that a batch is always let through when nothing else is
+ * reserved, so one oversized batch can not stall the load. Estimates are
+ * deliberately rough: a statement is charged for its objects plus two bytes
+ * per character of its terms, and a document for its encoded size or, when
+ * that is unknown, {@link #DOCUMENT_FACTOR} times its statement.
+ */
+public class HeapBudget {
+
+    /** Heap of an {@code org.bson.Document} relative to its statement. */
+    public static final int DOCUMENT_FACTOR = 3;
+
+    private static final int STATEMENT_OVERHEAD = 32;
+    private static final int VALUE_OVERHEAD = 64;
+    private static final int RAW_DOCUMENT_OVERHEAD = 48;
+
+    private final long limit;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private long used;
+    private long peak;
+
+    public HeapBudget(long limitBytes) {
+        this.limit = limitBytes;
+    }
+
+    /**
+     * @return a budget of {@code fraction} of the maximum heap.
+     */
+    public static HeapBudget ofMaxHeap(double fraction) {
+        return new HeapBudget((long) (Runtime.getRuntime().maxMemory() * fraction));
+    }
+
+    /**
+     * @return the estimated heap of a parsed statement.
+     */
+    public static long estimate(Statement st) {
+        long size = STATEMENT_OVERHEAD + estimate(st.getSubject()) + estimate(st.getPredicate()) + estimate(st.getObject());
+        Resource context = st.getContext();
+        return context == null ? size : size + estimate(context);
+    }
+
+    private static long estimate(Value value) {
+        long size = VALUE_OVERHEAD + 2L * value.stringValue().length();
+        if (value instanceof Literal) {
+            Literal literal = (Literal) value;
+            if (literal.getDatatype() != null) {
+                size += VALUE_OVERHEAD + 2L * literal.getDatatype().stringValue().length();
+            }
+            if (literal.getLanguage() != null) {
+                size += 2L * literal.getLanguage().length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return what to reserve for a batch of statements before they are
+     *         serialized.
+     */
+    public static long reservation(long statementBytes) {
+        return statementBytes * (1 + DOCUMENT_FACTOR);
+    }
+
+    /**
+     * @return the estimated heap of a document encoded to
+     *         {@code byteSize} bytes.
+     */
+    public static long documentBytes(int byteSize) {
+        return byteSize + RAW_DOCUMENT_OVERHEAD;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getUsed() {
+        lock.lock();
+        try {
+            return used;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the most that was reserved at once.
+     */
+    public long getPeak() {
+        lock.lock();
+        try {
+            return peak;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until {@code bytes} fit in the budget, then reserves them.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        lock.lock();
+        try {
+            while (used > 0 && used + bytes > limit) {
+                released.await();
+            }
+            add(bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #acquire} but gives up after {@code timeout}, so the caller
+     * can check that whoever releases the budget is still running.
+     *
+     * @return false if nothing was reserved.
+     */
+    public boolean tryAcquire(long bytes, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (used > 0 && used + bytes > limit) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = released.awaitNanos(nanos);
+            }
+            add(bytes);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Corrects a reservation once the real size is known, without waiting;
+     * the budget may be overshot until the batch is released.
+     */
+    public void adjust(long delta) {
+        lock.lock();
+        try {
+            add(delta);
+            if (delta < 0) {
+                released.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(long bytes) {
+        adjust(-bytes);
+    }
+
+    private void add(long bytes) {
+        used += bytes;
+        peak = Math.max(peak, used);
+    }
+
+    /**
+     * Exposes {@code <prefix>.used}, {@code <prefix>.peak} and
+     * {@code <prefix>.limit} in bytes, e.g. in
+     * {@link com.github.amihalik.rya.mongo.debugging.metrics.IngestMetrics#REGISTRY}.
+     */
+    public void registerMetrics(MetricRegistry registry, String prefix) {
+        registry.register(prefix + ".used", (Gauge<Long>) this::getUsed);
+        registry.register(prefix + ".peak", (Gauge<Long>) this::getPeak);
+        registry.register(prefix + ".limit", (Gauge<Long>) this::getLimit);
+    }
+
+    @Override
+    public String toString() {
+        long used = getUsed();
+        return String.format("Heap Budget :: %,d/%,d MB (%d%%)", used >> 20, limit >> 20, limit > 0 ? used * 100 / limit : 0);
+    }
+}
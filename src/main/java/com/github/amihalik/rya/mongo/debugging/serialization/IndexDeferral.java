@@ -0,0 +1,286 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.GEO;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.GEO_CELLS;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.OBJECT_HASH;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.OBJECT_TYPE;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.PREDICATE_HASH;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.SUBJECT_HASH;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.bson.Document;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Bulk-load mode that takes the secondary indexes off a collection while it
+ * is loaded and builds them once at the end, instead of updating every index
+ * on every insert.
+ * <p>
+ * {@link #suspend()} records the collection's index definitions in a state
+ * file and drops everything but {@code _id}. {@link #restore(List)} builds the
+ * recorded indexes, plus any of the indexes Rya expects that are missing, in
+ * one {@code createIndexes} command (one collection scan), logs the server's
+ * build progress, then checks the final index set. The state file is only
+ * deleted once the build succeeded and every expected index is there, so
+ * after a crash, a failed build or a missing index {@code restore} can
+ * simply be run again.
+ * <p>
+ * A deferred {@code 2dsphere} build fails as a whole on a single invalid
+ * geometry, where a live index would only have rejected that one insert; the
+ * server error names the offending document.
+ */
+public class IndexDeferral {
+    private static final Logger log = Logger.getLogger(IndexDeferral.class);
+
+    private static final String ID_INDEX = "_id_";
+    private static final long PROGRESS_SECONDS = 10;
+
+    /**
+     * The indexes {@code MongoDBRyaDAO} creates on the triples collection.
+     */
+    public static final List<Document> RYA_INDEXES = Collections.unmodifiableList(Arrays.asList(
+            new Document(SUBJECT_HASH, 1).append(PREDICATE_HASH, 1).append(OBJECT_HASH, 1).append(OBJECT_TYPE, 1),
+            new Document(PREDICATE_HASH, 1).append(OBJECT_HASH, 1).append(OBJECT_TYPE, 1),
+            new Document(OBJECT_HASH, 1).append(OBJECT_TYPE, 1).append(SUBJECT_HASH, 1)));
+
+    /**
+     * The index the geo indexer queries {@code location} with.
+     */
+    public static final Document GEO_INDEX = new Document(GEO, "2dsphere");
+
+    /**
+     * The index the {@link SpatialCells} prefilter scans.
+     */
+    public static final Document CELLS_INDEX = new Document(GEO_CELLS, 1);
+
+    private final MongoClient client;
+    private final MongoDatabase db;
+    private final String colName;
+    private final File stateFile;
+
+    public IndexDeferral(MongoClient client, String dbName, String colName, File stateFile) {
+        this.client = client;
+        this.db = client.getDatabase(dbName);
+        this.colName = colName;
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * @return the keys Rya expects on a triples collection, with or without
+     *         the geo index.
+     */
+    public static List<Document> expectedIndexes(boolean geo) {
+        List<Document> keys = new ArrayList<>(RYA_INDEXES);
+        if (geo) {
+            keys.add(GEO_INDEX);
+        }
+        return keys;
+    }
+
+    /**
+     * Records and drops every index except {@code _id}. Definitions left in
+     * the state file by an unfinished earlier load are kept.
+     */
+    public void suspend() throws IOException {
+        Map<String, Document> specs = readState();
+        for (Document spec : db.getCollection(colName).listIndexes()) {
+            String name = spec.getString("name");
+            if (!ID_INDEX.equals(name)) {
+                spec.remove("ns");
+                specs.put(name, spec);
+            }
+        }
+        writeState(specs);
+        for (String name : specs.keySet()) {
+            try {
+                db.getCollection(colName).dropIndex(name);
+                log.info("Dropped index " + name + " on " + colName);
+            } catch (MongoException e) {
+                // already dropped by the earlier load
+                log.debug("Index " + name + " not present :: " + e.getMessage());
+            }
+        }
+        log.info(String.format("Suspended %d indexes on %s, definitions in %s", specs.size(), colName, stateFile));
+    }
+
+    /**
+     * Builds the suspended indexes and any of {@code expected} that are
+     * missing, then checks that all of {@code expected} exist.
+     *
+     * @return false if an expected index is still missing.
+     */
+    public boolean restore(List<Document> expected) throws IOException {
+        Map<String, Document> specs = readState();
+        List<Document> existing = currentKeys();
+        for (Document key : expected) {
+            if (!containsKey(specs.values(), key) && !existing.contains(key)) {
+                String name = defaultName(key);
+                log.info("Adding expected index " + name + " that was not on " + colName);
+                specs.put(name, new Document("key", key).append("name", name));
+            }
+        }
+        List<Document> toBuild = new ArrayList<>();
+        for (Document spec : specs.values()) {
+            if (!existing.contains(normalize((Document) spec.get("key")))) {
+                toBuild.add(spec);
+            }
+        }
+
+        if (!toBuild.isEmpty()) {
+            log.info(String.format("Building %d indexes on %s :: %s", toBuild.size(), colName, specs.keySet()));
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+            reporter.scheduleAtFixedRate(this::reportProgress, PROGRESS_SECONDS, PROGRESS_SECONDS, TimeUnit.SECONDS);
+            long start = System.nanoTime();
+            try {
+                db.runCommand(new Document("createIndexes", colName).append("indexes", toBuild));
+            } finally {
+                reporter.shutdownNow();
+            }
+            log.info(String.format("Built %d indexes on %s in %,d ms", toBuild.size(), colName,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        }
+
+        boolean ok = verify(expected);
+        if (ok) {
+            FileUtils.deleteQuietly(stateFile);
+        } else {
+            log.warn("Keeping " + stateFile + " so restore can be run again");
+        }
+        return ok;
+    }
+
+    /**
+     * Logs every expected index that is missing and every index that Rya
+     * does not expect.
+     *
+     * @return true if all of {@code expected} exist.
+     */
+    public boolean verify(List<Document> expected) {
+        List<Document> existing = currentKeys();
+        boolean ok = true;
+        for (Document key : expected) {
+            if (!existing.contains(key)) {
+                log.error("Missing index on " + colName + " :: " + key.toJson());
+                ok = false;
+            }
+        }
+        for (Document key : existing) {
+            if (!expected.contains(key) && !key.equals(new Document("_id", 1))) {
+                log.info("Extra index on " + colName + " :: " + key.toJson());
+            }
+        }
+        if (ok) {
+            log.info("Index set on " + colName + " matches what Rya expects");
+        }
+        return ok;
+    }
+
+    private List<Document> currentKeys() {
+        List<Document> keys = new ArrayList<>();
+        for (Document spec : db.getCollection(colName).listIndexes()) {
+            keys.add(normalize((Document) spec.get("key")));
+        }
+        return keys;
+    }
+
+    /**
+     * Index keys come back as 1, 1L or 1.0 depending on who created them.
+     */
+    private static Document normalize(Document key) {
+        Document normalized = new Document();
+        for (Map.Entry<String, Object> e : key.entrySet()) {
+            Object v = e.getValue();
+            normalized.append(e.getKey(), v instanceof Number ? (Object) ((Number) v).intValue() : v);
+        }
+        return normalized;
+    }
+
+    private static boolean containsKey(Iterable<Document> specs, Document key) {
+        for (Document spec : specs) {
+            if (key.equals(normalize((Document) spec.get("key")))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The name the server would give {@code key}, e.g. {@code a_1_b_1}.
+     */
+    private static String defaultName(Document key) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Object> e : key.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append('_');
+            }
+            sb.append(e.getKey()).append('_').append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void reportProgress() {
+        try {
+            Document ops = client.getDatabase("admin").runCommand(new Document("currentOp", 1).append("command.createIndexes", colName));
+            for (Document op : (List<Document>) ops.get("inprog", List.class)) {
+                if (op.containsKey("msg")) {
+                    log.info("Index build on " + colName + " :: " + op.getString("msg"));
+                }
+            }
+        } catch (RuntimeException e) {
+            log.debug("Could not read index build progress", e);
+        }
+    }
+
+    private Map<String, Document> readState() throws IOException {
+        Map<String, Document> specs = new LinkedHashMap<>();
+        if (stateFile.exists()) {
+            for (String line : FileUtils.readLines(stateFile, StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    Document spec = Document.parse(line);
+                    specs.put(spec.getString("name"), spec);
+                }
+            }
+        }
+        return specs;
+    }
+
+    private void writeState(Map<String, Document> specs) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (Document spec : specs.values()) {
+            lines.add(spec.toJson());
+        }
+        FileUtils.writeLines(stateFile, StandardCharsets.UTF_8.name(), lines);
+    }
+}
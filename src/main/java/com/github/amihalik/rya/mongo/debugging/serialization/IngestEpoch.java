@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+
+/**
+ * Counter of writes to the triples collections. Every loader advances it
+ * after each batch it hands to Mongo, whether or not all of the batch was
+ * stored, so anything computed from the data at an older epoch may be stale.
+ * <p>
+ * Loaders that pass their database also {@code $inc} a counter document in
+ * its {@code ingest_epoch} collection, so other processes see the write. A
+ * process that reads the data calls {@link #watch(MongoDatabase, long)} once;
+ * {@link #current()} then re-reads that document at most once per poll
+ * interval, and changes when either this process or any other loader wrote.
+ */
+public final class IngestEpoch {
+    private static final Logger log = Logger.getLogger(IngestEpoch.class);
+
+    public static final String COLLECTION = "ingest_epoch";
+    public static final long DEFAULT_POLL_MILLIS = 1000;
+
+    private static final String COUNTER_ID = "epoch";
+    private static final String VALUE = "value";
+    private static final Bson COUNTER = Filters.eq("_id", COUNTER_ID);
+    private static final Bson INCREMENT = Updates.inc(VALUE, 1L);
+    private static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
+
+    private static final AtomicLong EPOCH = new AtomicLong();
+
+    private static volatile MongoCollection<Document> watched;
+    private static volatile long pollNanos;
+    private static volatile long nextPoll;
+    private static volatile long shared;
+
+    private IngestEpoch() {
+    }
+
+    /**
+     * @return the local epoch, plus the shared counter as of the last poll
+     *         if {@link #watch(MongoDatabase, long)} was called.
+     */
+    public static long current() {
+        MongoCollection<Document> counters = watched;
+        if (counters != null && System.nanoTime() - nextPoll >= 0) {
+            poll(counters);
+        }
+        return EPOCH.get() + shared;
+    }
+
+    /**
+     * Advances the epoch of this process only.
+     */
+    public static void advance() {
+        EPOCH.incrementAndGet();
+    }
+
+    /**
+     * Advances the epoch of this process and the shared counter in
+     * {@code db}. A failed {@code $inc} is logged, not thrown; the data is
+     * already written.
+     */
+    public static void advance(MongoDatabase db) {
+        advance();
+        try {
+            db.getCollection(COLLECTION).updateOne(COUNTER, INCREMENT, UPSERT);
+        } catch (MongoException e) {
+            log.warn("Could not advance the shared ingest epoch :: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Like {@link #advance(MongoDatabase)}, without waiting for the
+     * {@code $inc}.
+     */
+    public static void advance(com.mongodb.async.client.MongoDatabase db) {
+        advance();
+        db.getCollection(COLLECTION).updateOne(COUNTER, INCREMENT, UPSERT, (result, t) -> {
+            if (t != null) {
+                log.warn("Could not advance the shared ingest epoch :: " + t.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Follows the shared counter in {@code db} from now on, re-reading it at
+     * most every {@code pollMillis}.
+     */
+    public static synchronized void watch(MongoDatabase db, long pollMillis) {
+        pollNanos = TimeUnit.MILLISECONDS.toNanos(pollMillis);
+        nextPoll = System.nanoTime();
+        watched = db.getCollection(COLLECTION);
+    }
+
+    private static synchronized void poll(MongoCollection<Document> counters) {
+        if (System.nanoTime() - nextPoll < 0) {
+            // another thread just polled
+            return;
+        }
+        nextPoll = System.nanoTime() + pollNanos;
+        try {
+            Document counter = counters.find(COUNTER).first();
+            shared = counter == null ? 0 : ((Number) counter.get(VALUE)).longValue();
+        } catch (MongoException e) {
+            log.warn("Could not read the shared ingest epoch :: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.openrdf.rio.RDFFormat;
+
+/**
+ * Durable record of how far a bulk load got. Written after every acknowledged
+ * batch by {@link CheckpointTracker} and read back by the loaders'
+ * {@code --resume} mode.
+ * <p>
+ * Positions are counted in source statements, i.e. statements produced by
+ * the parser before {@link RdfHandlerFuzzer} multiplies them. A fuzzed load
+ * can stop in the middle of a source statement's copies, so
+ * {@link #getFuzzIndex()} records how many copies of the next source statement
+ * are already in the database.
+ */
+public class LoadCheckpoint {
+    private static final Logger log = Logger.getLogger(LoadCheckpoint.class);
+
+    private static final String INPUT_FILE = "inputFile";
+    private static final String STATEMENT_OFFSET = "statementOffset";
+    private static final String FUZZ_INDEX = "fuzzIndex";
+    private static final String MULTIPLIER = "multiplier";
+    private static final String BATCH_COUNTER = "batchCounter";
+
+    private final String inputFile;
+    private final long statementOffset;
+    private final int fuzzIndex;
+    private final int multiplier;
+    private final long batchCounter;
+
+    public LoadCheckpoint(String inputFile, long statementOffset, int fuzzIndex, int multiplier, long batchCounter) {
+        this.inputFile = inputFile;
+        this.statementOffset = statementOffset;
+        this.fuzzIndex = fuzzIndex;
+        this.multiplier = multiplier;
+        this.batchCounter = batchCounter;
+    }
+
+    public String getInputFile() {
+        return inputFile;
+    }
+
+    /**
+     * @return the number of source statements completely loaded.
+     */
+    public long getStatementOffset() {
+        return statementOffset;
+    }
+
+    /**
+     * @return the number of fuzzed copies of source statement
+     *         {@link #getStatementOffset()} already loaded.
+     */
+    public int getFuzzIndex() {
+        return fuzzIndex;
+    }
+
+    public int getMultiplier() {
+        return multiplier;
+    }
+
+    public long getBatchCounter() {
+        return batchCounter;
+    }
+
+    /**
+     * @return the number of statements (after fuzzing) already loaded.
+     */
+    public long getLoadedStatements() {
+        return statementOffset * multiplier + fuzzIndex;
+    }
+
+    /**
+     * Writes the checkpoint to a temp file and renames it over the old one, so
+     * a crash never leaves a torn checkpoint behind.
+     */
+    public void save(File file) throws IOException {
+        Properties props = new Properties();
+        props.setProperty(INPUT_FILE, inputFile);
+        props.setProperty(STATEMENT_OFFSET, Long.toString(statementOffset));
+        props.setProperty(FUZZ_INDEX, Integer.toString(fuzzIndex));
+        props.setProperty(MULTIPLIER, Integer.toString(multiplier));
+        props.setProperty(BATCH_COUNTER, Long.toString(batchCounter));
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, "Bulk load checkpoint");
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the saved checkpoint, or {@code null} if there is none.
+     */
+    public static LoadCheckpoint load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        }
+        return new LoadCheckpoint(props.getProperty(INPUT_FILE), Long.parseLong(props.getProperty(STATEMENT_OFFSET)),
+                Integer.parseInt(props.getProperty(FUZZ_INDEX)), Integer.parseInt(props.getProperty(MULTIPLIER)),
+                Long.parseLong(props.getProperty(BATCH_COUNTER)));
+    }
+
+    /**
+     * Opens the input positioned just after the first {@code statements}
+     * statements. N-Triples and N-Quads hold exactly one statement per line,
+     * so the byte position is found by scanning for line ends without
+     * parsing. {@code null} is returned for every other format, which must be
+     * parsed to be skipped (see {@link RdfHandlerSkipper}): a line of N3 or
+     * Turtle can hold several statements, even in files
+     * {@link ParallelRdfFileParser} can split at line ends.
+     */
+    public static InputStream openAfter(File file, RDFFormat format, long statements) throws IOException {
+        if (!RDFFormat.NTRIPLES.equals(format) && !RDFFormat.NQUADS.equals(format)) {
+            return null;
+        }
+
+        long position = 0;
+        long skipped = 0;
+        boolean blank = true;
+        boolean comment = false;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 20)) {
+            int b;
+            while (skipped < statements && (b = in.read()) != -1) {
+                position++;
+                if (b == '\n') {
+                    if (!blank && !comment) {
+                        skipped++;
+                    }
+                    blank = true;
+                    comment = false;
+                } else if (blank && b > ' ') {
+                    blank = false;
+                    comment = b == '#';
+                }
+            }
+        }
+        log.info(String.format("Skipped %,d statements, resuming at byte %,d of %s", skipped, position, file));
+
+        FileInputStream in = new FileInputStream(file);
+        in.getChannel().position(position);
+        return new BufferedInputStream(in);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s :: statement %,d, copy %d of %d, batch %,d", inputFile, statementOffset, fuzzIndex, multiplier, batchCounter);
+    }
+}
@@ -18,14 +18,18 @@ import org.openrdf.model.vocabulary.XMLSchema;
 import com.mongodb.BasicDBObject;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.io.WKTReader;
 
-public class MongoSerialization {
+public class MongoSerialization implements StatementSerializer<Document> {
     private static final Logger LOG = Logger.getLogger(MongoSerialization.class);
 
     public static final String ID = "_id";
     public static final String OBJECT_TYPE = "objectType";
+    /** Only present on language-tagged literals. */
+    public static final String OBJECT_LANGUAGE = "objectLanguage";
+    public static final String LANG_STRING = "http://www.w3.org/1999/02/22-rdf-syntax-ns#langString";
 
     public static final String OBJECT_TYPE_VALUE = XMLSchema.ANYURI.stringValue();
     public static final String CONTEXT = "context";
@@ -41,20 +45,62 @@ public class MongoSerialization {
     public static final String STATEMENT_METADATA = "statementMetadata";
     public static final String DOCUMENT_VISIBILITY = "documentVisibility";
 
-    private static final String GEO = "location";
+    public static final String GEO = "location";
+    public static final String GEO_BBOX = "location_bbox";
+    public static final String GEO_CELLS = "location_cells";
+    public static final String GEO_SIMPLIFIED = "location_simplified";
+    public static final String WKT_LITERAL = "http://www.opengis.net/ont/geosparql#wktLiteral";
     
-    private static final String EMPTY_METADATA = StatementMetadata.EMPTY_METADATA.toString();
+    static final String EMPTY_METADATA = StatementMetadata.EMPTY_METADATA.toString();
     private static final List<?> EMPTY_VISIBILITY = new ArrayList<>();
 
+    private static final ThreadLocal<StreamingWktReader> wktReaders = ThreadLocal.withInitial(StreamingWktReader::new);
+    static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
     
     private final boolean addHash;
     private final boolean addGeo;
+    private final boolean addCells;
+    private final StatementHasher hasher;
+    private GeometrySimplifier simplifier;
     
     public MongoSerialization(boolean addHash, boolean addGeo) {
+        this(addHash, addGeo, new StatementHasher());
+    }
+
+    public MongoSerialization(boolean addHash, boolean addGeo, StatementHasher hasher) {
+        this(addHash, addGeo, false, hasher);
+    }
+
+    /**
+     * @param addCells
+     *            also store the bounding box and {@link SpatialCells} terms of
+     *            every geometry, for the prefilter.
+     */
+    public MongoSerialization(boolean addHash, boolean addGeo, boolean addCells, StatementHasher hasher) {
         this.addHash = addHash;
         this.addGeo = addGeo;
+        this.addCells = addCells;
+        this.hasher = hasher;
+    }
+
+    public StatementHasher getHasher() {
+        return hasher;
+    }
+
+    /**
+     * Also store simplified copies of large geometries. Off when null.
+     */
+    public void setSimplifier(GeometrySimplifier simplifier) {
+        this.simplifier = simplifier;
     }
     
+    @Override
+    public Class<Document> getDocumentClass() {
+        return Document.class;
+    }
+
+    @Override
     public Document serialize(final Statement statement){
         String context = "";
         if (statement.getContext() != null){
@@ -64,6 +110,7 @@ public class MongoSerialization {
         String predicate = statement.getPredicate().stringValue();
         String object ;
         String objectType;
+        String language = null;
 
         if (statement.getObject() instanceof URI) {
             object = statement.getObject().stringValue();
@@ -72,11 +119,11 @@ public class MongoSerialization {
         } else {
             Literal lit = ((Literal)statement.getObject());
             object = lit.getLabel();
-            objectType = lit.getDatatype().stringValue();
-
+            objectType = literalType(lit);
+            language = lit.getLanguage();
         }
         
-        byte[] id_bytes = hash256(subject  + " " + predicate  + " " + object  + " " + context);
+        byte[] id_bytes = hasher.statementId(subject, predicate, object, context);
 
         
         final Document doc = new Document(ID, id_bytes)
@@ -88,15 +135,31 @@ public class MongoSerialization {
             .append(STATEMENT_METADATA, EMPTY_METADATA)
             .append(DOCUMENT_VISIBILITY, EMPTY_VISIBILITY)
             .append(TIMESTAMP, System.currentTimeMillis());
+        if (language != null) {
+            doc.append(OBJECT_LANGUAGE, language);
+        }
 
         if (addHash) {
-            doc.append(SUBJECT_HASH, hash32(subject));
-            doc.append(PREDICATE_HASH, hash32(predicate));
-            doc.append(OBJECT_HASH, hash32(object));
+            doc.append(SUBJECT_HASH, hasher.termHash32(subject));
+            doc.append(PREDICATE_HASH, hasher.termHash32(predicate));
+            doc.append(OBJECT_HASH, hasher.objectHash32(object));
         }
         
         //append geo
-        if (addGeo && objectType.equals("http://www.opengis.net/ont/geosparql#wktLiteral")) {
+        if (addGeo && objectType.equals(WKT_LITERAL)) {
+            StreamingWktReader wkt = wktReaders.get();
+            if (wkt.read(object)) {
+                doc.append(GEO, wkt.toDocument());
+                if (addCells) {
+                    SpatialCells.append(doc, wkt.getGeodesicEnvelope(), SpatialCells.DEFAULT_MAX_CELLS);
+                }
+                if (simplifier != null && wkt.getNumPoints() >= simplifier.getMinPoints()) {
+                    GeometrySimplifier.append(doc, simplifier.simplify(wkt.toGeometry(GEOMETRY_FACTORY)));
+                }
+                return doc;
+            }
+
+            // exotic or invalid geometry, let JTS handle it
             try {
                 Geometry geo = (new WKTReader()).read(object);
                 if(geo == null) {
@@ -109,6 +172,12 @@ public class MongoSerialization {
                 } else {
                     doc.append(GEO, getDBPoint(geo));
                 }
+                if (addCells) {
+                    SpatialCells.append(doc, SpatialCells.geodesicEnvelope(geo), SpatialCells.DEFAULT_MAX_CELLS);
+                }
+                if (simplifier != null) {
+                    GeometrySimplifier.append(doc, simplifier.simplify(geo));
+                }
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -116,6 +185,18 @@ public class MongoSerialization {
         return doc;
     }
 
+    /**
+     * @return the datatype of {@code lit}; Sesame leaves language-tagged and
+     *         plain literals without one, so those get rdf:langString and
+     *         xsd:string.
+     */
+    public static String literalType(Literal lit) {
+        if (lit.getDatatype() != null) {
+            return lit.getDatatype().stringValue();
+        }
+        return lit.getLanguage() != null ? LANG_STRING : XMLSchema.STRING.stringValue();
+    }
+
     public static byte[] hash256(String str) {
         return DigestUtils.sha256(str);
     }
@@ -0,0 +1,318 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.helpers.BasicParserSettings;
+import org.openrdf.rio.helpers.RDFHandlerWrapper;
+
+/**
+ * Parses a line-oriented RDF file (N-Triples, N-Quads, or N3/Turtle written
+ * one statement per line) on several threads. The file is memory mapped and
+ * split into chunks that end on line boundaries, and each chunk gets its own
+ * {@link RDFParser}. Blank node ids are preserved so the same {@code _:b1} in
+ * two chunks is still the same node.
+ * <p>
+ * The handler passed to {@link #parse(File, String, RDFHandler)} is called
+ * from all parser threads at once and must be thread safe (see
+ * {@link SynchronizedRdfHandler}). Statements arrive in no particular order.
+ * <p>
+ * Files that need sequential parsing, i.e. N3/Turtle with {@code @prefix} or
+ * {@code @base} directives, statements spanning several lines, or any other
+ * format, fall back to a single parser on the calling thread.
+ */
+public class ParallelRdfFileParser {
+    private static final Logger log = Logger.getLogger(ParallelRdfFileParser.class);
+
+    // chunks are mapped individually, so they must stay under the 2GB mapping limit
+    private static final long MAX_CHUNK_SIZE = 256L * 1024 * 1024;
+
+    // the line-orientation check maps the file in windows of this size
+    private static final long SCAN_WINDOW_SIZE = 1024L * 1024 * 1024;
+
+    private final RDFFormat format;
+    private final int threadCount;
+
+    public ParallelRdfFileParser(RDFFormat format, int threadCount) {
+        this.format = format;
+        this.threadCount = threadCount;
+    }
+
+    public void parse(File file, String baseURI, RDFHandler handler) throws IOException, RDFParseException, RDFHandlerException {
+        if (!isLineOriented(file, format)) {
+            log.info("File " + file + " requires sequential parsing.  Falling back to a single " + format.getName() + " parser.");
+            RDFParser parser = Rio.createParser(format);
+            parser.setRDFHandler(handler);
+            try (InputStream in = new BufferedInputStream(FileUtils.openInputStream(file))) {
+                parser.parse(in, baseURI);
+            }
+            return;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            List<long[]> chunks = split(channel);
+            log.info("Parsing " + file + " in " + chunks.size() + " chunks on " + threadCount + " threads");
+
+            handler.startRDF();
+
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (long[] chunk : chunks) {
+                    MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+                    futures.add(executor.submit(() -> {
+                        RDFParser parser = Rio.createParser(format);
+                        parser.getParserConfig().set(BasicParserSettings.PRESERVE_BNODE_IDS, true);
+                        parser.setRDFHandler(new ChunkHandler(handler));
+                        parser.parse(new ByteBufferInputStream(buffer), baseURI);
+                        return null;
+                    }));
+                }
+                for (Future<?> f : futures) {
+                    f.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RDFHandlerException("Interrupted while parsing " + file, e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RDFParseException) {
+                    throw (RDFParseException) cause;
+                } else if (cause instanceof RDFHandlerException) {
+                    throw (RDFHandlerException) cause;
+                } else if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new RDFHandlerException(cause);
+            } finally {
+                executor.shutdownNow();
+            }
+
+            handler.endRDF();
+        }
+    }
+
+    /**
+     * Splits the file into [start, end) byte ranges that begin at the start
+     * of a line.
+     */
+    private List<long[]> split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(1, size / (threadCount * 4L)));
+
+        List<long[]> chunks = new ArrayList<>();
+        long start = 0;
+        ByteBuffer probe = ByteBuffer.allocate(64 * 1024);
+        while (start < size) {
+            long end = start + chunkSize;
+            if (end >= size) {
+                end = size;
+            } else {
+                end = nextLineStart(channel, end, probe);
+            }
+            chunks.add(new long[] { start, end });
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static long nextLineStart(FileChannel channel, long position, ByteBuffer probe) throws IOException {
+        long size = channel.size();
+        while (position < size) {
+            probe.clear();
+            int read = channel.read(probe, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * Checks whether every statement in the file is on its own line, which is
+     * what makes it safe to split the file at arbitrary line boundaries.
+     */
+    public static boolean isLineOriented(File file, RDFFormat format) throws IOException {
+        if (RDFFormat.NTRIPLES.equals(format) || RDFFormat.NQUADS.equals(format)) {
+            return true;
+        }
+        if (!RDFFormat.N3.equals(format) && !RDFFormat.TURTLE.equals(format)) {
+            return false;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            LineScanner scanner = new LineScanner();
+            long size = channel.size();
+            for (long pos = 0; pos < size; pos += SCAN_WINDOW_SIZE) {
+                MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, pos, Math.min(SCAN_WINDOW_SIZE, size - pos));
+                while (buffer.hasRemaining()) {
+                    if (!scanner.accept(buffer.get())) {
+                        return false;
+                    }
+                }
+            }
+            return scanner.endOfInput();
+        }
+    }
+
+    /**
+     * Byte-at-a-time check that each non-blank, non-comment line is a complete
+     * statement: no directives, no long (triple quoted) literals, and a final
+     * '.' on every line.
+     */
+    private static class LineScanner {
+        private final byte[] head = new byte[6];
+        private int headLength = 0;
+        private boolean headDone = false;
+        private byte first = 0;
+        private byte last = 0;
+        private int quotes = 0;
+
+        boolean accept(byte b) {
+            if (b == '\n' || b == '\r') {
+                return endOfLine();
+            }
+
+            if (b == '"' || b == '\'') {
+                if (++quotes == 3) {
+                    return false;
+                }
+            } else {
+                quotes = 0;
+            }
+
+            if (b == ' ' || b == '\t') {
+                headDone = first != 0;
+                return true;
+            }
+
+            if (first == 0) {
+                first = b;
+            }
+            if (!headDone) {
+                if (headLength < head.length) {
+                    head[headLength] = b;
+                }
+                headLength++;
+            }
+            last = b;
+            return true;
+        }
+
+        private boolean endOfLine() {
+            boolean ok = true;
+            if (first != 0 && first != '#') {
+                ok = !isDirective() && last == '.';
+            }
+            first = 0;
+            last = 0;
+            headLength = 0;
+            headDone = false;
+            quotes = 0;
+            return ok;
+        }
+
+        private boolean isDirective() {
+            if (first == '@') {
+                return true;
+            }
+            if (headLength != 4 && headLength != 6) {
+                return false;
+            }
+            String keyword = new String(head, 0, headLength, StandardCharsets.US_ASCII);
+            return keyword.equalsIgnoreCase("PREFIX") || keyword.equalsIgnoreCase("BASE");
+        }
+
+        boolean endOfInput() {
+            return endOfLine();
+        }
+    }
+
+    /**
+     * Forwards statements from one chunk parser and hides the per chunk
+     * start/end events from the shared handler.
+     */
+    private static class ChunkHandler extends RDFHandlerWrapper {
+        ChunkHandler(RDFHandler inner) {
+            super(inner);
+        }
+
+        @Override
+        public void startRDF() throws RDFHandlerException {
+        }
+
+        @Override
+        public void endRDF() throws RDFHandlerException {
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOptions;
+
+/**
+ * Maps predicates to the collection that holds their statements, for the
+ * vertically partitioned layout written by {@link PartitionedLoadRya}.
+ * <p>
+ * Each configured predicate belongs to a named group, and each group is one
+ * collection, {@code <base>_<group>}. Every other predicate goes to the
+ * catch-all collection {@code <base>_other}. The catalog is stored in
+ * {@code <base>_catalog} as {@code {_id: <predicate>, collection: <name>}}
+ * so a query with a bound predicate can find its single collection, and a
+ * query without one can list every partition.
+ */
+public class PartitionCatalog {
+
+    public static final String CATCH_ALL = "other";
+
+    private static final String CATALOG_SUFFIX = "_catalog";
+    private static final String COLLECTION = "collection";
+    // catalog entry that lists the catch-all collection
+    private static final String CATCH_ALL_ID = "*";
+
+    private final String baseName;
+    private final Map<String, String> collections;
+    private final String catchAll;
+
+    /**
+     * @param groups
+     *            predicate to group name. Several predicates may share a
+     *            group.
+     */
+    public PartitionCatalog(String baseName, Map<String, String> groups) {
+        this.baseName = baseName;
+        this.catchAll = baseName + "_" + CATCH_ALL;
+        this.collections = new HashMap<>();
+        for (Map.Entry<String, String> e : groups.entrySet()) {
+            if (e.getValue().equals(CATCH_ALL)) {
+                throw new IllegalArgumentException("Group name " + CATCH_ALL + " is reserved for the catch-all partition");
+            }
+            collections.put(e.getKey(), baseName + "_" + e.getValue());
+        }
+    }
+
+    private PartitionCatalog(String baseName, Map<String, String> collections, String catchAll) {
+        this.baseName = baseName;
+        this.collections = collections;
+        this.catchAll = catchAll;
+    }
+
+    /**
+     * A catalog giving each of {@code predicates} its own collection, named
+     * after the predicate's local name.
+     */
+    public static PartitionCatalog perPredicate(String baseName, Collection<String> predicates) {
+        Map<String, String> groups = new LinkedHashMap<>();
+        Set<String> used = new LinkedHashSet<>();
+        for (String predicate : predicates) {
+            String name = localName(predicate);
+            // two namespaces can share a local name
+            String group = name;
+            for (int i = 2; !used.add(group); i++) {
+                group = name + i;
+            }
+            groups.put(predicate, group);
+        }
+        return new PartitionCatalog(baseName, groups);
+    }
+
+    private static String localName(String predicate) {
+        int cut = Math.max(predicate.lastIndexOf('#'), Math.max(predicate.lastIndexOf('/'), predicate.lastIndexOf(':')));
+        String name = predicate.substring(cut + 1).replaceAll("[^A-Za-z0-9_]", "_");
+        return name.isEmpty() || name.equals(CATCH_ALL) ? "p_" + name : name;
+    }
+
+    public String getBaseName() {
+        return baseName;
+    }
+
+    /**
+     * @return the collection holding statements with {@code predicate}.
+     */
+    public String collectionFor(String predicate) {
+        String name = collections.get(predicate);
+        return name != null ? name : catchAll;
+    }
+
+    public boolean isPartitioned(String predicate) {
+        return collections.containsKey(predicate);
+    }
+
+    public String getCatchAll() {
+        return catchAll;
+    }
+
+    /**
+     * @return every partition collection, the catch-all last.
+     */
+    public Set<String> getCollections() {
+        Set<String> names = new LinkedHashSet<>(collections.values());
+        names.add(catchAll);
+        return names;
+    }
+
+    /**
+     * @return the collection to query for a bound predicate.
+     */
+    public MongoCollection<Document> getCollection(MongoDatabase db, String predicate) {
+        return db.getCollection(collectionFor(predicate));
+    }
+
+    /**
+     * Writes the catalog to {@code <base>_catalog}, replacing the entries of
+     * the predicates it maps.
+     */
+    public void save(MongoDatabase db) {
+        MongoCollection<Document> catalog = db.getCollection(baseName + CATALOG_SUFFIX);
+        UpdateOptions upsert = new UpdateOptions().upsert(true);
+        for (Map.Entry<String, String> e : collections.entrySet()) {
+            catalog.replaceOne(Filters.eq("_id", e.getKey()), new Document("_id", e.getKey()).append(COLLECTION, e.getValue()), upsert);
+        }
+        catalog.replaceOne(Filters.eq("_id", CATCH_ALL_ID), new Document("_id", CATCH_ALL_ID).append(COLLECTION, catchAll), upsert);
+    }
+
+    /**
+     * @return the catalog stored for {@code baseName}, or null if there is
+     *         none.
+     */
+    public static PartitionCatalog load(MongoDatabase db, String baseName) {
+        Map<String, String> collections = new HashMap<>();
+        String catchAll = null;
+        for (Document doc : db.getCollection(baseName + CATALOG_SUFFIX).find()) {
+            if (CATCH_ALL_ID.equals(doc.getString("_id"))) {
+                catchAll = doc.getString(COLLECTION);
+            } else {
+                collections.put(doc.getString("_id"), doc.getString(COLLECTION));
+            }
+        }
+        return catchAll == null ? null : new PartitionCatalog(baseName, collections, catchAll);
+    }
+
+    @Override
+    public String toString() {
+        return baseName + " :: " + collections.size() + " partitioned predicates in " + (getCollections().size() - 1)
+                + " collections, rest in " + catchAll;
+    }
+}
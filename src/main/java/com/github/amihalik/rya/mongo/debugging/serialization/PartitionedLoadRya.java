@@ -0,0 +1,316 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.openrdf.model.Statement;
+
+import com.github.amihalik.rya.mongo.debugging.RyaUtil;
+import com.github.amihalik.rya.mongo.debugging.metrics.IngestMetrics;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Vertically partitioned alternative to {@link BatchLoadRya}: each statement
+ * goes to the collection its predicate maps to in a {@link PartitionCatalog},
+ * so hot predicates and the geo predicate get their own, smaller B-trees.
+ * <p>
+ * Every partition has its own batch, bounded queue and writer threads, so a
+ * slow partition (the geo one, with its {@code 2dsphere} index) only blocks
+ * the parser once its own queue is full, while the others keep writing. All
+ * partitions share one {@link MongoClient} and its connection pool. The
+ * catalog is saved to the database before the first insert. A
+ * {@link #setHeapBudget(HeapBudget) heap budget} is shared by all partitions.
+ */
+public class PartitionedLoadRya<T> implements StatementLoader {
+    private static final Logger log = Logger.getLogger(PartitionedLoadRya.class);
+
+    // identity-compared marker telling a writer to exit
+    private static final Batch END_OF_STATEMENTS = new Batch(null, 0);
+
+    private static final class Batch {
+        final List<Statement> statements;
+        // heap budget held until the batch is written
+        final long reserved;
+
+        Batch(List<Statement> statements, long reserved) {
+            this.statements = statements;
+            this.reserved = reserved;
+        }
+    }
+
+    private final class Partition {
+        final String colName;
+        final BulkWriteRecovery<T> recovery;
+        final BlockingQueue<Batch> queue;
+        final AtomicLong stored = new AtomicLong();
+        List<Statement> batch = new ArrayList<>(batchSize);
+        long batchBytes;
+
+        Partition(String colName) {
+            this.colName = colName;
+            MongoCollection<T> coll = client.getDatabase(dbName).getCollection(colName, serializer.getDocumentClass());
+            this.recovery = new BulkWriteRecovery<>(client.getDatabase(dbName), coll, new InsertManyOptions().ordered(false),
+                    new DeadLetterFile(new File(dbName + "." + colName + ".deadletter.nq")));
+            this.queue = new ArrayBlockingQueue<>(queueDepth);
+        }
+    }
+
+    private final String dbName;
+    private final StatementSerializer<T> serializer;
+    private final PartitionCatalog catalog;
+    private final int batchSize;
+    private final int queueDepth;
+    private final int writersPerPartition;
+
+    private final MongoClient client;
+    private final ExecutorService executor;
+
+    // by collection name, and by predicate once a predicate has been seen
+    private final Map<String, Partition> partitions = new LinkedHashMap<>();
+    private final Map<String, Partition> byPredicate = new HashMap<>();
+
+    private HeapBudget budget;
+    private long maxBatchReservation;
+
+    // set by a writer that died, so the parser stops instead of blocking on its queue
+    private volatile Throwable failure;
+
+    public PartitionedLoadRya(String dbName, PartitionCatalog catalog, StatementSerializer<T> serializer, int batchSize, int queueDepth,
+            int writersPerPartition) {
+        this.dbName = dbName;
+        this.catalog = catalog;
+        this.serializer = serializer;
+        this.batchSize = batchSize;
+        this.queueDepth = queueDepth;
+        this.writersPerPartition = writersPerPartition;
+
+        log.info("Opening Connection to Mongo");
+        int writers = catalog.getCollections().size() * writersPerPartition;
+        client = new MongoClient(RyaUtil.getMongoServer(), MongoClientOptions.builder().connectionsPerHost(Math.max(100, writers))
+                .minConnectionsPerHost(writers).build());
+        catalog.save(client.getDatabase(dbName));
+        log.info("Saved partition catalog :: " + catalog);
+
+        executor = Executors.newFixedThreadPool(writers);
+        for (String colName : catalog.getCollections()) {
+            Partition partition = new Partition(colName);
+            partitions.put(colName, partition);
+            for (int i = 0; i < writersPerPartition; i++) {
+                executor.execute(() -> writeStage(partition));
+            }
+        }
+    }
+
+    public PartitionCatalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Cuts batches by estimated heap as well as by count, and holds back the
+     * parser while the batches of all partitions would go over the budget.
+     * Each batch may use the budget's share of one place in a partition's
+     * queue or writers, plus one for the batch each partition is filling.
+     * Off when null.
+     */
+    public void setHeapBudget(HeapBudget budget) {
+        this.budget = budget;
+        if (budget != null) {
+            int places = partitions.size() * (queueDepth + writersPerPartition + 1);
+            maxBatchReservation = budget.getLimit() / places;
+        }
+    }
+
+    @Override
+    public void loadStatement(Statement s) {
+        String predicate = s.getPredicate().stringValue();
+        Partition partition = byPredicate.get(predicate);
+        if (partition == null) {
+            partition = partitions.get(catalog.collectionFor(predicate));
+            byPredicate.put(predicate, partition);
+        }
+        partition.batch.add(s);
+        if (budget != null) {
+            partition.batchBytes += HeapBudget.estimate(s);
+        }
+        if (partition.batch.size() >= batchSize
+                || (budget != null && HeapBudget.reservation(partition.batchBytes) >= maxBatchReservation)) {
+            handOff(partition);
+        }
+    }
+
+    private void handOff(Partition partition) {
+        if (partition.batch.isEmpty()) {
+            return;
+        }
+        long reserved = 0;
+        if (budget != null) {
+            reserved = HeapBudget.reservation(partition.batchBytes);
+            reserve(reserved);
+        }
+        put(partition.queue, new Batch(partition.batch, reserved));
+        partition.batch = new ArrayList<>(batchSize);
+        partition.batchBytes = 0;
+    }
+
+    /**
+     * Waits for room in the heap budget.
+     *
+     * @throws IllegalStateException
+     *             if a writer died, since it may never release what it holds.
+     */
+    private void reserve(long bytes) {
+        try {
+            while (!budget.tryAcquire(bytes, 1, TimeUnit.SECONDS)) {
+                checkWriters();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for heap budget", e);
+        }
+    }
+
+    private void release(long reserved) {
+        if (budget != null) {
+            budget.release(reserved);
+        }
+    }
+
+    private void writeStage(Partition partition) {
+        try {
+            while (true) {
+                Batch cut = partition.queue.take();
+                if (cut == END_OF_STATEMENTS) {
+                    return;
+                }
+                List<Statement> sts = cut.statements;
+                List<T> documents = new ArrayList<>(sts.size());
+                List<Statement> sources = new ArrayList<>(sts.size());
+                long bytes = 0;
+                try {
+                    serializer.prepare(sts);
+                    for (Statement s : sts) {
+                        long start = IngestMetrics.startSample();
+                        T d = serializer.serialize(s);
+                        IngestMetrics.endSample(IngestMetrics.SERIALIZE, start);
+                        if (d != null) {
+                            documents.add(d);
+                            sources.add(s);
+                            bytes += Math.max(serializer.byteSize(d), 0);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    // a bad statement costs its batch, not the writer
+                    log.error(String.format("Error serializing a batch of %,d statements for %s, dead lettering it", sts.size(),
+                            partition.colName), e);
+                    partition.recovery.deadLetter(sts, "serialization failed :: " + e);
+                    release(cut.reserved);
+                    continue;
+                }
+
+                long start = System.nanoTime();
+                try {
+                    partition.recovery.insert(documents, sources);
+                    long insertNanos = System.nanoTime() - start;
+                    IngestMetrics.INSERT.update(insertNanos, TimeUnit.NANOSECONDS);
+                    IngestMetrics.BYTES.mark(bytes);
+                    long total = partition.stored.addAndGet(documents.size());
+                    log.info(String.format("%s :: TOTAL STATEMENTS :: %,d\t Insert Rate :: %,d\t Queue :: %d", partition.colName, total,
+                            IngestMetrics.rate(documents.size(), insertNanos), partition.queue.size()));
+                } catch (RuntimeException e) {
+                    IngestMetrics.ERRORS.inc(documents.size());
+                    log.error("Error loading data into " + partition.colName, e);
+                } finally {
+                    release(cut.reserved);
+                }
+            }
+        } catch (InterruptedException e) {
+            log.error("Writer for " + partition.colName + " interrupted");
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            if (failure == null) {
+                failure = t;
+            }
+            log.error("Writer for " + partition.colName + " died, stopping the load", t);
+        }
+    }
+
+    /**
+     * Blocks until the queue has room, timing the wait as
+     * {@link IngestMetrics#QUEUE_WAIT}.
+     *
+     * @throws IllegalStateException
+     *             if a writer died, since its partition's queue may never be
+     *             taken from again.
+     */
+    private <E> void put(BlockingQueue<E> queue, E item) {
+        try {
+            long start = System.nanoTime();
+            while (!queue.offer(item, 1, TimeUnit.SECONDS)) {
+                checkWriters();
+            }
+            IngestMetrics.QUEUE_WAIT.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting on a partition writer", e);
+        }
+    }
+
+    private void checkWriters() {
+        if (failure != null) {
+            throw new IllegalStateException("A partition writer died", failure);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            for (Partition partition : partitions.values()) {
+                handOff(partition);
+                for (int i = 0; i < writersPerPartition; i++) {
+                    put(partition.queue, END_OF_STATEMENTS);
+                }
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            log.error("Mongo Client not closed properly");
+            Thread.currentThread().interrupt();
+        } finally {
+            // no-op after a clean drain; stops the writers still waiting if one died
+            executor.shutdownNow();
+            for (Partition partition : partitions.values()) {
+                log.info(String.format("Partition %s :: %,d statements", partition.colName, partition.stored.get()));
+                partition.recovery.close();
+            }
+            client.close();
+        }
+    }
+}
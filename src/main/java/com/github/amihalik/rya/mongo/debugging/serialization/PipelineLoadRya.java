@@ -0,0 +1,394 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.openrdf.model.Statement;
+
+import com.github.amihalik.rya.mongo.debugging.RyaUtil;
+import com.github.amihalik.rya.mongo.debugging.metrics.IngestMetrics;
+import com.google.common.base.Stopwatch;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Staged alternative to {@link BatchLoadRya}. The parser thread only collects
+ * statements into batches; serialization and inserts run in their own thread
+ * pools and are connected by bounded queues:
+ *
+ * <pre>
+ * parser --> [serialize queue] --> serialize threads --> [insert queue] --> insert threads --> MongoDB
+ * </pre>
+ *
+ * Serialization is CPU bound and scales with {@code serializeThreads}, while
+ * {@code insertThreads} keeps enough bulk writes in flight to saturate the
+ * server. A full queue blocks the stage in front of it, so the parser can never
+ * run more than {@code queueDepth} batches ahead of either stage. With a
+ * {@link #setHeapBudget(HeapBudget) heap budget}, batches are also cut by
+ * estimated heap and the parser waits while the batches between it and
+ * MongoDB would go over the budget.
+ */
+public class PipelineLoadRya<T> implements StatementLoader {
+    private static final Logger log = Logger.getLogger(PipelineLoadRya.class);
+
+    private static final long QUEUE_REPORT_SECONDS = 10;
+
+    // identity-compared markers telling a stage worker to exit
+    private static final Batch<Object> END_OF_STATEMENTS = new Batch<>(null, null, 0, 0);
+    private static final Batch<Object> END_OF_DOCUMENTS = new Batch<>(null, null, 0, 0);
+
+    /**
+     * Serialized documents and the statements they came from, index for index.
+     * Batches still waiting to be serialized have no documents yet.
+     */
+    private static final class Batch<T> {
+        final List<Statement> statements;
+        final List<T> documents;
+        final long bytes;
+        // heap budget held until the batch is inserted
+        final long reserved;
+
+        Batch(List<Statement> statements, List<T> documents, long bytes, long reserved) {
+            this.statements = statements;
+            this.documents = documents;
+            this.bytes = bytes;
+            this.reserved = reserved;
+        }
+    }
+
+    private final int batchSize;
+    private final int serializeThreads;
+    private final int insertThreads;
+    private final int queueDepth;
+
+    private final BlockingQueue<Batch<T>> serializeQueue;
+    private final BlockingQueue<Batch<T>> insertQueue;
+
+    private final ExecutorService serializeExecutor;
+    private final ExecutorService insertExecutor;
+    private final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+
+    private final InsertManyOptions bws;
+    private final AtomicInteger totalstatements = new AtomicInteger();
+
+    private final MongoClient client;
+    private final BulkWriteRecovery<T> recovery;
+
+    private final StatementSerializer<T> serializer;
+
+    private List<Statement> statements;
+    private long statementBytes;
+
+    private HeapBudget budget;
+    private long maxBatchReservation;
+
+    // set by a stage thread that died, so the parser stops instead of blocking on its queue
+    private volatile Throwable failure;
+
+    public PipelineLoadRya(String dbName, String colName, StatementSerializer<T> serializer, int batchSize, int serializeThreads,
+            int insertThreads, int queueDepth) {
+        this.serializer = serializer;
+        this.batchSize = batchSize;
+        this.serializeThreads = serializeThreads;
+        this.insertThreads = insertThreads;
+        this.queueDepth = queueDepth;
+
+        log.info("Opening Connection to Mongo");
+
+        ServerAddress server = RyaUtil.getMongoServer();
+        client = new MongoClient(server, MongoClientOptions.builder().minConnectionsPerHost(insertThreads).build());
+        MongoCollection<T> coll = client.getDatabase(dbName).getCollection(colName, serializer.getDocumentClass());
+
+        bws = new InsertManyOptions();
+        bws.ordered(false);
+
+        recovery = new BulkWriteRecovery<>(client.getDatabase(dbName), coll, bws, new DeadLetterFile(new File(dbName + "." + colName + ".deadletter.nq")));
+
+        serializeQueue = new ArrayBlockingQueue<>(queueDepth);
+        insertQueue = new ArrayBlockingQueue<>(queueDepth);
+
+        serializeExecutor = Executors.newFixedThreadPool(serializeThreads);
+        for (int i = 0; i < serializeThreads; i++) {
+            serializeExecutor.execute(this::serializeStage);
+        }
+        insertExecutor = Executors.newFixedThreadPool(insertThreads);
+        for (int i = 0; i < insertThreads; i++) {
+            insertExecutor.execute(this::insertStage);
+        }
+
+        reporter.scheduleAtFixedRate(() -> log.info(String.format("Serialize Queue :: %d/%d\t Insert Queue :: %d/%d", getSerializeQueueDepth(),
+                queueDepth, getInsertQueueDepth(), queueDepth)), QUEUE_REPORT_SECONDS, QUEUE_REPORT_SECONDS, TimeUnit.SECONDS);
+
+        statements = new ArrayList<>(batchSize);
+
+        log.info("Done Opening Connection to Rya");
+    }
+
+    /**
+     * @return the number of statement batches waiting to be serialized.
+     */
+    public int getSerializeQueueDepth() {
+        return serializeQueue.size();
+    }
+
+    /**
+     * @return the number of serialized batches waiting to be inserted.
+     */
+    public int getInsertQueueDepth() {
+        return insertQueue.size();
+    }
+
+    /**
+     * Cuts batches by estimated heap as well as by count, and holds back the
+     * parser while the batches in the queues and stages would go over the
+     * budget. Each batch may use the budget's share of one place in the
+     * pipeline, plus one for the batch being filled.
+     * Off when null.
+     */
+    public void setHeapBudget(HeapBudget budget) {
+        this.budget = budget;
+        if (budget != null) {
+            int places = 2 * queueDepth + serializeThreads + insertThreads;
+            maxBatchReservation = budget.getLimit() / (places + 1);
+        }
+    }
+
+    @Override
+    public void loadStatement(Statement s) {
+        statements.add(s);
+        if (budget != null) {
+            statementBytes += HeapBudget.estimate(s);
+        }
+        if (statements.size() >= batchSize || (budget != null && HeapBudget.reservation(statementBytes) >= maxBatchReservation)) {
+            handOff();
+        }
+    }
+
+    private void handOff() {
+        if (statements.isEmpty()) {
+            return;
+        }
+        long reserved = 0;
+        if (budget != null) {
+            reserved = HeapBudget.reservation(statementBytes);
+            reserve(reserved);
+        }
+        // hand the list off instead of copying it
+        put(serializeQueue, new Batch<T>(statements, null, 0, reserved));
+        statements = new ArrayList<>(batchSize);
+        statementBytes = 0;
+    }
+
+    /**
+     * Waits for room in the heap budget.
+     *
+     * @throws IllegalStateException
+     *             if a stage thread died, since it may never release what it
+     *             holds.
+     */
+    private void reserve(long bytes) {
+        try {
+            while (!budget.tryAcquire(bytes, 1, TimeUnit.SECONDS)) {
+                checkStages();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for heap budget", e);
+        }
+    }
+
+    private void release(long reserved) {
+        if (budget != null) {
+            budget.release(reserved);
+        }
+    }
+
+    private void serializeStage() {
+        try {
+            while (true) {
+                Batch<T> cut = serializeQueue.take();
+                if (cut == END_OF_STATEMENTS) {
+                    return;
+                }
+                List<Statement> sts = cut.statements;
+
+                Batch<T> batch;
+                try {
+                    batch = serialize(sts, cut.reserved);
+                } catch (RuntimeException e) {
+                    // a bad statement costs its batch, not the stage
+                    log.error(String.format("Error serializing a batch of %,d statements, dead lettering it", sts.size()), e);
+                    recovery.deadLetter(sts, "serialization failed :: " + e);
+                    release(cut.reserved);
+                    continue;
+                }
+
+                put(insertQueue, batch);
+            }
+        } catch (InterruptedException e) {
+            log.error("Serialize stage interrupted");
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            died("Serialize", t);
+        }
+    }
+
+    private Batch<T> serialize(List<Statement> sts, long reserved) {
+        Stopwatch sw = new Stopwatch();
+        sw.start();
+        List<T> documents = new ArrayList<>(sts.size());
+        List<Statement> sources = new ArrayList<>(sts.size());
+        long bytes = 0;
+        serializer.prepare(sts);
+        for (Statement s : sts) {
+            long start = IngestMetrics.startSample();
+            T d = serializer.serialize(s);
+            IngestMetrics.endSample(IngestMetrics.SERIALIZE, start);
+            if (d != null) {
+                documents.add(d);
+                sources.add(s);
+                bytes += Math.max(serializer.byteSize(d), 0);
+            }
+        }
+        long serNanos = sw.elapsed(TimeUnit.NANOSECONDS);
+        log.debug(String.format("Serialization Rate :: %,d", IngestMetrics.rate(sts.size(), serNanos)));
+        return new Batch<>(sources, documents, bytes, reserved);
+    }
+
+    private void died(String stage, Throwable t) {
+        if (failure == null) {
+            failure = t;
+        }
+        log.error(stage + " stage died, stopping the load", t);
+    }
+
+    private void insertStage() {
+        try {
+            while (true) {
+                Batch<T> batch = insertQueue.take();
+                if (batch == END_OF_DOCUMENTS) {
+                    return;
+                }
+                List<T> documents = batch.documents;
+                if (documents.isEmpty()) {
+                    release(batch.reserved);
+                    continue;
+                }
+
+                Stopwatch sw = new Stopwatch();
+                sw.start();
+                try {
+                    recovery.insert(documents, batch.statements);
+                    long insertNanos = sw.elapsed(TimeUnit.NANOSECONDS);
+                    IngestMetrics.INSERT.update(insertNanos, TimeUnit.NANOSECONDS);
+                    IngestMetrics.BYTES.mark(batch.bytes);
+
+                    int totalsize = totalstatements.addAndGet(documents.size());
+                    log.info(String.format("TOTAL STATEMENTS :: %,d\t Insert Rate :: %,d\t Serialize Queue :: %d\t Insert Queue :: %d%s", totalsize,
+                            IngestMetrics.rate(documents.size(), insertNanos), getSerializeQueueDepth(), getInsertQueueDepth(),
+                            budget != null ? "\t " + budget : ""));
+                } catch (RuntimeException e) {
+                    IngestMetrics.ERRORS.inc(documents.size());
+                    log.error("Error loading data into Mongo", e);
+                } finally {
+                    release(batch.reserved);
+                }
+            }
+        } catch (InterruptedException e) {
+            log.error("Insert stage interrupted");
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            died("Insert", t);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Batch<T> endOfStatements() {
+        return (Batch<T>) (Batch<?>) END_OF_STATEMENTS;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Batch<T> endOfDocuments() {
+        return (Batch<T>) (Batch<?>) END_OF_DOCUMENTS;
+    }
+
+    /**
+     * Blocks until the queue has room, timing the wait as
+     * {@link IngestMetrics#QUEUE_WAIT}.
+     *
+     * @throws IllegalStateException
+     *             if a stage thread died, since nothing may ever take from
+     *             the queue again.
+     */
+    private <E> void put(BlockingQueue<E> queue, E item) {
+        try {
+            long start = System.nanoTime();
+            while (!queue.offer(item, 1, TimeUnit.SECONDS)) {
+                checkStages();
+            }
+            IngestMetrics.QUEUE_WAIT.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting on the pipeline", e);
+        }
+    }
+
+    private void checkStages() {
+        if (failure != null) {
+            throw new IllegalStateException("A pipeline stage died", failure);
+        }
+    }
+
+    @Override
+    public void close() {
+        handOff();
+
+        // drain the stages in order so every serialized batch reaches the insert queue
+        try {
+            for (int i = 0; i < serializeThreads; i++) {
+                put(serializeQueue, endOfStatements());
+            }
+            serializeExecutor.shutdown();
+            serializeExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+            for (int i = 0; i < insertThreads; i++) {
+                put(insertQueue, endOfDocuments());
+            }
+            insertExecutor.shutdown();
+            insertExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            log.error("Mongo Client not closed properly");
+            Thread.currentThread().interrupt();
+        } finally {
+            reporter.shutdownNow();
+            recovery.close();
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.CONTEXT;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.DOCUMENT_VISIBILITY;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.EMPTY_METADATA;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.GEO;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.ID;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.OBJECT;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.OBJECT_HASH;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.OBJECT_LANGUAGE;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.OBJECT_TYPE;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.OBJECT_TYPE_VALUE;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.PREDICATE;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.PREDICATE_HASH;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.STATEMENT_METADATA;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.SUBJECT;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.SUBJECT_HASH;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.TIMESTAMP;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.WKT_LITERAL;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.bson.BsonBinary;
+import org.bson.BsonBinaryWriter;
+import org.bson.RawBsonDocument;
+import org.bson.io.BasicOutputBuffer;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Writes each statement straight into BSON, producing the same document as
+ * {@link MongoSerialization} without building an {@link org.bson.Document} or
+ * boxed coordinate lists for the driver to walk again. Every thread encodes
+ * into its own reusable output buffer; the only per-statement allocations are
+ * the hashes and the final byte array backing the {@link RawBsonDocument}.
+ */
+public class RawMongoSerialization implements StatementSerializer<RawBsonDocument> {
+    private static final Logger LOG = Logger.getLogger(RawMongoSerialization.class);
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private static final ThreadLocal<BasicOutputBuffer> buffers = ThreadLocal.withInitial(() -> new BasicOutputBuffer(INITIAL_BUFFER_SIZE));
+    private static final ThreadLocal<StreamingWktReader> wktReaders = ThreadLocal.withInitial(StreamingWktReader::new);
+
+    private final boolean addHash;
+    private final boolean addGeo;
+    private final boolean addCells;
+    private final StatementHasher hasher;
+    private GeometrySimplifier simplifier;
+
+    public RawMongoSerialization(boolean addHash, boolean addGeo) {
+        this(addHash, addGeo, new StatementHasher());
+    }
+
+    public RawMongoSerialization(boolean addHash, boolean addGeo, StatementHasher hasher) {
+        this(addHash, addGeo, false, hasher);
+    }
+
+    /**
+     * @param addCells
+     *            also write the bounding box and {@link SpatialCells} terms of
+     *            every geometry, for the prefilter.
+     */
+    public RawMongoSerialization(boolean addHash, boolean addGeo, boolean addCells, StatementHasher hasher) {
+        this.addHash = addHash;
+        this.addGeo = addGeo;
+        this.addCells = addCells;
+        this.hasher = hasher;
+    }
+
+    public StatementHasher getHasher() {
+        return hasher;
+    }
+
+    /**
+     * Also write simplified copies of large geometries. Off when null.
+     */
+    public void setSimplifier(GeometrySimplifier simplifier) {
+        this.simplifier = simplifier;
+    }
+
+    @Override
+    public Class<RawBsonDocument> getDocumentClass() {
+        return RawBsonDocument.class;
+    }
+
+    @Override
+    public int byteSize(RawBsonDocument document) {
+        return document.getByteBuffer().remaining();
+    }
+
+    @Override
+    public RawBsonDocument serialize(final Statement statement) {
+        String context = "";
+        if (statement.getContext() != null) {
+            context = statement.getContext().stringValue();
+        }
+        String subject = statement.getSubject().stringValue();
+        String predicate = statement.getPredicate().stringValue();
+        String object;
+        String objectType;
+        String language = null;
+
+        if (statement.getObject() instanceof URI) {
+            object = statement.getObject().stringValue();
+            objectType = OBJECT_TYPE_VALUE;
+        } else {
+            Literal lit = ((Literal) statement.getObject());
+            object = lit.getLabel();
+            objectType = MongoSerialization.literalType(lit);
+            language = lit.getLanguage();
+        }
+
+        // parse before writing anything so a bad literal can't leave a half written document
+        StreamingWktReader wkt = null;
+        Geometry geo = null;
+        List<GeometrySimplifier.Level> levels = Collections.emptyList();
+        if (addGeo && objectType.equals(WKT_LITERAL)) {
+            wkt = wktReaders.get();
+            if (!wkt.read(object)) {
+                wkt = null;
+                geo = parseGeometry(statement, object);
+            }
+            if (simplifier != null) {
+                if (wkt != null && wkt.getNumPoints() >= simplifier.getMinPoints()) {
+                    levels = simplifier.simplify(wkt.toGeometry(MongoSerialization.GEOMETRY_FACTORY));
+                } else if (geo != null) {
+                    levels = simplifier.simplify(geo);
+                }
+            }
+        }
+
+        BasicOutputBuffer buffer = buffers.get();
+        buffer.truncateToPosition(0);
+        try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+            writer.writeStartDocument();
+            writer.writeBinaryData(ID, new BsonBinary(hasher.statementId(subject, predicate, object, context)));
+            writer.writeString(SUBJECT, subject);
+            writer.writeString(PREDICATE, predicate);
+            writer.writeString(OBJECT, object);
+            writer.writeString(OBJECT_TYPE, objectType);
+            if (language != null) {
+                writer.writeString(OBJECT_LANGUAGE, language);
+            }
+            writer.writeString(CONTEXT, context);
+            writer.writeString(STATEMENT_METADATA, EMPTY_METADATA);
+            writer.writeStartArray(DOCUMENT_VISIBILITY);
+            writer.writeEndArray();
+            writer.writeInt64(TIMESTAMP, System.currentTimeMillis());
+
+            if (addHash) {
+                writer.writeBinaryData(SUBJECT_HASH, new BsonBinary(hasher.termHash32(subject)));
+                writer.writeBinaryData(PREDICATE_HASH, new BsonBinary(hasher.termHash32(predicate)));
+                writer.writeBinaryData(OBJECT_HASH, new BsonBinary(hasher.objectHash32(object)));
+            }
+
+            if (wkt != null) {
+                writer.writeName(GEO);
+                wkt.write(writer);
+                if (addCells) {
+                    SpatialCells.write(writer, wkt.getGeodesicEnvelope(), SpatialCells.DEFAULT_MAX_CELLS);
+                }
+            } else if (geo != null) {
+                writer.writeName(GEO);
+                writeGeometry(writer, geo);
+                if (addCells) {
+                    SpatialCells.write(writer, SpatialCells.geodesicEnvelope(geo), SpatialCells.DEFAULT_MAX_CELLS);
+                }
+            }
+            GeometrySimplifier.write(writer, levels);
+            writer.writeEndDocument();
+        }
+        return new RawBsonDocument(Arrays.copyOf(buffer.getInternalBuffer(), buffer.getPosition()));
+    }
+
+    /**
+     * JTS fallback for geometries the {@link StreamingWktReader} does not
+     * handle.
+     */
+    static Geometry parseGeometry(Statement statement, String object) {
+        try {
+            Geometry geo = (new WKTReader()).read(object);
+            if (geo.isEmpty()) {
+                LOG.error("Empty geometry in geo statement: " + statement);
+                return null;
+            }
+            return geo;
+        } catch (Exception e) {
+            LOG.error("Failed to parse geo statement: " + statement, e);
+            return null;
+        }
+    }
+
+    /**
+     * Mirrors {@link MongoSerialization#getCorrespondingPoints(Geometry)} and
+     * {@link MongoSerialization#getDBPoint(Geometry)}.
+     */
+    static void writeGeometry(BsonBinaryWriter writer, Geometry geo) {
+        writer.writeStartDocument();
+        writer.writeName("coordinates");
+        String type;
+        if (geo.getNumPoints() > 1) {
+            if (geo instanceof Polygon) {
+                Polygon poly = (Polygon) geo;
+                writer.writeStartArray();
+                writeCoordinates(writer, poly.getExteriorRing().getCoordinates());
+                for (int ii = 0; ii < poly.getNumInteriorRing(); ii++) {
+                    writeCoordinates(writer, poly.getInteriorRingN(ii).getCoordinates());
+                }
+                writer.writeEndArray();
+                type = "Polygon";
+            } else {
+                writeCoordinates(writer, geo.getCoordinates());
+                type = "LineString";
+            }
+        } else {
+            writePoint(writer, geo.getCoordinate());
+            type = "Point";
+        }
+        writer.writeString("type", type);
+        writer.writeEndDocument();
+    }
+
+    private static void writeCoordinates(BsonBinaryWriter writer, Coordinate[] coords) {
+        writer.writeStartArray();
+        for (Coordinate coord : coords) {
+            writePoint(writer, coord);
+        }
+        writer.writeEndArray();
+    }
+
+    private static void writePoint(BsonBinaryWriter writer, Coordinate coord) {
+        writer.writeStartArray();
+        writer.writeDouble(coord.x);
+        writer.writeDouble(coord.y);
+        writer.writeEndArray();
+    }
+}
@@ -1,20 +1,22 @@
 package com.github.amihalik.rya.mongo.debugging.serialization;
 
-import java.text.NumberFormat;
-import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.openrdf.model.Statement;
 import org.openrdf.rio.RDFHandler;
 import org.openrdf.rio.RDFHandlerException;
 
+import com.github.amihalik.rya.mongo.debugging.metrics.IngestMetrics;
+
 public class RdfHandlerCounter implements RDFHandler {
     private static final Logger log = Logger.getLogger(MongoSerialization.class);
 
     private RDFHandler inner;
 
-    private int count = 0;
-    private NumberFormat numberFormat = NumberFormat.getNumberInstance(Locale.US);
+    // may be called from several parser threads
+    private final AtomicLong count = new AtomicLong();
+    private volatile long startNanos = System.nanoTime();
 
     public RdfHandlerCounter(RDFHandler inner) {
         this.inner = inner;
@@ -22,6 +24,7 @@ public class RdfHandlerCounter implements RDFHandler {
 
     @Override
     public void startRDF() throws RDFHandlerException {
+        startNanos = System.nanoTime();
         inner.startRDF();
     }
 
@@ -37,9 +40,10 @@ public class RdfHandlerCounter implements RDFHandler {
 
     @Override
     public void handleStatement(Statement st) throws RDFHandlerException {
-        count++;
-        if (count % 1_000_000 == 0) {
-            log.info(numberFormat.format(count) + " statements written");
+        long current = count.incrementAndGet();
+        if (current % 1_000_000 == 0) {
+            log.info(String.format("%,d statements written :: Average Rate :: %,d", current,
+                    IngestMetrics.rate(current, System.nanoTime() - startNanos)));
         }
         inner.handleStatement(st);
 
@@ -0,0 +1,227 @@
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.bson.BsonBinary;
+import org.bson.BsonDocument;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.helpers.RDFHandlerWrapper;
+
+import com.github.amihalik.rya.mongo.debugging.metrics.IngestMetrics;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+
+/**
+ * Drops statements that were already seen, before they are serialized and
+ * sent to Mongo as duplicate key errors.
+ * <p>
+ * Every statement's {@code _id} goes into a Bloom filter sized for
+ * {@code expectedStatements}. A statement is only dropped if the filter has
+ * probably seen it <em>and</em> its id is in a bounded set of the most
+ * recent {@code exactIds} ids, so a false positive never loses a statement.
+ * <p>
+ * Probable repeats whose id has already left the exact set are held back and
+ * confirmed against the target collections (see
+ * {@link #setConfirmCollections(List)}): every {@code confirmBatch} of them
+ * costs one {@code find({_id: {$in: ...}})} per collection on the
+ * {@code _id} index. Ids found there are dropped, the rest are passed on.
+ * Without collections they are passed on straight away, and the unique
+ * {@code _id} index still catches them. Memory is fixed: about 1.2 bytes per
+ * expected statement for the filter at 1% false positives, plus roughly 100
+ * bytes per id in the exact set.
+ * <p>
+ * Put it after the fuzzer and counter, in front of the loader. Safe for
+ * several parser threads.
+ */
+public class RdfHandlerDedup extends RDFHandlerWrapper {
+    private static final Logger log = Logger.getLogger(RdfHandlerDedup.class);
+
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+    public static final int DEFAULT_EXACT_IDS = 1_000_000;
+    public static final int DEFAULT_CONFIRM_BATCH = 10_000;
+
+    private final StatementHasher hasher;
+    // guarded by this
+    private final BloomFilter<byte[]> filter;
+    private final Map<ByteBuffer, Boolean> recent;
+    private Map<ByteBuffer, Statement> pending = new LinkedHashMap<>();
+
+    private List<MongoCollection<?>> confirmCollections = Collections.emptyList();
+    private int confirmBatch = DEFAULT_CONFIRM_BATCH;
+
+    private long seen;
+    private long skipped;
+    private long unconfirmed;
+    private long lookups;
+
+    public RdfHandlerDedup(RDFHandler inner, StatementHasher hasher, int expectedStatements) {
+        this(inner, hasher, expectedStatements, DEFAULT_FALSE_POSITIVE_RATE, DEFAULT_EXACT_IDS);
+    }
+
+    public RdfHandlerDedup(RDFHandler inner, StatementHasher hasher, int expectedStatements, double falsePositiveRate, final int exactIds) {
+        super(inner);
+        this.hasher = hasher;
+        this.filter = BloomFilter.create(Funnels.byteArrayFunnel(), expectedStatements, falsePositiveRate);
+        this.recent = new LinkedHashMap<ByteBuffer, Boolean>(2 * exactIds) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+                return size() > exactIds;
+            }
+        };
+    }
+
+    /**
+     * Confirms probable repeats that left the exact set against these
+     * collections instead of passing them on. The ids must be the ones the
+     * serializer writes as {@code _id}.
+     */
+    public synchronized void setConfirmCollections(List<MongoCollection<?>> confirmCollections) {
+        this.confirmCollections = new ArrayList<>(confirmCollections);
+    }
+
+    public synchronized void setConfirmBatch(int confirmBatch) {
+        this.confirmBatch = confirmBatch;
+    }
+
+    @Override
+    public void handleStatement(Statement st) throws RDFHandlerException {
+        String context = st.getContext() == null ? "" : st.getContext().stringValue();
+        // the same id the serializer writes; hashed outside the lock
+        byte[] id = hasher.statementId(st.getSubject().stringValue(), st.getPredicate().stringValue(), objectValue(st), context);
+        Map<ByteBuffer, Statement> batch;
+        synchronized (this) {
+            seen++;
+            ByteBuffer key = ByteBuffer.wrap(id);
+            if (!filter.mightContain(id)) {
+                filter.put(id);
+                recent.put(key, Boolean.TRUE);
+                batch = null;
+            } else if (recent.containsKey(key) || pending.containsKey(key)) {
+                skipped++;
+                IngestMetrics.DUPLICATES.inc();
+                return;
+            } else if (confirmCollections.isEmpty()) {
+                unconfirmed++;
+                recent.put(key, Boolean.TRUE);
+                batch = null;
+            } else {
+                // later repeats now hit the exact set while this one waits for its lookup
+                pending.put(key, st);
+                recent.put(key, Boolean.TRUE);
+                if (pending.size() < confirmBatch) {
+                    return;
+                }
+                batch = drainPending();
+            }
+        }
+        if (batch == null) {
+            super.handleStatement(st);
+        } else {
+            confirm(batch);
+        }
+    }
+
+    private synchronized Map<ByteBuffer, Statement> drainPending() {
+        Map<ByteBuffer, Statement> batch = pending;
+        pending = new LinkedHashMap<>();
+        return batch;
+    }
+
+    /**
+     * Drops the held back statements whose id is already stored and passes on
+     * the rest. Runs outside the lock so parsing continues during the lookup.
+     */
+    private void confirm(Map<ByteBuffer, Statement> batch) throws RDFHandlerException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<BsonBinary> ids = new ArrayList<>(batch.size());
+        for (ByteBuffer key : batch.keySet()) {
+            ids.add(new BsonBinary(key.array()));
+        }
+        Set<ByteBuffer> stored = new HashSet<>();
+        List<MongoCollection<?>> collections;
+        synchronized (this) {
+            collections = confirmCollections;
+            lookups++;
+        }
+        for (MongoCollection<?> coll : collections) {
+            for (BsonDocument doc : coll.find(Filters.in("_id", ids), BsonDocument.class).projection(Projections.include("_id"))) {
+                stored.add(ByteBuffer.wrap(doc.getBinary("_id").getData()));
+            }
+        }
+        synchronized (this) {
+            skipped += stored.size();
+            unconfirmed += batch.size() - stored.size();
+        }
+        IngestMetrics.DUPLICATES.inc(stored.size());
+        for (Map.Entry<ByteBuffer, Statement> e : batch.entrySet()) {
+            if (!stored.contains(e.getKey())) {
+                super.handleStatement(e.getValue());
+            }
+        }
+    }
+
+    /**
+     * The object string the serializers hash: the label of a literal, the
+     * URI otherwise.
+     */
+    private static String objectValue(Statement st) {
+        if (st.getObject() instanceof Literal) {
+            return ((Literal) st.getObject()).getLabel();
+        }
+        return st.getObject().stringValue();
+    }
+
+    @Override
+    public void endRDF() throws RDFHandlerException {
+        confirm(drainPending());
+        log.info(String.format("Dedup :: %,d statements\t Skipped :: %,d\t Passed on unconfirmed :: %,d\t Lookups :: %,d", getSeen(),
+                getSkipped(), getUnconfirmed(), getLookups()));
+        super.endRDF();
+    }
+
+    public synchronized long getSeen() {
+        return seen;
+    }
+
+    /**
+     * @return statements dropped as certain duplicates.
+     */
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return statements the filter flagged but that were passed on because
+     *         neither the exact set nor the confirm collections had their id:
+     *         filter false positives, or repeats whose first copy was not
+     *         written yet.
+     */
+    public synchronized long getUnconfirmed() {
+        return unconfirmed;
+    }
+
+    /**
+     * @return {@code _id} lookups run to confirm probable repeats.
+     */
+    public synchronized long getLookups() {
+        return lookups;
+    }
+}
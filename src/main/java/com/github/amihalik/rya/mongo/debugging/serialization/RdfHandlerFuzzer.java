@@ -1,5 +1,7 @@
 package com.github.amihalik.rya.mongo.debugging.serialization;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.log4j.Logger;
 import org.openrdf.model.Statement;
 import org.openrdf.rio.RDFHandler;
@@ -7,17 +9,41 @@ import org.openrdf.rio.RDFHandlerException;
 
 import com.github.amihalik.rya.mongo.debugging.generatedata.FuzzData;
 
+/**
+ * Sends {@code multiplier} copies of every statement to the inner handler,
+ * see {@link FuzzData}. The jitter of each copy is seeded from the source
+ * statement's position and the copy number, so a load resumed with
+ * {@link #resumeAt} sends exactly the statements the first run would have.
+ * With a parallel parser the positions, and so the jitter, depend on thread
+ * timing.
+ */
 public class RdfHandlerFuzzer implements RDFHandler {
     private static final Logger log = Logger.getLogger(MongoSerialization.class);
 
     private RDFHandler inner;
     private int multiplier;
 
+    // copies of the next statement that are already loaded, see LoadCheckpoint
+    private int firstCopy = 0;
+    // position of the next source statement in the input
+    private final AtomicLong nextStatement = new AtomicLong();
+
     public RdfHandlerFuzzer(RDFHandler inner, int multiplier) {
         this.inner = inner;
         this.multiplier = multiplier;
     }
 
+    /**
+     * Resumes a load whose first {@code statementOffset} source statements
+     * and first {@code copies} copies of the next one are already loaded.
+     * The handler must then only be sent the statements after
+     * {@code statementOffset}.
+     */
+    public void resumeAt(long statementOffset, int copies) {
+        this.nextStatement.set(statementOffset);
+        this.firstCopy = copies;
+    }
+
     @Override
     public void startRDF() throws RDFHandlerException {
         inner.startRDF();
@@ -35,13 +61,15 @@ public class RdfHandlerFuzzer implements RDFHandler {
 
     @Override
     public void handleStatement(Statement st) throws RDFHandlerException {
-        for (int i = 0; i < multiplier; i++) {
-            try {
-                inner.handleStatement(FuzzData.fuzzStatement(st, i));
-            } catch (Exception e) {
-                log.error("Error fuzzing statement", e);
-                throw new RDFHandlerException(e);
-            }
+        int first = firstCopy;
+        firstCopy = 0;
+        try {
+            FuzzData.fuzzStatements(st, nextStatement.getAndIncrement(), first, multiplier, inner);
+        } catch (RDFHandlerException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("Error fuzzing statement", e);
+            throw new RDFHandlerException(e);
         }
 
     }
@@ -0,0 +1,35 @@
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.helpers.RDFHandlerWrapper;
+
+import com.github.amihalik.rya.mongo.debugging.metrics.IngestMetrics;
+
+/**
+ * Records {@link IngestMetrics#PARSE}: the time the parser spends between
+ * handing over one statement and the next. Put it directly behind the parser
+ * so downstream handlers are not counted. Safe for several parser threads.
+ */
+public class RdfHandlerParseTimer extends RDFHandlerWrapper {
+
+    // when this thread last returned to the parser, 0 before the first statement
+    private final ThreadLocal<long[]> lastReturn = ThreadLocal.withInitial(() -> new long[1]);
+
+    public RdfHandlerParseTimer(RDFHandler inner) {
+        super(inner);
+    }
+
+    @Override
+    public void handleStatement(Statement st) throws RDFHandlerException {
+        long[] last = lastReturn.get();
+        if (last[0] != 0 && IngestMetrics.sampled()) {
+            IngestMetrics.PARSE.update(System.nanoTime() - last[0], TimeUnit.NANOSECONDS);
+        }
+        super.handleStatement(st);
+        last[0] = System.nanoTime();
+    }
+}
@@ -0,0 +1,34 @@
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import org.apache.log4j.Logger;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.helpers.RDFHandlerWrapper;
+
+/**
+ * Drops the first {@code skip} statements. Used to resume a load when the
+ * input can't be positioned by byte offset, see
+ * {@link LoadCheckpoint#openAfter}.
+ */
+public class RdfHandlerSkipper extends RDFHandlerWrapper {
+    private static final Logger log = Logger.getLogger(RdfHandlerSkipper.class);
+
+    private long remaining;
+
+    public RdfHandlerSkipper(RDFHandler inner, long skip) {
+        super(inner);
+        this.remaining = skip;
+    }
+
+    @Override
+    public void handleStatement(Statement st) throws RDFHandlerException {
+        if (remaining > 0) {
+            if (--remaining == 0) {
+                log.info("Done skipping already loaded statements");
+            }
+            return;
+        }
+        super.handleStatement(st);
+    }
+}
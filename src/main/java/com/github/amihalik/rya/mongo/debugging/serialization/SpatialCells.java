@@ -0,0 +1,304 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.GEO_BBOX;
+import static com.github.amihalik.rya.mongo.debugging.serialization.MongoSerialization.GEO_CELLS;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.BsonWriter;
+import org.bson.Document;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Hierarchical lon/lat cells for a cheap B-tree prefilter in front of the
+ * {@code 2dsphere} index.
+ * <p>
+ * The world is split as a quadtree: a cell at level {@code n} is a string of
+ * {@code n} digits {@code 0-3}, and a cell's ancestors are its prefixes. A
+ * geometry is covered by at most {@code maxCells} cells, at the finest level
+ * at which its bounding box spans that few. It is stored as terms in the
+ * style of S2's region term indexer: {@code c:<cell>} for each covering cell
+ * and {@code a:<cell>} for each of their ancestors. A query region with
+ * covering cell {@code q} then matches with a single {@code $in} on
+ * {@code c:q}, {@code a:q} and {@code c:<p>} for every ancestor {@code p} of
+ * {@code q}, which finds every stored cell that contains, equals or lies in
+ * {@code q} without a regex or a range scan.
+ * <p>
+ * Cells and boxes are planar in lon/lat, while {@code 2dsphere} joins
+ * vertices with great circle arcs, which bow away from the straight lon/lat
+ * segment (towards the pole) by up to several degrees on long edges. Boxes
+ * are therefore taken with {@link #geodesicEnvelope(Geometry)}, which widens
+ * the vertex box to each edge's latitude extremum, to the whole longitude
+ * range for edges crossing the antimeridian, and to the pole for polygons
+ * around one. With both the stored and the query box widened this way the
+ * covering is a superset of the spherical geometry, and the exact
+ * {@code $geoIntersects} check only has to remove candidates. Boxes crossing
+ * the antimeridian get the coarse whole-width covering.
+ */
+public class SpatialCells {
+
+    // about 40 m of longitude at the equator, as fine as a prefilter needs
+    public static final int MAX_LEVEL = 20;
+    public static final int DEFAULT_MAX_CELLS = 8;
+
+    public static final String MIN_X = "minX";
+    public static final String MIN_Y = "minY";
+    public static final String MAX_X = "maxX";
+    public static final String MAX_Y = "maxY";
+
+    private static final String COVERING = "c:";
+    private static final String ANCESTOR = "a:";
+
+    private SpatialCells() {
+    }
+
+    /**
+     * @return the cells covering the box, at the finest level that needs no
+     *         more than {@code maxCells}.
+     */
+    public static List<String> covering(Envelope box, int maxCells) {
+        if (maxCells < 4) {
+            // four level 1 cells cover the world, so the root is never needed
+            throw new IllegalArgumentException("maxCells must be at least 4 :: " + maxCells);
+        }
+        double minX = clamp(box.getMinX(), -180, 180);
+        double maxX = clamp(box.getMaxX(), -180, 180);
+        double minY = clamp(box.getMinY(), -90, 90);
+        double maxY = clamp(box.getMaxY(), -90, 90);
+        for (int level = MAX_LEVEL;; level--) {
+            long n = 1L << level;
+            long x0 = cell(minX, -180, 360, n);
+            long x1 = cell(maxX, -180, 360, n);
+            long y0 = cell(minY, -90, 180, n);
+            long y1 = cell(maxY, -90, 180, n);
+            if ((x1 - x0 + 1) * (y1 - y0 + 1) <= maxCells || level == 1) {
+                List<String> cells = new ArrayList<>();
+                for (long x = x0; x <= x1; x++) {
+                    for (long y = y0; y <= y1; y++) {
+                        cells.add(cellId(x, y, level));
+                    }
+                }
+                return cells;
+            }
+        }
+    }
+
+    /**
+     * @return the bounding box of {@code geo} as {@code 2dsphere} reads it,
+     *         with great circle edges.
+     */
+    public static Envelope geodesicEnvelope(Geometry geo) {
+        Envelope box = new Envelope(geo.getEnvelopeInternal());
+        expandGeodesic(box, geo);
+        return box;
+    }
+
+    private static void expandGeodesic(Envelope box, Geometry geo) {
+        if (geo instanceof Polygon) {
+            // the holes lie inside the shell
+            CoordinateSequence shell = ((Polygon) geo).getExteriorRing().getCoordinateSequence();
+            expandPath(box, toArray(shell), 0, shell.size(), true);
+        } else if (geo instanceof LineString) {
+            CoordinateSequence line = ((LineString) geo).getCoordinateSequence();
+            expandPath(box, toArray(line), 0, line.size(), false);
+        } else if (geo instanceof GeometryCollection) {
+            for (int i = 0; i < geo.getNumGeometries(); i++) {
+                expandGeodesic(box, geo.getGeometryN(i));
+            }
+        }
+    }
+
+    private static double[] toArray(CoordinateSequence seq) {
+        double[] xy = new double[2 * seq.size()];
+        for (int i = 0; i < seq.size(); i++) {
+            xy[2 * i] = seq.getX(i);
+            xy[2 * i + 1] = seq.getY(i);
+        }
+        return xy;
+    }
+
+    /**
+     * Widens {@code box}, which already holds the vertices, to the great
+     * circle arcs between points {@code start} to {@code end} of the flat
+     * lon/lat array {@code xy}.
+     *
+     * @param shell
+     *            the points are a polygon's closed outer ring; if it winds
+     *            around a pole, the polygon holds that pole.
+     */
+    public static void expandPath(Envelope box, double[] xy, int start, int end, boolean shell) {
+        double winding = 0;
+        double z = 0;
+        for (int i = start; i < end; i++) {
+            z += Math.sin(Math.toRadians(xy[2 * i + 1]));
+            if (i + 1 < end) {
+                double dLon = xy[2 * i + 2] - xy[2 * i];
+                if (Math.abs(dLon) > 180) {
+                    // the shorter arc crosses the antimeridian
+                    box.expandToInclude(-180, box.getMinY());
+                    box.expandToInclude(180, box.getMinY());
+                    dLon -= Math.signum(dLon) * 360;
+                }
+                winding += dLon;
+                expandEdge(box, xy[2 * i], xy[2 * i + 1], xy[2 * i + 2], xy[2 * i + 3]);
+            }
+        }
+        if (shell && Math.abs(winding) > 180) {
+            box.expandToInclude(-180, box.getMinY());
+            box.expandToInclude(180, box.getMinY());
+            // 2dsphere takes the smaller side, so the pole the vertices lean to
+            box.expandToInclude(box.getMinX(), z >= 0 ? 90 : -90);
+        }
+    }
+
+    /**
+     * Widens {@code box} to the latitude extremes of the shorter great circle
+     * arc between the two points, where that is not at an end point.
+     */
+    private static void expandEdge(Envelope box, double lon1, double lat1, double lon2, double lat2) {
+        double[] a = unit(lon1, lat1);
+        double[] b = unit(lon2, lat2);
+        double[] n = cross(a, b);
+        double horizontal = Math.hypot(n[0], n[1]);
+        if (horizontal < 1e-15 || Math.sqrt(dot(n, n)) < 1e-15) {
+            // along the equator, or a zero length or antipodal edge
+            return;
+        }
+        // the northernmost point of the great circle, the z axis projected onto its plane
+        double[] top = new double[] { -n[2] * n[0], -n[2] * n[1], horizontal * horizontal };
+        double extreme = Math.toDegrees(Math.atan2(horizontal, Math.abs(n[2])));
+        double fromA = dot(cross(a, top), n);
+        double toB = dot(cross(top, b), n);
+        if (fromA >= 0 && toB >= 0) {
+            box.expandToInclude(box.getMinX(), extreme);
+        } else if (fromA <= 0 && toB <= 0) {
+            // then the southernmost point, opposite it, is on the arc
+            box.expandToInclude(box.getMinX(), -extreme);
+        }
+    }
+
+    private static double[] unit(double lon, double lat) {
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lon);
+        return new double[] { Math.cos(phi) * Math.cos(lambda), Math.cos(phi) * Math.sin(lambda), Math.sin(phi) };
+    }
+
+    private static double[] cross(double[] u, double[] v) {
+        return new double[] { u[1] * v[2] - u[2] * v[1], u[2] * v[0] - u[0] * v[2], u[0] * v[1] - u[1] * v[0] };
+    }
+
+    private static double dot(double[] u, double[] v) {
+        return u[0] * v[0] + u[1] * v[1] + u[2] * v[2];
+    }
+
+    /**
+     * @return the terms a document with this covering is stored under. The
+     *         root is left out; every document would have it.
+     */
+    public static Set<String> indexTerms(List<String> covering) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String cell : covering) {
+            terms.add(COVERING + cell);
+            for (int i = 1; i < cell.length(); i++) {
+                terms.add(ANCESTOR + cell.substring(0, i));
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * @return the terms to look up for a query region with this covering.
+     */
+    public static Set<String> queryTerms(List<String> covering) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String cell : covering) {
+            terms.add(COVERING + cell);
+            terms.add(ANCESTOR + cell);
+            for (int i = 1; i < cell.length(); i++) {
+                terms.add(COVERING + cell.substring(0, i));
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Writes the {@code location_bbox} and {@code location_cells} fields.
+     */
+    public static void write(BsonWriter writer, Envelope box, int maxCells) {
+        writer.writeStartDocument(GEO_BBOX);
+        writer.writeDouble(MIN_X, box.getMinX());
+        writer.writeDouble(MIN_Y, box.getMinY());
+        writer.writeDouble(MAX_X, box.getMaxX());
+        writer.writeDouble(MAX_Y, box.getMaxY());
+        writer.writeEndDocument();
+        writer.writeStartArray(GEO_CELLS);
+        for (String term : indexTerms(covering(box, maxCells))) {
+            writer.writeString(term);
+        }
+        writer.writeEndArray();
+    }
+
+    /**
+     * Appends the {@code location_bbox} and {@code location_cells} fields.
+     */
+    public static void append(Document doc, Envelope box, int maxCells) {
+        doc.append(GEO_BBOX, new Document(MIN_X, box.getMinX()).append(MIN_Y, box.getMinY()).append(MAX_X, box.getMaxX())
+                .append(MAX_Y, box.getMaxY()));
+        doc.append(GEO_CELLS, new ArrayList<>(indexTerms(covering(box, maxCells))));
+    }
+
+    /**
+     * Creates the multikey index the prefilter scans. Sparse, so statements
+     * without a geometry cost nothing.
+     */
+    public static void createIndexes(MongoCollection<?> coll) {
+        coll.createIndex(Indexes.ascending(GEO_CELLS), new IndexOptions().sparse(true));
+    }
+
+    private static long cell(double v, double origin, double extent, long n) {
+        return Math.min(n - 1, (long) Math.floor((v - origin) / extent * n));
+    }
+
+    private static double clamp(double v, double min, double max) {
+        return Math.max(min, Math.min(max, v));
+    }
+
+    /**
+     * Interleaves the bits of x and y, most significant first, one base 4
+     * digit per level.
+     */
+    private static String cellId(long x, long y, int level) {
+        char[] digits = new char[level];
+        for (int i = 0; i < level; i++) {
+            int bit = level - 1 - i;
+            digits[i] = (char) ('0' + ((x >>> bit) & 1) + 2 * ((y >>> bit) & 1));
+        }
+        return new String(digits);
+    }
+}
@@ -0,0 +1,185 @@
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Computes the {@code _id} and {@code *_hash_32} values for
+ * {@link MongoSerialization} and {@link RawMongoSerialization}.
+ * <p>
+ * The statement id is hashed by streaming the UTF-8 bytes of
+ * {@code "subject predicate object context"} into a per-thread digest, so the
+ * concatenated string is never built. {@link IdHash#SHA_256} produces exactly
+ * {@link MongoSerialization#hash256(String)} of that string and keeps ids
+ * compatible with existing collections; {@link IdHash#MURMUR3_128} is a much
+ * cheaper non-cryptographic alternative for new collections.
+ * <p>
+ * Term hashes are always the first 4 bytes of the SHA-256, as the query side
+ * expects. Subject and predicate hashes are kept in a bounded cache because
+ * they repeat constantly; object hashes are not, since objects are mostly
+ * unique literals (fuzzed WKT in particular) that would only push the useful
+ * entries out and hold a lot of heap. Terms longer than
+ * {@link #MAX_CACHED_TERM_LENGTH} characters are never cached, so the cache
+ * holds at most {@code termCacheSize} short strings. Returned arrays may be
+ * shared and must not be modified.
+ */
+public class StatementHasher {
+
+    public enum IdHash {
+        SHA_256, MURMUR3_128
+    }
+
+    public static final int DEFAULT_TERM_CACHE_SIZE = 100_000;
+
+    public static final int MAX_CACHED_TERM_LENGTH = 256;
+
+    private static final HashFunction MURMUR3_128 = Hashing.murmur3_128();
+
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final ThreadLocal<Utf8Buffer> utf8 = ThreadLocal.withInitial(Utf8Buffer::new);
+
+    private final IdHash idHash;
+    private final Cache<String, byte[]> termCache;
+
+    public StatementHasher() {
+        this(IdHash.SHA_256, DEFAULT_TERM_CACHE_SIZE);
+    }
+
+    /**
+     * @param idHash
+     *            the hash used for the statement {@code _id}.
+     * @param termCacheSize
+     *            the maximum number of cached term hashes; 0 disables the
+     *            cache.
+     */
+    public StatementHasher(IdHash idHash, int termCacheSize) {
+        this.idHash = idHash;
+        this.termCache = termCacheSize > 0 ? CacheBuilder.newBuilder().maximumSize(termCacheSize).build() : null;
+    }
+
+    public IdHash getIdHash() {
+        return idHash;
+    }
+
+    public byte[] statementId(String subject, String predicate, String object, String context) {
+        Utf8Buffer buffer = utf8.get();
+        if (idHash == IdHash.MURMUR3_128) {
+            Hasher hasher = MURMUR3_128.newHasher();
+            buffer.encode(subject);
+            hasher.putBytes(buffer.bytes, 0, buffer.length);
+            hasher.putByte((byte) ' ');
+            buffer.encode(predicate);
+            hasher.putBytes(buffer.bytes, 0, buffer.length);
+            hasher.putByte((byte) ' ');
+            buffer.encode(object);
+            hasher.putBytes(buffer.bytes, 0, buffer.length);
+            hasher.putByte((byte) ' ');
+            buffer.encode(context);
+            hasher.putBytes(buffer.bytes, 0, buffer.length);
+            return hasher.hash().asBytes();
+        }
+
+        MessageDigest digest = sha256.get();
+        buffer.encode(subject);
+        digest.update(buffer.bytes, 0, buffer.length);
+        digest.update((byte) ' ');
+        buffer.encode(predicate);
+        digest.update(buffer.bytes, 0, buffer.length);
+        digest.update((byte) ' ');
+        buffer.encode(object);
+        digest.update(buffer.bytes, 0, buffer.length);
+        digest.update((byte) ' ');
+        buffer.encode(context);
+        digest.update(buffer.bytes, 0, buffer.length);
+        return digest.digest();
+    }
+
+    /**
+     * @return the hash of a subject or predicate, from the cache if possible.
+     */
+    public byte[] termHash32(final String term) {
+        if (termCache == null || term.length() > MAX_CACHED_TERM_LENGTH) {
+            return computeHash32(term);
+        }
+        byte[] hash = termCache.getIfPresent(term);
+        if (hash == null) {
+            try {
+                hash = termCache.get(term, () -> computeHash32(term));
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return the hash of an object, never cached.
+     */
+    public byte[] objectHash32(String term) {
+        return computeHash32(term);
+    }
+
+    private static byte[] computeHash32(String term) {
+        Utf8Buffer buffer = utf8.get();
+        buffer.encode(term);
+        MessageDigest digest = sha256.get();
+        digest.update(buffer.bytes, 0, buffer.length);
+        return Arrays.copyOf(digest.digest(), 4);
+    }
+
+    /**
+     * Reusable UTF-8 encoding target. Lone surrogates become '?', the same as
+     * {@link String#getBytes(java.nio.charset.Charset)}.
+     */
+    private static class Utf8Buffer {
+        byte[] bytes = new byte[1024];
+        int length;
+
+        void encode(String s) {
+            int n = s.length();
+            if (bytes.length < n * 3) {
+                bytes = new byte[n * 3];
+            }
+            int pos = 0;
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    bytes[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[pos++] = (byte) (0xC0 | (c >> 6));
+                    bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, s.charAt(++i));
+                        bytes[pos++] = (byte) (0xF0 | (cp >> 18));
+                        bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                        bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                        bytes[pos++] = (byte) (0x80 | (cp & 0x3F));
+                    } else {
+                        bytes[pos++] = (byte) '?';
+                    }
+                } else {
+                    bytes[pos++] = (byte) (0xE0 | (c >> 12));
+                    bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            length = pos;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import org.openrdf.model.Statement;
+
+/**
+ * Sink for parsed statements that writes them into MongoDB. Implementations
+ * are fed from a single parser thread and must flush everything they still
+ * hold when {@link #close()} is called.
+ */
+public interface StatementLoader {
+
+    public void loadStatement(Statement s);
+
+    public void close();
+}
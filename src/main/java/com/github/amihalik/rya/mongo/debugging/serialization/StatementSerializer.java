@@ -0,0 +1,42 @@
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.util.List;
+
+import org.openrdf.model.Statement;
+
+/**
+ * Converts a statement into the document type a loader hands to
+ * {@code insertMany}. Implementations are shared by all loader threads and
+ * must be thread safe.
+ *
+ * @param <T> the document class written to the collection
+ */
+public interface StatementSerializer<T> {
+
+    /**
+     * @return the serialized statement, or {@code null} if it cannot be
+     *         stored.
+     */
+    public T serialize(Statement statement);
+
+    /**
+     * Called with each batch before its statements are serialized, so
+     * lookups the serializer needs can be done once per batch instead of once
+     * per statement.
+     */
+    public default void prepare(List<Statement> batch) {
+    }
+
+    /**
+     * @return the document class to open the target collection with.
+     */
+    public Class<T> getDocumentClass();
+
+    /**
+     * @return the encoded size of {@code document} in bytes, or -1 if it is
+     *         not known without encoding it again.
+     */
+    public default int byteSize(T document) {
+        return -1;
+    }
+}
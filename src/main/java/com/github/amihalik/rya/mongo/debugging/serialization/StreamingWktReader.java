@@ -0,0 +1,357 @@
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.BsonWriter;
+import org.bson.Document;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+
+/**
+ * Tokenizes the common WKT geometries (POINT, LINESTRING and POLYGON with
+ * holes) straight into a flat coordinate array and emits GeoJSON from it,
+ * without building a JTS {@code Geometry}. The output is identical to
+ * {@link MongoSerialization#getCorrespondingPoints} and
+ * {@link MongoSerialization#getDBPoint}.
+ * <p>
+ * {@link #read(String)} returns {@code false} for anything it does not handle
+ * (other geometry types, EMPTY, Z/M keywords, rings JTS would reject, ...) and
+ * the caller falls back to JTS, so errors are reported exactly as before.
+ * Instances hold parse state and are not thread safe; keep one per thread.
+ */
+public class StreamingWktReader {
+
+    public enum Type {
+        Point, LineString, Polygon
+    }
+
+    private String wkt;
+    private int pos;
+
+    private Type type;
+    private double[] coords = new double[256];
+    private int numPoints;
+    private int[] ringEnds = new int[8];
+    private int numRings;
+
+    // set by nextNumber() when the next word is not a number
+    private boolean failed;
+
+    /**
+     * @return {@code true} if the geometry was read and can be emitted with
+     *         {@link #write(BsonWriter)} or {@link #toDocument()}.
+     */
+    public boolean read(String wkt) {
+        this.wkt = wkt;
+        this.pos = 0;
+        this.numPoints = 0;
+        this.numRings = 0;
+
+        String keyword = nextWord();
+        if (keyword == null) {
+            return false;
+        }
+
+        if (keyword.equalsIgnoreCase("POINT")) {
+            type = Type.Point;
+            if (!skip('(') || !readCoordinate() || !skip(')')) {
+                return false;
+            }
+        } else if (keyword.equalsIgnoreCase("LINESTRING")) {
+            type = Type.LineString;
+            // JTS rejects a single point LineString, so let it report that
+            if (!readCoordinateList() || numPoints < 2) {
+                return false;
+            }
+        } else if (keyword.equalsIgnoreCase("POLYGON")) {
+            type = Type.Polygon;
+            if (!skip('(')) {
+                return false;
+            }
+            do {
+                int ringStart = numPoints;
+                if (!readCoordinateList() || !isValidRing(ringStart, numPoints)) {
+                    return false;
+                }
+                addRingEnd(numPoints);
+            } while (skip(','));
+            if (!skip(')')) {
+                return false;
+            }
+        } else {
+            return false;
+        }
+
+        skipWhitespace();
+        return pos == wkt.length();
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getNumPoints() {
+        return numPoints;
+    }
+
+    /**
+     * @return the bounding box of the points read.
+     */
+    public Envelope getEnvelope() {
+        double minX = coords[0], maxX = coords[0];
+        double minY = coords[1], maxY = coords[1];
+        for (int i = 1; i < numPoints; i++) {
+            double x = coords[2 * i];
+            double y = coords[2 * i + 1];
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+        }
+        return new Envelope(minX, maxX, minY, maxY);
+    }
+
+    /**
+     * @return the bounding box as {@code 2dsphere} reads the geometry, see
+     *         {@link SpatialCells#geodesicEnvelope(Geometry)}.
+     */
+    public Envelope getGeodesicEnvelope() {
+        Envelope box = getEnvelope();
+        if (type == Type.LineString) {
+            SpatialCells.expandPath(box, coords, 0, numPoints, false);
+        } else if (type == Type.Polygon) {
+            SpatialCells.expandPath(box, coords, 0, ringEnds[0], true);
+        }
+        return box;
+    }
+
+    /**
+     * Writes {@code {coordinates: [...], type: "..."}} as the next value.
+     */
+    public void write(BsonWriter writer) {
+        writer.writeStartDocument();
+        writer.writeName("coordinates");
+        switch (type) {
+        case Point:
+            writePoint(writer, 0);
+            break;
+        case LineString:
+            writePoints(writer, 0, numPoints);
+            break;
+        case Polygon:
+            writer.writeStartArray();
+            int start = 0;
+            for (int r = 0; r < numRings; r++) {
+                writePoints(writer, start, ringEnds[r]);
+                start = ringEnds[r];
+            }
+            writer.writeEndArray();
+            break;
+        }
+        writer.writeString("type", type.name());
+        writer.writeEndDocument();
+    }
+
+    /**
+     * Builds the JTS geometry for the points read, for the callers that need
+     * one anyway, without parsing the WKT again.
+     */
+    public Geometry toGeometry(GeometryFactory factory) {
+        switch (type) {
+        case Point:
+            return factory.createPoint(getCoordinate(0));
+        case LineString:
+            return factory.createLineString(getCoordinates(0, numPoints));
+        default:
+            LinearRing shell = factory.createLinearRing(getCoordinates(0, ringEnds[0]));
+            LinearRing[] holes = new LinearRing[numRings - 1];
+            for (int r = 1; r < numRings; r++) {
+                holes[r - 1] = factory.createLinearRing(getCoordinates(ringEnds[r - 1], ringEnds[r]));
+            }
+            return factory.createPolygon(shell, holes);
+        }
+    }
+
+    private Coordinate[] getCoordinates(int start, int end) {
+        Coordinate[] coordinates = new Coordinate[end - start];
+        for (int i = start; i < end; i++) {
+            coordinates[i - start] = getCoordinate(i);
+        }
+        return coordinates;
+    }
+
+    private Coordinate getCoordinate(int i) {
+        return new Coordinate(coords[2 * i], coords[2 * i + 1]);
+    }
+
+    public Document toDocument() {
+        Object coordinates;
+        switch (type) {
+        case Point:
+            coordinates = getPoint(0);
+            break;
+        case LineString:
+            coordinates = getPoints(0, numPoints);
+            break;
+        default:
+            List<List<List<Double>>> rings = new ArrayList<>(numRings);
+            int start = 0;
+            for (int r = 0; r < numRings; r++) {
+                rings.add(getPoints(start, ringEnds[r]));
+                start = ringEnds[r];
+            }
+            coordinates = rings;
+            break;
+        }
+        return new Document("coordinates", coordinates).append("type", type.name());
+    }
+
+    private void writePoints(BsonWriter writer, int start, int end) {
+        writer.writeStartArray();
+        for (int i = start; i < end; i++) {
+            writePoint(writer, i);
+        }
+        writer.writeEndArray();
+    }
+
+    private void writePoint(BsonWriter writer, int i) {
+        writer.writeStartArray();
+        writer.writeDouble(coords[2 * i]);
+        writer.writeDouble(coords[2 * i + 1]);
+        writer.writeEndArray();
+    }
+
+    private List<List<Double>> getPoints(int start, int end) {
+        List<List<Double>> points = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            points.add(getPoint(i));
+        }
+        return points;
+    }
+
+    private List<Double> getPoint(int i) {
+        List<Double> point = new ArrayList<>(2);
+        point.add(coords[2 * i]);
+        point.add(coords[2 * i + 1]);
+        return point;
+    }
+
+    /**
+     * JTS requires closed rings of at least 4 points.
+     */
+    private boolean isValidRing(int start, int end) {
+        if (end - start < 4) {
+            return false;
+        }
+        int last = end - 1;
+        return coords[2 * start] == coords[2 * last] && coords[2 * start + 1] == coords[2 * last + 1];
+    }
+
+    private void addRingEnd(int end) {
+        if (numRings == ringEnds.length) {
+            ringEnds = Arrays.copyOf(ringEnds, numRings * 2);
+        }
+        ringEnds[numRings++] = end;
+    }
+
+    private boolean readCoordinateList() {
+        if (!skip('(')) {
+            return false;
+        }
+        do {
+            if (!readCoordinate()) {
+                return false;
+            }
+        } while (skip(','));
+        return skip(')');
+    }
+
+    /**
+     * Reads "x y" or "x y z"; only x and y are kept, like the JTS path.
+     */
+    private boolean readCoordinate() {
+        double x = nextNumber();
+        if (failed) {
+            return false;
+        }
+        double y = nextNumber();
+        if (failed) {
+            return false;
+        }
+        skipWhitespace();
+        if (pos < wkt.length() && isWordChar(wkt.charAt(pos))) {
+            nextNumber();
+            if (failed) {
+                return false;
+            }
+            skipWhitespace();
+            if (pos < wkt.length() && isWordChar(wkt.charAt(pos))) {
+                return false;
+            }
+        }
+
+        if (2 * numPoints + 2 > coords.length) {
+            coords = Arrays.copyOf(coords, coords.length * 2);
+        }
+        coords[2 * numPoints] = x;
+        coords[2 * numPoints + 1] = y;
+        numPoints++;
+        return true;
+    }
+
+    /**
+     * Parses the next word the way the JTS tokenizer does.
+     */
+    private double nextNumber() {
+        failed = false;
+        String word = nextWord();
+        if (word == null) {
+            failed = true;
+            return Double.NaN;
+        }
+        if (word.equalsIgnoreCase("NaN")) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(word);
+        } catch (NumberFormatException e) {
+            failed = true;
+            return Double.NaN;
+        }
+    }
+
+    private String nextWord() {
+        skipWhitespace();
+        int start = pos;
+        while (pos < wkt.length() && isWordChar(wkt.charAt(pos))) {
+            pos++;
+        }
+        return pos > start ? wkt.substring(start, pos) : null;
+    }
+
+    private boolean skip(char c) {
+        skipWhitespace();
+        if (pos < wkt.length() && wkt.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (pos < wkt.length() && wkt.charAt(pos) <= ' ') {
+            pos++;
+        }
+    }
+
+    // same word characters as the JTS WKTReader tokenizer
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c >= 128 || c == '-' || c == '+' || c == '.';
+    }
+}
@@ -0,0 +1,44 @@
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+
+/**
+ * Serializes calls into a handler that is not thread safe, so it can sit
+ * behind a {@link ParallelRdfFileParser}. Put it as far down the chain as
+ * possible; everything above it still runs in parallel.
+ */
+public class SynchronizedRdfHandler implements RDFHandler {
+
+    private final RDFHandler inner;
+
+    public SynchronizedRdfHandler(RDFHandler inner) {
+        this.inner = inner;
+    }
+
+    @Override
+    public synchronized void startRDF() throws RDFHandlerException {
+        inner.startRDF();
+    }
+
+    @Override
+    public synchronized void endRDF() throws RDFHandlerException {
+        inner.endRDF();
+    }
+
+    @Override
+    public synchronized void handleNamespace(String prefix, String uri) throws RDFHandlerException {
+        inner.handleNamespace(prefix, uri);
+    }
+
+    @Override
+    public synchronized void handleStatement(Statement st) throws RDFHandlerException {
+        inner.handleStatement(st);
+    }
+
+    @Override
+    public synchronized void handleComment(String comment) throws RDFHandlerException {
+        inner.handleComment(comment);
+    }
+}
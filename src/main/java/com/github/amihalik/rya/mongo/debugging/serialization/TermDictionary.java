@@ -0,0 +1,263 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.amihalik.rya.mongo.debugging.serialization;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+
+/**
+ * Maps RDF terms to compact numeric ids, stored in a Mongo collection as
+ * {@code {_id: <id>, term: <string>}} with a unique index on {@code term}.
+ * <p>
+ * Ids are handed out from blocks reserved with one {@code $inc} on a counter
+ * document, so several threads and several loaders can assign ids without
+ * coordinating per term. Lookups in both directions go through bounded
+ * caches, and {@link #resolve(Collection)} finds or assigns a whole batch of
+ * terms with one query and one insert. If two writers assign the same new
+ * term at once, the unique index rejects one of them and the loser reads the
+ * winner's id back, leaving the id it reserved unused.
+ * <p>
+ * Only terms of up to {@link #MAX_TERM_BYTES} can be stored, since Mongo
+ * refuses index keys over 1024 bytes; callers keep longer terms out of the
+ * dictionary (see {@link #fits(String)}). The caches are bounded by the
+ * estimated heap of their terms rather than by entries.
+ */
+public class TermDictionary {
+    private static final Logger log = Logger.getLogger(TermDictionary.class);
+
+    public static final String TERM = "term";
+    public static final String ID = "_id";
+
+    /** UTF-8 bytes of the longest term the unique index can hold, with room to spare. */
+    public static final int MAX_TERM_BYTES = 512;
+    /** Estimated heap of each cache. */
+    public static final long DEFAULT_CACHE_BYTES = 128L << 20;
+    public static final int DEFAULT_BLOCK_SIZE = 10_000;
+
+    /** Counter document holding the first id not yet reserved. */
+    private static final String NEXT_ID = "nextId";
+    private static final String VALUE = "value";
+    /** Terms per {@code $in} query. */
+    private static final int QUERY_CHUNK = 10_000;
+    /** Entry, boxed id and string headers of a cached term. */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final MongoCollection<Document> terms;
+    private final int blockSize;
+
+    private final Cache<String, Long> ids;
+    private final Cache<Long, String> values;
+
+    // guarded by this
+    private long nextId;
+    private long blockEnd;
+
+    public TermDictionary(MongoCollection<Document> terms) {
+        this(terms, DEFAULT_CACHE_BYTES, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param cacheBytes
+     *            estimated heap each of the two caches may hold.
+     */
+    public TermDictionary(MongoCollection<Document> terms, long cacheBytes, int blockSize) {
+        this.terms = terms;
+        this.blockSize = blockSize;
+        this.ids = CacheBuilder.newBuilder().maximumWeight(cacheBytes).weigher((String term, Long id) -> weight(term)).build();
+        this.values = CacheBuilder.newBuilder().maximumWeight(cacheBytes).weigher((Long id, String term) -> weight(term)).build();
+        terms.createIndex(Indexes.ascending(TERM), new IndexOptions().unique(true).sparse(true));
+    }
+
+    private static int weight(String term) {
+        return ENTRY_OVERHEAD + 2 * term.length();
+    }
+
+    /**
+     * @return whether {@code term} is short enough to be stored.
+     */
+    public static boolean fits(String term) {
+        if (term.length() <= MAX_TERM_BYTES / 3) {
+            return true;
+        }
+        return term.length() <= MAX_TERM_BYTES && term.getBytes(StandardCharsets.UTF_8).length <= MAX_TERM_BYTES;
+    }
+
+    /**
+     * @return the id of {@code term}, assigning one if it is new.
+     */
+    public long id(String term) {
+        Long id = ids.getIfPresent(term);
+        if (id != null) {
+            return id;
+        }
+        return resolve(Collections.singleton(term)).get(term);
+    }
+
+    /**
+     * Finds or assigns the ids of all {@code terms}.
+     *
+     * @return the id of every term in {@code terms}.
+     * @throws IllegalArgumentException
+     *             if a term does not {@link #fits(String) fit}, before
+     *             anything is written.
+     */
+    public Map<String, Long> resolve(Collection<String> terms) {
+        Map<String, Long> resolved = new HashMap<>();
+        Set<String> missing = new LinkedHashSet<>();
+        for (String term : terms) {
+            if (!fits(term)) {
+                throw new IllegalArgumentException(String.format("Term of %,d characters is too long for the dictionary: %.64s...", term.length(), term));
+            }
+            Long id = ids.getIfPresent(term);
+            if (id != null) {
+                resolved.put(term, id);
+            } else {
+                missing.add(term);
+            }
+        }
+        if (missing.isEmpty()) {
+            return resolved;
+        }
+
+        find(missing, resolved);
+        missing.removeAll(resolved.keySet());
+        if (missing.isEmpty()) {
+            return resolved;
+        }
+
+        List<String> added = new ArrayList<>(missing);
+        List<Document> docs = new ArrayList<>(added.size());
+        for (String term : added) {
+            docs.add(new Document(ID, reserveId()).append(TERM, term));
+        }
+        Set<String> raced = new LinkedHashSet<>();
+        try {
+            this.terms.insertMany(docs, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (error.getCode() != BulkWriteRecovery.DUPLICATE_KEY) {
+                    throw e;
+                }
+                raced.add(added.get(error.getIndex()));
+            }
+        }
+        for (Document doc : docs) {
+            String term = doc.getString(TERM);
+            if (!raced.contains(term)) {
+                cache(term, doc.getLong(ID));
+                resolved.put(term, doc.getLong(ID));
+            }
+        }
+        if (!raced.isEmpty()) {
+            log.debug(String.format("%,d terms were assigned by another writer", raced.size()));
+            find(raced, resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * @return the term with id {@code id}.
+     * @throws IllegalStateException
+     *             if the id is not in the dictionary.
+     */
+    public String term(long id) {
+        String term = values.getIfPresent(id);
+        if (term != null) {
+            return term;
+        }
+        return terms(Collections.singleton(id)).get(id);
+    }
+
+    /**
+     * @return the term of every id in {@code ids}.
+     * @throws IllegalStateException
+     *             if an id is not in the dictionary.
+     */
+    public Map<Long, String> terms(Collection<Long> ids) {
+        Map<Long, String> resolved = new HashMap<>();
+        Set<Long> missing = new LinkedHashSet<>();
+        for (Long id : ids) {
+            String term = values.getIfPresent(id);
+            if (term != null) {
+                resolved.put(id, term);
+            } else {
+                missing.add(id);
+            }
+        }
+        List<Long> list = new ArrayList<>(missing);
+        for (int i = 0; i < list.size(); i += QUERY_CHUNK) {
+            List<Long> chunk = list.subList(i, Math.min(i + QUERY_CHUNK, list.size()));
+            for (Document doc : this.terms.find(Filters.in(ID, chunk))) {
+                cache(doc.getString(TERM), doc.getLong(ID));
+                resolved.put(doc.getLong(ID), doc.getString(TERM));
+            }
+        }
+        for (Long id : missing) {
+            if (!resolved.containsKey(id)) {
+                throw new IllegalStateException("Unknown term id " + id);
+            }
+        }
+        return resolved;
+    }
+
+    private void find(Collection<String> terms, Map<String, Long> resolved) {
+        List<String> list = new ArrayList<>(terms);
+        for (int i = 0; i < list.size(); i += QUERY_CHUNK) {
+            List<String> chunk = list.subList(i, Math.min(i + QUERY_CHUNK, list.size()));
+            for (Document doc : this.terms.find(Filters.in(TERM, chunk))) {
+                cache(doc.getString(TERM), doc.getLong(ID));
+                resolved.put(doc.getString(TERM), doc.getLong(ID));
+            }
+        }
+    }
+
+    private void cache(String term, long id) {
+        ids.put(term, id);
+        values.put(id, term);
+    }
+
+    private synchronized long reserveId() {
+        if (nextId == blockEnd) {
+            Document counter = terms.findOneAndUpdate(Filters.eq(ID, NEXT_ID), Updates.inc(VALUE, (long) blockSize),
+                    new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+            blockEnd = counter.getLong(VALUE);
+            nextId = blockEnd - blockSize;
+        }
+        return nextId++;
+    }
+}